@@ -0,0 +1,105 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.benchmarks;
+
+import org.apache.tomcat.vault.security.ExternalPasswordCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * External password cache shared by all threads resolving {EXTC...} and {CMDC...} passwords.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExternalPasswordCacheBenchmark {
+
+    private static final int KEYS = 64;
+
+    private final String[] keys = new String[KEYS];
+    private ExternalPasswordCache cache;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cache = ExternalPasswordCache.getExternalPasswordCacheInstance();
+        cache.reset();
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "{EXTC}/usr/local/bin/password-command --entry " + i;
+            cache.storePassword(keys[i], ("password" + i).toCharArray());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        String nextKey(String[] keys) {
+            next = (next + 1) % keys.length;
+            return keys[next];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean containsUncontended(Cursor cursor) {
+        return cache.contains(cursor.nextKey(keys), 0);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean containsContended(Cursor cursor) {
+        return cache.contains(cursor.nextKey(keys), 0);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public boolean mixedContains(Cursor cursor) {
+        return cache.contains(cursor.nextKey(keys), 0);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public void mixedStore(Cursor cursor) {
+        String key = cursor.nextKey(keys);
+        cache.storePassword(key, key.toCharArray());
+    }
+}
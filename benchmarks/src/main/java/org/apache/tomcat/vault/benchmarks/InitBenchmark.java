@@ -0,0 +1,89 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.benchmarks;
+
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Vault initialization end to end: password unmasking, keystore loading, vault data reading and optional
+ * eager decryption.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InitBenchmark {
+
+    @Param({"10", "1000"})
+    public int entries;
+
+    @Param({"false", "true"})
+    public String eagerDecrypt;
+
+    private VaultFixture fixture;
+    private Map<String, Object> options;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = new VaultFixture();
+        options = fixture.options();
+        PicketBoxSecurityVault vault = new PicketBoxSecurityVault();
+        vault.init(options);
+        char[] value = "P@SSW0#D".toCharArray();
+        for (int i = 0; i < entries; i++) {
+            vault.store("block" + (i % 10), "attribute" + i, value, null);
+        }
+        options.put(PicketBoxSecurityVault.EAGER_DECRYPT, eagerDecrypt);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.delete();
+    }
+
+    @Benchmark
+    public PicketBoxSecurityVault init() throws SecurityVaultException {
+        PicketBoxSecurityVault vault = new PicketBoxSecurityVault();
+        vault.init(options);
+        return vault;
+    }
+}
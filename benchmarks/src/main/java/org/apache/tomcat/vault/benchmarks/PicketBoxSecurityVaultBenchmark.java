@@ -0,0 +1,114 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.benchmarks;
+
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.CharBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single attribute operations of the default vault implementation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PicketBoxSecurityVaultBenchmark {
+
+    private static final int ATTRIBUTES = 100;
+
+    @Param({"false", "true"})
+    public String eagerDecrypt;
+
+    private VaultFixture fixture;
+    private PicketBoxSecurityVault vault;
+    private final char[] value = "P@SSW0#D".toCharArray();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = new VaultFixture();
+        Map<String, Object> options = fixture.options();
+        options.put(PicketBoxSecurityVault.EAGER_DECRYPT, eagerDecrypt);
+        vault = new PicketBoxSecurityVault();
+        vault.init(options);
+        for (int i = 0; i < ATTRIBUTES; i++) {
+            vault.store("bench", "attribute" + i, value, null);
+        }
+        // reload so that EAGER_DECRYPT picks up the stored attributes
+        vault = new PicketBoxSecurityVault();
+        vault.init(options);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.delete();
+    }
+
+    @State(Scope.Thread)
+    public static class Buffer {
+        final CharBuffer chars = CharBuffer.allocate(64);
+    }
+
+    @Benchmark
+    public char[] retrieve() throws SecurityVaultException {
+        return vault.retrieve("bench", "attribute42", null);
+    }
+
+    @Benchmark
+    public int retrieveInto(Buffer buffer) throws SecurityVaultException {
+        buffer.chars.clear();
+        return vault.retrieveInto("bench", "attribute42", buffer.chars);
+    }
+
+    @Benchmark
+    public Map<String, char[]> retrieveBlock() throws SecurityVaultException {
+        return vault.retrieveBlock("bench");
+    }
+
+    /**
+     * Includes writing the vault data file.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void store() throws SecurityVaultException {
+        vault.store("bench", "stored", value, null);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.benchmarks;
+
+import org.apache.tomcat.vault.security.vault.SecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultFactory;
+import org.apache.tomcat.vault.util.Crypt2Encryptor;
+import org.apache.tomcat.vault.util.PropertySourceVault;
+import org.jasypt.util.text.BasicTextEncryptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Placeholder resolution as done by Tomcat for every ${...} in its configuration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropertySourceVaultBenchmark {
+
+    private static final String VAULT_REFERENCE = "VAULT::bench::password::";
+    private static final String PLAIN_PROPERTY = "catalina.base";
+    private static final String ENCRYPTION_PASSWORD = "MyEncryptionPassword";
+
+    @Param({"0", "256"})
+    public String cacheMaxEntries;
+
+    private VaultFixture fixture;
+    private PropertySourceVault propertySource;
+    private String cryptReference;
+    private String crypt2Reference;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = new VaultFixture();
+        SecurityVault vault = SecurityVaultFactory.get();
+        vault.init(fixture.options());
+        vault.store("bench", "password", "P@SSW0#D".toCharArray(), null);
+        vault.store("bench", "encryption_password", ENCRYPTION_PASSWORD.toCharArray(), null);
+
+        Map<String, String> extra = new HashMap<String, String>();
+        extra.put("ENCRYPTION_PASSWORD", "VAULT::bench::encryption_password::");
+        extra.put("CACHE_MAX_ENTRIES", cacheMaxEntries);
+        extra.put("CACHE_CRYPT", "true");
+        fixture.writeVaultProperties(extra);
+        propertySource = new PropertySourceVault();
+
+        BasicTextEncryptor textEncryptor = new BasicTextEncryptor();
+        textEncryptor.setPassword(ENCRYPTION_PASSWORD);
+        cryptReference = "CRYPT::" + textEncryptor.encrypt("P@SSW0#D");
+        crypt2Reference = "CRYPT2::" + new Crypt2Encryptor(ENCRYPTION_PASSWORD).encrypt("P@SSW0#D",
+                "benchmark".getBytes(StandardCharsets.UTF_8), Crypt2Encryptor.DEFAULT_ITERATIONS);
+        if (!"P@SSW0#D".equals(propertySource.getProperty(VAULT_REFERENCE))
+                || !"P@SSW0#D".equals(propertySource.getProperty(cryptReference))
+                || !"P@SSW0#D".equals(propertySource.getProperty(crypt2Reference))) {
+            throw new IllegalStateException("Vault fixture does not resolve references");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.delete();
+    }
+
+    @Benchmark
+    public String vaultReference() {
+        return propertySource.getProperty(VAULT_REFERENCE);
+    }
+
+    @Benchmark
+    public String cryptReference() {
+        return propertySource.getProperty(cryptReference);
+    }
+
+    @Benchmark
+    public String crypt2Reference() {
+        return propertySource.getProperty(crypt2Reference);
+    }
+
+    @Benchmark
+    public String nonMatching() {
+        return propertySource.getProperty(PLAIN_PROPERTY);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.benchmarks;
+
+import org.apache.tomcat.vault.VaultSession;
+import org.apache.tomcat.vault.security.plugins.PBEUtils;
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.util.KeyStoreUtil;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.PBEParameterSpec;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Throw-away vault (keystore, encryption directory and vault.properties) in a temporary directory.
+ */
+public final class VaultFixture {
+
+    public static final String KEYSTORE_PASSWORD = "benchmark123";
+    public static final String ALIAS = "vault";
+    public static final String SALT = "12345678";
+    public static final String ITERATION_COUNT = "50";
+
+    private final Path directory;
+    private final String maskedPassword;
+
+    public VaultFixture() throws Exception {
+        directory = Files.createTempDirectory("tomcat-vault-benchmark");
+
+        char[] password = KEYSTORE_PASSWORD.toCharArray();
+        KeyStore keystore = KeyStoreUtil.createKeyStore("JCEKS", password);
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        keystore.setEntry(ALIAS, new KeyStore.SecretKeyEntry(generator.generateKey()), new KeyStore.PasswordProtection(password));
+        try (OutputStream out = new FileOutputStream(getKeystore())) {
+            keystore.store(out, password);
+        }
+
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(VaultSession.VAULT_ENC_ALGORITHM);
+        SecretKey key = factory.generateSecret(new PBEKeySpec("somearbitrarycrazystringthatdoesnotmatter".toCharArray()));
+        maskedPassword = PicketBoxSecurityVault.PASS_MASK_PREFIX + PBEUtils.encode64(KEYSTORE_PASSWORD.getBytes(),
+                VaultSession.VAULT_ENC_ALGORITHM, key, new PBEParameterSpec(SALT.getBytes(), Integer.parseInt(ITERATION_COUNT)));
+    }
+
+    public File getKeystore() {
+        return directory.resolve("vault.keystore").toFile();
+    }
+
+    /**
+     * Options for {@link PicketBoxSecurityVault#init(Map)}.
+     */
+    public Map<String, Object> options() {
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put(PicketBoxSecurityVault.KEYSTORE_URL, getKeystore().getAbsolutePath());
+        options.put(PicketBoxSecurityVault.KEYSTORE_PASSWORD, maskedPassword);
+        options.put(PicketBoxSecurityVault.KEYSTORE_ALIAS, ALIAS);
+        options.put(PicketBoxSecurityVault.SALT, SALT);
+        options.put(PicketBoxSecurityVault.ITERATION_COUNT, ITERATION_COUNT);
+        options.put(PicketBoxSecurityVault.ENC_FILE_DIR, directory.toAbsolutePath() + File.separator);
+        return options;
+    }
+
+    /**
+     * Write vault.properties with the vault options and given extra entries and point
+     * org.apache.tomcat.vault.util.VAULT_PROPERTIES to it.
+     */
+    public void writeVaultProperties(Map<String, String> extra) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Object> option : options().entrySet()) {
+            properties.setProperty(option.getKey(), (String) option.getValue());
+        }
+        properties.putAll(extra);
+        File file = directory.resolve("vault.properties").toFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, null);
+        }
+        System.setProperty("org.apache.tomcat.vault.util.VAULT_PROPERTIES", file.getAbsolutePath());
+    }
+
+    public void delete() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
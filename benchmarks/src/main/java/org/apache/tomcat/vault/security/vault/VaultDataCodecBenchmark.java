@@ -0,0 +1,143 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.security.vault;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Writing and reading the vault data file with each {@link VaultDataCodec}. Reading a file read on demand, e.g.
+ * with the mapped codec, also looks up one entry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VaultDataCodecBenchmark {
+
+    @Param({"1000", "100000"})
+    public int entries;
+
+    @Param({"binary", "mapped", "sharded", "compressed"})
+    public String codecName;
+
+    private Path directory;
+    private VaultDataCodec codec;
+    private VaultDataCodec.Context context;
+    private SecurityVaultData data;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        data = new SecurityVaultData();
+        for (int i = 0; i < entries; i++) {
+            // AES encrypted 8 - 15 character passwords
+            byte[] encrypted = new byte[16];
+            random.nextBytes(encrypted);
+            data.addVaultData("vault", "block" + (i % 100), "attribute" + i, encrypted);
+        }
+        directory = Files.createTempDirectory("tomcat-vault-benchmark");
+        codec = VaultDataCodecs.get(codecName);
+        context = new BenchmarkContext(directory.resolve("VAULT.dat").toFile());
+        write();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public SecurityVaultData write() throws IOException {
+        return codec.write(data, 1, context);
+    }
+
+    @Benchmark
+    public byte[] read() throws IOException {
+        try (FileChannel channel = FileChannel.open(context.getFile().toPath())) {
+            return codec.read(channel, context).getVaultData("vault", "block7", "attribute7");
+        }
+    }
+
+    private static final class BenchmarkContext implements VaultDataCodec.Context {
+        private final File file;
+
+        BenchmarkContext(File file) {
+            this.file = file;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public Map<String, Object> getOptions() {
+            return Collections.emptyMap();
+        }
+
+        public ExecutorService getWorkerPool() {
+            return ForkJoinPool.commonPool();
+        }
+
+        public void reportDamaged(String vaultBlock, String attributeName) {
+            throw new IllegalStateException(vaultBlock + "::" + attributeName);
+        }
+
+        public void writeAtomically(File target, VaultDataCodec.Output content) throws IOException {
+            // buffered like the vault files written by the vault
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(target.toPath()))) {
+                content.writeTo(os);
+            }
+        }
+    }
+}
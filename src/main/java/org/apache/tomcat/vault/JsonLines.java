@@ -0,0 +1,240 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault;
+
+import org.apache.tomcat.vault.security.vault.VaultEntry;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Vault entries as JSON lines, one object with string members per line:
+ * <pre>
+ * {"block":"vb","attribute":"password","value":"secret"}
+ * {"block":"vb","attribute":"token","encrypted":"base64 of the value as stored in the vault"}
+ * </pre>
+ * Only this flat subset of JSON is read, members other than the ones above are ignored.
+ */
+final class JsonLines {
+
+    static final String BLOCK = "block";
+    static final String ATTRIBUTE = "attribute";
+    static final String VALUE = "value";
+    static final String ENCRYPTED = "encrypted";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String line;
+    private final int lineNumber;
+    private int pos;
+
+    private JsonLines(String line, int lineNumber) {
+        this.line = line;
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * Parse one line into a vault entry.
+     *
+     * @param line
+     * @param lineNumber used in error messages
+     * @return
+     * @throws IllegalArgumentException if the line is not a valid entry
+     */
+    static VaultEntry parseEntry(String line, int lineNumber) {
+        JsonLines parser = new JsonLines(line, lineNumber);
+        Map<String, String> members = parser.parseObject();
+        String value = members.get(VALUE);
+        String encrypted = members.get(ENCRYPTED);
+        if ((value == null) == (encrypted == null)) {
+            throw parser.error("exactly one of \"" + VALUE + "\" and \"" + ENCRYPTED + "\" expected", 0);
+        }
+        try {
+            if (encrypted != null) {
+                return VaultEntry.encrypted(members.get(BLOCK), members.get(ATTRIBUTE), Base64.getDecoder().decode(encrypted));
+            }
+            return VaultEntry.plain(members.get(BLOCK), members.get(ATTRIBUTE), value.toCharArray());
+        } catch (IllegalArgumentException e) {
+            throw parser.error(e.getMessage(), 0);
+        }
+    }
+
+    /**
+     * Write an entry as one line.
+     *
+     * @param out
+     * @param entry
+     * @throws IOException
+     */
+    static void writeEntry(Writer out, VaultEntry entry) throws IOException {
+        out.write("{\"" + BLOCK + "\":");
+        writeString(out, entry.getVaultBlock().toCharArray());
+        out.write(",\"" + ATTRIBUTE + "\":");
+        writeString(out, entry.getAttributeName().toCharArray());
+        if (entry.isEncrypted()) {
+            out.write(",\"" + ENCRYPTED + "\":\"");
+            out.write(Base64.getEncoder().encodeToString(entry.getEncryptedValue()));
+            out.write('"');
+        } else {
+            out.write(",\"" + VALUE + "\":");
+            // straight from the array, no string copy of the value is made
+            writeString(out, entry.getValue());
+        }
+        out.write("}\n");
+    }
+
+    private static void writeString(Writer out, char[] str) throws IOException {
+        out.write('"');
+        for (char c : str) {
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                out.write("\\u");
+                out.write(HEX[c >> 12 & 0xF]);
+                out.write(HEX[c >> 8 & 0xF]);
+                out.write(HEX[c >> 4 & 0xF]);
+                out.write(HEX[c & 0xF]);
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    private Map<String, String> parseObject() {
+        Map<String, String> members = new HashMap<String, String>();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+        } else {
+            while (true) {
+                skipWhitespace();
+                int start = pos;
+                String name = parseString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                if (members.put(name, parseString()) != null) {
+                    throw error("duplicate member \"" + name + "\"", start + 1);
+                }
+                skipWhitespace();
+                if (peek() == '}') {
+                    pos++;
+                    break;
+                }
+                expect(',');
+            }
+        }
+        skipWhitespace();
+        if (pos < line.length()) {
+            throw error("unexpected content after the object", pos + 1);
+        }
+        return members;
+    }
+
+    private String parseString() {
+        expect('"');
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            if (pos >= line.length()) {
+                throw error("unterminated string", pos + 1);
+            }
+            char c = line.charAt(pos++);
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c < 0x20) {
+                throw error("control character in string", pos);
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (pos >= line.length()) {
+                throw error("unterminated string", pos + 1);
+            }
+            char escaped = line.charAt(pos++);
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append(escaped);
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > line.length()) {
+                        throw error("invalid unicode escape", pos - 1);
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(line.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("invalid unicode escape", pos - 1);
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    throw error("invalid escape", pos - 1);
+            }
+        }
+    }
+
+    private char peek() {
+        return pos < line.length() ? line.charAt(pos) : 0;
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error("'" + c + "' expected", pos + 1);
+        }
+        pos++;
+    }
+
+    private void skipWhitespace() {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private IllegalArgumentException error(String message, int column) {
+        return new IllegalArgumentException("Line " + lineNumber + (column > 0 ? ", column " + column : "") + ": " + message);
+    }
+}
@@ -27,16 +27,31 @@ import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
 import org.apache.tomcat.vault.security.vault.SecurityVault;
 import org.apache.tomcat.vault.security.vault.SecurityVaultException;
 import org.apache.tomcat.vault.security.vault.SecurityVaultFactory;
+import org.apache.tomcat.vault.security.vault.VaultEntry;
+import org.apache.tomcat.vault.security.vault.VaultEntryHandler;
+import org.apache.tomcat.vault.util.Crypt2Encryptor;
+import org.apache.tomcat.vault.util.VaultReference;
 
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.PBEParameterSpec;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.jasypt.util.text.BasicTextEncryptor;
 
@@ -62,6 +77,8 @@ public final class VaultSession {
     private String vaultAlias;
     private byte[] handshakeKey;
 
+    private final Map<String, String> vaultOptions = new LinkedHashMap<String, String>();
+
     /**
      * Constructor to create VaultSession.
      *
@@ -178,6 +195,24 @@ public final class VaultSession {
         }
     }
 
+    /**
+     * Pass an additional option, such as {@link PicketBoxSecurityVault#JOURNAL}, to the vault. Options have to be
+     * added before startVaultSession() call and are part of the generated configuration.
+     *
+     * @param name
+     * @param value
+     * @throws Exception if the option is one of the options set by this session
+     */
+    public void addVaultOption(String name, String value) throws Exception {
+        if (name == null || value == null) {
+            throw new Exception("Vault option name and value have to be specified.");
+        }
+        if (getVaultOptionsMap().containsKey(name)) {
+            throw new Exception("Vault option " + name + " is set by the vault session.");
+        }
+        vaultOptions.put(name, value);
+    }
+
     /**
      * Start the vault with given alias.
      *
@@ -201,6 +236,9 @@ public final class VaultSession {
         options.put(PicketBoxSecurityVault.SALT, salt);
         options.put(PicketBoxSecurityVault.ITERATION_COUNT, Integer.toString(iterationCount));
         options.put(PicketBoxSecurityVault.ENC_FILE_DIR, encryptionDirectory);
+        for (Map.Entry<String, String> option : vaultOptions.entrySet()) {
+            options.put(option.getKey(), option.getValue());
+        }
         return options;
     }
 
@@ -242,6 +280,25 @@ public final class VaultSession {
         return vault.exists(vaultBlock, attributeName);
     }
 
+    /**
+     * List names of all secured attributes stored in given vault block. All of them are decrypted to make sure
+     * the vault block is readable. This method can be called only after successful startVaultSession() call.
+     *
+     * @param vaultBlock
+     * @return sorted attribute names, empty if there is no such vault block
+     * @throws Exception
+     */
+    public Set<String> listSecuredAttributes(String vaultBlock) throws Exception {
+        if (handshakeKey == null) {
+            throw new Exception("listSecuredAttributes method has to be called after successful startVaultSession() call.");
+        }
+        Map<String, char[]> values = vault.retrieveBlock(vaultBlock);
+        for (char[] value : values.values()) {
+            Arrays.fill(value, '\0');
+        }
+        return new TreeSet<String>(values.keySet());
+    }
+
     /**
      * Remove secured attribute with given vault block and attribute name. This method can be called only after
      * successful startVaultSession() call.
@@ -257,6 +314,80 @@ public final class VaultSession {
         vault.remove(vaultBlock, attributeName, handshakeKey);
     }
 
+    /**
+     * Store secured attributes read as JSON lines, see {@link JsonLines}. Lines are read as they are stored, so the
+     * input may hold any number of attributes, the vault data file is written once at the end. Attributes stored
+     * before an invalid line are kept. This method can be called only after successful startVaultSession() call.
+     *
+     * @param in
+     * @return number of stored attributes
+     * @throws SecurityVaultException if a line cannot be read or stored, the message tells how many attributes were
+     *                                stored before it and the cause is the original failure
+     * @throws Exception
+     */
+    public int importSecuredAttributes(Reader in) throws Exception {
+        if (handshakeKey == null) {
+            throw new Exception("importSecuredAttributes method has to be called after successful startVaultSession() call.");
+        }
+        final BufferedReader reader = new BufferedReader(in);
+        Iterator<VaultEntry> entries = new Iterator<VaultEntry>() {
+            private int lineNumber;
+            private VaultEntry next;
+
+            public boolean hasNext() {
+                while (next == null) {
+                    String line;
+                    try {
+                        line = reader.readLine();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    if (line == null) {
+                        return false;
+                    }
+                    lineNumber++;
+                    if (!line.trim().isEmpty()) {
+                        next = JsonLines.parseEntry(line, lineNumber);
+                    }
+                }
+                return true;
+            }
+
+            public VaultEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                VaultEntry entry = next;
+                next = null;
+                return entry;
+            }
+        };
+        return vault.storeAll(entries, handshakeKey);
+    }
+
+    /**
+     * Write all secured attributes as JSON lines, see {@link JsonLines}. This method can be called only after
+     * successful startVaultSession() call.
+     *
+     * @param out
+     * @param encrypted whether values are written as stored in the vault instead of in plain text, such values can
+     *                  only be imported into a vault with the same admin key
+     * @return number of written attributes
+     * @throws Exception
+     */
+    public int exportSecuredAttributes(final Writer out, boolean encrypted) throws Exception {
+        if (handshakeKey == null) {
+            throw new Exception("exportSecuredAttributes method has to be called after successful startVaultSession() call.");
+        }
+        int count = vault.exportAll(new VaultEntryHandler() {
+            public void handle(VaultEntry entry) throws IOException {
+                JsonLines.writeEntry(out, entry);
+            }
+        }, encrypted);
+        out.flush();
+        return count;
+    }
+
     /**
      * Encrypt a value using the CRYPT feature.
      *
@@ -266,17 +397,38 @@ public final class VaultSession {
      * @throws Exception if there is an issue retrieving the encryptionPassword from the vault.
      */
     public void encryptValueWithCRYPT(String encryptionPassword, String valueToEncrypt) throws Exception {
+        BasicTextEncryptor textEncryptor = new BasicTextEncryptor();
+        textEncryptor.setPassword(resolveEncryptionPassword(encryptionPassword));
+        System.out.println("Encrypted value: CRYPT::" + textEncryptor.encrypt(valueToEncrypt));
+    }
+
+    /**
+     * Encrypt a value using the CRYPT2 feature.
+     *
+     * @param encryptionPassword plain text password or VAULT:: reference to it
+     * @param valueToEncrypt
+     * @param salt               salt for the key derivation, values sharing it share the derived key, null for the
+     *                           default salt of the encryption password
+     * @param iterations         key derivation iteration count
+     * @throws Exception if there is an issue retrieving the encryptionPassword from the vault.
+     */
+    public void encryptValueWithCRYPT2(String encryptionPassword, String valueToEncrypt, byte[] salt, int iterations) throws Exception {
+        Crypt2Encryptor encryptor = new Crypt2Encryptor(resolveEncryptionPassword(encryptionPassword));
+        System.out.println("Encrypted value: " + VaultReference.CRYPT2_PREFIX + encryptor.encrypt(valueToEncrypt,
+                salt != null ? salt : encryptor.getDefaultSalt(), iterations));
+    }
+
+    private String resolveEncryptionPassword(String encryptionPassword) {
         String decryptedPassword = null;
 
         // if the encryptionPassword is in the VAULT, decrypt it
-        // This logic came from o.a.t.vault.util.PropertySourceVault, may need to move to a helper
-        // class to reduce duplication.
-        if (encryptionPassword.startsWith("VAULT::")) {
-            String vaultdata[] = encryptionPassword.split("::");
-            if (vaultdata.length == 3) {
+        if (VaultReference.isVaultReference(encryptionPassword)) {
+            VaultReference reference = VaultReference.parse(encryptionPassword);
+            if (reference != null) {
                 if (vault.isInitialized()) {
                     try {
-                        decryptedPassword = new String(vault.retrieve(vaultdata[1], vaultdata[2], null));
+                        decryptedPassword = new String(vault.retrieve(reference.getVaultBlock(), reference.getAttributeName(), null,
+                                reference.getVersion()));
                     } catch (SecurityVaultException e) {
                         System.out.println(e.getMessage());
                     }
@@ -285,10 +437,7 @@ public final class VaultSession {
         } else {
             decryptedPassword = encryptionPassword;
         }
-
-        BasicTextEncryptor textEncryptor = new BasicTextEncryptor();
-        textEncryptor.setPassword(decryptedPassword);
-        System.out.println("Encrypted value: CRYPT::" + textEncryptor.encrypt(valueToEncrypt));
+        return decryptedPassword;
     }
 
     /**
@@ -307,6 +456,8 @@ public final class VaultSession {
         System.out.println("Shared Key:" + keyAsString);
         System.out.println("Configuration should be done as follows:");
         System.out.println("VAULT::" + vaultBlock + "::" + attributeName + "::" + keyAsString);
+        System.out.println("All attributes of the vault block can be checked as:");
+        System.out.println("VAULT::" + vaultBlock + "::" + VaultReference.ALL_ATTRIBUTES);
         System.out.println("********************************************");
     }
 
@@ -332,6 +483,9 @@ public final class VaultSession {
         out.println("SALT=" + salt);
         out.println("ITERATION_COUNT=" + iterationCount);
         out.println("ENC_FILE_DIR=" + encryptionDirectory.replace("\\", "/"));
+        for (Map.Entry<String, String> option : vaultOptions.entrySet()) {
+            out.println(option.getKey() + "=" + option.getValue());
+        }
     }
 
 }
@@ -26,11 +26,26 @@ import org.apache.commons.cli.*;
 import org.apache.tomcat.vault.exception.VaultException;
 import org.apache.tomcat.vault.security.vault.SecurityVault;
 import org.apache.tomcat.vault.security.Util;
+import org.apache.tomcat.vault.util.Crypt2Encryptor;
+import org.apache.tomcat.vault.util.VaultReference;
 
+import java.io.BufferedWriter;
 import java.io.Console;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.InputMismatchException;
+import java.util.Properties;
 import java.util.Scanner;
+import java.util.Set;
 
 import org.jasypt.util.text.BasicTextEncryptor;
 
@@ -56,6 +71,13 @@ public class VaultTool {
     public static final String GENERATE_CONFIG_FILE = "generate-config";
     public static final String HELP_PARAM = "help";
     public static final String CRYPT = "encrypt";
+    public static final String CRYPT2 = "encrypt2";
+    public static final String CRYPT2_ITERATION_PARAM = "crypt2-iterations";
+    public static final String CRYPT2_SALT_PARAM = "crypt2-salt";
+    public static final String VAULT_OPTION_PARAM = "vault-option";
+    public static final String IMPORT_PARAM = "import";
+    public static final String EXPORT_PARAM = "export";
+    public static final String RAW_PARAM = "raw";
 
     private static boolean skipSummary = false;
 
@@ -186,8 +208,15 @@ public class VaultTool {
         options.addOption("s", SALT_PARAM, true, "8 character salt");
         options.addOption("i", ITERATION_PARAM, true, "Iteration count");
         options.addOption("A", ALIAS_PARAM, true, "Vault keystore alias");
+        options.addOption(null, CRYPT2_ITERATION_PARAM, true, "Key derivation iteration count for the CRYPT2 feature");
+        options.addOption(null, CRYPT2_SALT_PARAM, true, "Key derivation salt for the CRYPT2 feature, derived from the encryption password by default");
         options.addOption("b", VAULT_BLOCK_PARAM, true, "Vault block");
-        options.addOption("a", ATTRIBUTE_PARAM, true, "Attribute name");
+        options.addOption("a", ATTRIBUTE_PARAM, true, "Attribute name, \"*\" lists the whole vault block together with --" + CHECK_SEC_ATTR_EXISTS_PARAM);
+        Option o = new Option("o", VAULT_OPTION_PARAM, true, "Additional vault option KEY=VALUE, such as JOURNAL=true, may be repeated");
+        o.setArgs(2);
+        o.setValueSeparator('=');
+        options.addOption(o);
+        options.addOption(null, RAW_PARAM, false, "Export values as stored in the vault instead of in plain text together with --" + EXPORT_PARAM);
 
         OptionGroup og = new OptionGroup();
         Option x = new Option("x", SEC_ATTR_VALUE_PARAM, true, "Secured attribute value (such as password) to store");
@@ -196,12 +225,18 @@ public class VaultTool {
         Option g = new Option("g", GENERATE_CONFIG_FILE, true, "Path for generated config file");
         Option h = new Option("h", HELP_PARAM, false, "Help");
         Option E = new Option("E", CRYPT, false, "Encrypt value using CRYPT feature");
+        Option E2 = new Option(null, CRYPT2, false, "Encrypt value using CRYPT2 feature");
+        Option im = new Option(null, IMPORT_PARAM, true, "Import secured attributes from a JSON lines file, \"-\" reads standard input");
+        Option ex = new Option(null, EXPORT_PARAM, true, "Export secured attributes to a new JSON lines file, \"-\" writes standard output");
         og.addOption(x);
         og.addOption(c);
         og.addOption(r);
         og.addOption(g);
         og.addOption(h);
         og.addOption(E);
+        og.addOption(E2);
+        og.addOption(im);
+        og.addOption(ex);
         og.setRequired(true);
         options.addOptionGroup(og);
     }
@@ -216,7 +251,7 @@ public class VaultTool {
         }
 
         // If using the CRYPT feature without specifying a keystore, you don't need the vault
-        if (cmdLine.hasOption(CRYPT) && !cmdLine.hasOption((KEYSTORE_PARAM))) {
+        if ((cmdLine.hasOption(CRYPT) || cmdLine.hasOption(CRYPT2)) && !cmdLine.hasOption((KEYSTORE_PARAM))) {
             // Regardless of the return here, we do not need to print summary for this command option.
             // Also, if we forget setting skipSummary, the nonInteractiveSession will cause an NPE since there is no vault.
             skipSummary = true;
@@ -229,6 +264,14 @@ public class VaultTool {
                     return 100;
                 }
 
+                if (cmdLine.hasOption(CRYPT2)) {
+                    Crypt2Encryptor encryptor = new Crypt2Encryptor(cmdLine.getArgs()[0]);
+                    byte[] salt = crypt2Salt();
+                    System.out.println("Encrypted value: " + VaultReference.CRYPT2_PREFIX + encryptor.encrypt(cmdLine.getArgs()[1],
+                            salt != null ? salt : encryptor.getDefaultSalt(), crypt2Iterations()));
+                    return 0;
+                }
+
                 BasicTextEncryptor textEncryptor = new BasicTextEncryptor();
                 textEncryptor.setPassword(cmdLine.getArgs()[0]);
                 System.out.println("Encrypted value: CRYPT::" + textEncryptor.encrypt(cmdLine.getArgs()[1]));
@@ -250,13 +293,29 @@ public class VaultTool {
         int iterationCount = Integer.parseInt(cmdLine.getOptionValue(ITERATION_PARAM, "23"));
 
         nonInteractiveSession = new VaultSession(keystoreURL, keystorePassword, encryptionDirectory, salt, iterationCount);
+        Properties vaultOptions = cmdLine.getOptionProperties(VAULT_OPTION_PARAM);
+        for (String name : vaultOptions.stringPropertyNames()) {
+            nonInteractiveSession.addVaultOption(name, vaultOptions.getProperty(name));
+        }
 
         nonInteractiveSession.startVaultSession(cmdLine.getOptionValue(ALIAS_PARAM, "vault"));
 
         String vaultBlock = cmdLine.getOptionValue(VAULT_BLOCK_PARAM, "vb");
         String attributeName = cmdLine.getOptionValue(ATTRIBUTE_PARAM, "password");
 
-        if (cmdLine.hasOption(CHECK_SEC_ATTR_EXISTS_PARAM)) {
+        if (cmdLine.hasOption(CHECK_SEC_ATTR_EXISTS_PARAM) && VaultReference.ALL_ATTRIBUTES.equals(attributeName)) {
+            // list the whole vault block
+            Set<String> attributes = nonInteractiveSession.listSecuredAttributes(vaultBlock);
+            if (attributes.isEmpty()) {
+                System.out.println("Vault block does not exist.");
+                return 5;
+            }
+            System.out.println("Secured attributes in vault block " + vaultBlock + ":");
+            for (String attribute : attributes) {
+                System.out.println(VaultReference.VAULT_PREFIX + vaultBlock + "::" + attribute + "::");
+            }
+            return 0;
+        } else if (cmdLine.hasOption(CHECK_SEC_ATTR_EXISTS_PARAM)) {
             // check password
             if (nonInteractiveSession.checkSecuredAttribute(vaultBlock, attributeName)) {
                 System.out.println("Secured attribute already exists.");
@@ -281,6 +340,34 @@ public class VaultTool {
                 ps.close();
             }
             return 0;
+        } else if (cmdLine.hasOption(IMPORT_PARAM)) {
+            String file = cmdLine.getOptionValue(IMPORT_PARAM);
+            Reader in = "-".equals(file) ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                    : Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8);
+            try {
+                int count = nonInteractiveSession.importSecuredAttributes(in);
+                System.out.println("Imported " + count + " secured attributes.");
+            } finally {
+                in.close();
+            }
+            return 0;
+        } else if (cmdLine.hasOption(EXPORT_PARAM)) {
+            String file = cmdLine.getOptionValue(EXPORT_PARAM);
+            if ("-".equals(file)) {
+                // nothing but the attributes on standard output
+                skipSummary = true;
+                Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+                nonInteractiveSession.exportSecuredAttributes(out, cmdLine.hasOption(RAW_PARAM));
+                return 0;
+            }
+            Writer out = Files.newBufferedWriter(createPrivateFile(file), StandardCharsets.UTF_8);
+            try {
+                int count = nonInteractiveSession.exportSecuredAttributes(out, cmdLine.hasOption(RAW_PARAM));
+                System.out.println("Exported " + count + " secured attributes to " + file + ".");
+            } finally {
+                out.close();
+            }
+            return 0;
         } else if (cmdLine.hasOption(CRYPT)) {
             // Regardless of the return here, we do not need to print summary for this command option
             skipSummary = true;
@@ -292,12 +379,59 @@ public class VaultTool {
                 System.out.println("Arguments: encryption password, value to encrypt");
                 return 100;
             }
+        } else if (cmdLine.hasOption(CRYPT2)) {
+            // Regardless of the return here, we do not need to print summary for this command option
+            skipSummary = true;
+            // We need the encryption password and a value to encrypt
+            if (cmdLine.getArgs().length == 2) {
+                nonInteractiveSession.encryptValueWithCRYPT2(cmdLine.getArgs()[0], cmdLine.getArgs()[1], crypt2Salt(), crypt2Iterations());
+                return 0;
+            } else {
+                System.out.println("Arguments: encryption password, value to encrypt");
+                return 100;
+            }
         }
         // Printing summary is not required here
         skipSummary = true;
         return 100;
     }
 
+    /**
+     * Salt for the CRYPT2 key derivation. It is separate from the salt masking the keystore password, values
+     * sharing a salt let the vault derive the key only once.
+     *
+     * @return null for the default salt of the encryption password, see {@link Crypt2Encryptor#getDefaultSalt()}
+     */
+    private byte[] crypt2Salt() {
+        if (cmdLine.hasOption(CRYPT2_SALT_PARAM)) {
+            return cmdLine.getOptionValue(CRYPT2_SALT_PARAM).getBytes(StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    /**
+     * Create a file only its owner can read, where the file system supports POSIX permissions. Existing files are
+     * not overwritten.
+     *
+     * @param file
+     * @return
+     * @throws Exception
+     */
+    private static Path createPrivateFile(String file) throws Exception {
+        Path path = Paths.get(file);
+        try {
+            return Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            return Files.createFile(path);
+        } catch (FileAlreadyExistsException e) {
+            throw new Exception("File " + file + " already exists.");
+        }
+    }
+
+    private int crypt2Iterations() {
+        return Integer.parseInt(cmdLine.getOptionValue(CRYPT2_ITERATION_PARAM, String.valueOf(Crypt2Encryptor.DEFAULT_ITERATIONS)));
+    }
+
     private void summary() {
         nonInteractiveSession.vaultConfigurationDisplay();
     }
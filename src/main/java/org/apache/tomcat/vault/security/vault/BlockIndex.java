@@ -0,0 +1,148 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.vault.util.StringUtil;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent vault block to attribute name index. Lookups do not build any composite key.
+ * <p>
+ * Vault data used to be keyed by "vaultBlock::attributeName", which cannot tell apart a separator in the
+ * vault block from one in the attribute name. To stay compatible, a vault block containing the separator is
+ * always split on its first separator and the rest is prepended to the attribute name, the same way keys read
+ * from old vault data are split. Empty blocks are removed.
+ *
+ * @param <V> value type
+ */
+final class BlockIndex<V> {
+
+    private static final String SEPARATOR = StringUtil.PROPERTY_DEFAULT_SEPARATOR;
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, V>> blocks = new ConcurrentHashMap<String, ConcurrentHashMap<String, V>>();
+
+    V get(String vaultBlock, String attributeName) {
+        int sep = vaultBlock.indexOf(SEPARATOR);
+        if (sep >= 0) {
+            return get(vaultBlock.substring(0, sep), vaultBlock.substring(sep + SEPARATOR.length()) + SEPARATOR + attributeName);
+        }
+        Map<String, V> attributes = blocks.get(vaultBlock);
+        return attributes == null ? null : attributes.get(attributeName);
+    }
+
+    /**
+     * @return previous value or null
+     */
+    V put(String vaultBlock, final String attributeName, final V value) {
+        int sep = vaultBlock.indexOf(SEPARATOR);
+        if (sep >= 0) {
+            return put(vaultBlock.substring(0, sep), vaultBlock.substring(sep + SEPARATOR.length()) + SEPARATOR + attributeName, value);
+        }
+        final Object[] previous = new Object[1];
+        // compute keeps the put atomic with respect to remove() dropping an emptied block
+        blocks.compute(vaultBlock, (block, attributes) -> {
+            if (attributes == null) {
+                attributes = new ConcurrentHashMap<String, V>();
+            }
+            previous[0] = attributes.put(attributeName, value);
+            return attributes;
+        });
+        return cast(previous[0]);
+    }
+
+    /**
+     * @return removed value or null if there was no such entry
+     */
+    V remove(String vaultBlock, final String attributeName) {
+        int sep = vaultBlock.indexOf(SEPARATOR);
+        if (sep >= 0) {
+            return remove(vaultBlock.substring(0, sep), vaultBlock.substring(sep + SEPARATOR.length()) + SEPARATOR + attributeName);
+        }
+        final Object[] removed = new Object[1];
+        blocks.computeIfPresent(vaultBlock, (block, attributes) -> {
+            removed[0] = attributes.remove(attributeName);
+            return attributes.isEmpty() ? null : attributes;
+        });
+        return cast(removed[0]);
+    }
+
+    Set<String> getBlocks() {
+        return Collections.unmodifiableSet(blocks.keySet());
+    }
+
+    /**
+     * @return read only live view of the block, empty map if there is no such block. A vault block containing the
+     * separator is split as by {@link #get(String, String)}, a snapshot of its entries is returned then.
+     */
+    Map<String, V> getBlock(String vaultBlock) {
+        int sep = vaultBlock.indexOf(SEPARATOR);
+        if (sep >= 0) {
+            return Collections.unmodifiableMap(subBlock(getBlock(vaultBlock.substring(0, sep)),
+                    vaultBlock.substring(sep + SEPARATOR.length())));
+        }
+        Map<String, V> attributes = blocks.get(vaultBlock);
+        return attributes == null ? Collections.<String, V>emptyMap() : Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * Entries of a vault block containing the separator, out of the entries of the vault block before its first
+     * separator. These are the attributes whose names start with the rest of the vault block and the separator,
+     * keyed by the remaining name.
+     *
+     * @param attributes entries of the vault block before the first separator
+     * @param rest       vault block after the first separator
+     * @return modifiable map
+     */
+    static <V> Map<String, V> subBlock(Map<String, V> attributes, String rest) {
+        String prefix = rest + SEPARATOR;
+        Map<String, V> result = new HashMap<String, V>();
+        for (Map.Entry<String, V> entry : attributes.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                result.put(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    int size() {
+        int size = 0;
+        for (Map<String, V> attributes : blocks.values()) {
+            size += attributes.size();
+        }
+        return size;
+    }
+
+    void clear() {
+        blocks.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V cast(Object value) {
+        return (V) value;
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.util.res.StringManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Vault data file layout made of independently compressed and checksummed chunks (version 5). A damaged chunk only
+ * loses the entries stored in it, the directory names them, so they can be reported while all other entries are
+ * loaded. Chunks are verified and inflated in parallel.
+ * <p>
+ * Numbers are big-endian, strings are written the way {@link VaultDataFormat} writes them:
+ * <pre>
+ * magic "TVLT" | version (int) | flags (int) | generation (long)
+ * directory length (int) | compressed directory length (int) | compressed directory
+ * CRC32 of all preceding bytes (int)
+ * chunks: compressed chunk...
+ * </pre>
+ * The directory and every chunk are deflated separately. Directory:
+ * <pre>
+ * block count (int) | block names (string)...
+ * chunk count (int) | chunks: entry count (int) | entries: block index (int) | attribute name (string)
+ *                           | chunk length (int) | compressed chunk length (int) | CRC32 of the compressed chunk (int)
+ * </pre>
+ * A chunk holds the values of its entries in directory order, each prefixed by its length (int). Block index -1
+ * marks an entry without vault block, as in {@link VaultDataFormat}. The directory has to be intact to read the file
+ * at all.
+ */
+final class CompressedVaultData {
+
+    private static final StringManager sm = StringManager.getManager(CompressedVaultData.class.getPackage().getName());
+
+    static final int VERSION = 5;
+
+    private static final int NO_BLOCK = -1;
+    private static final int HEADER_SIZE = 28;
+    // uncompressed bytes per chunk, a chunk is closed by the first entry reaching it
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private CompressedVaultData() {
+    }
+
+    /**
+     * Write vault data in the version 5 layout.
+     *
+     * @param content    entries grouped by vault block, not changed while written
+     * @param unindexed  entries without vault block, not changed while written
+     * @param generation number of times the vault data file has been written
+     * @param os         stream to write to, it is not closed
+     * @throws IOException
+     */
+    static void write(Map<String, Map<String, byte[]>> content, Map<String, byte[]> unindexed, long generation,
+                      OutputStream os) throws IOException {
+        List<String> blocks = new ArrayList<String>(content.keySet());
+        ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream();
+        DataOutputStream directory = new DataOutputStream(directoryBytes);
+        directory.writeInt(blocks.size());
+        for (String block : blocks) {
+            VaultDataFormat.writeString(directory, block);
+        }
+
+        ChunkWriter chunks = new ChunkWriter();
+        for (int i = 0; i < blocks.size(); i++) {
+            for (Map.Entry<String, byte[]> entry : content.get(blocks.get(i)).entrySet()) {
+                chunks.add(i, entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, byte[]> entry : unindexed.entrySet()) {
+            chunks.add(NO_BLOCK, entry.getKey(), entry.getValue());
+        }
+        chunks.finish();
+        directory.writeInt(chunks.count);
+        chunks.directory.writeTo(directory);
+        directory.flush();
+        byte[] compressedDirectory = deflate(directoryBytes.toByteArray(), Deflater.DEFAULT_COMPRESSION);
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(HEADER_SIZE + compressedDirectory.length + 4);
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(VaultDataFormat.MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(VaultDataFormat.FLAG_GENERATION);
+        header.writeLong(generation);
+        header.writeInt(directoryBytes.size());
+        header.writeInt(compressedDirectory.length);
+        header.write(compressedDirectory);
+        CRC32 crc = new CRC32();
+        crc.update(headerBytes.toByteArray());
+        header.writeInt((int) crc.getValue());
+        headerBytes.writeTo(os);
+        chunks.data.writeTo(os);
+        os.flush();
+    }
+
+    /**
+     * Read vault data in the version 5 layout. Chunks are verified on the worker pool of the context, entries of
+     * damaged or missing chunks are skipped and reported to the context.
+     *
+     * @param channel channel of the vault data file, it is not closed
+     * @param context
+     * @return the intact entries
+     * @throws IOException if the header or the directory is damaged
+     */
+    static SecurityVaultData read(FileChannel channel, VaultDataCodec.Context context) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE + 4) {
+            throw new IOException(sm.getString("vaultDataFormat.truncated"));
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(sm.getString("vaultDataFormat.corrupted"));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+            // read the whole file
+        }
+        buffer.flip();
+
+        final byte[] file = buffer.array();
+        final int length = buffer.limit();
+        final String[] blocks;
+        final List<Chunk> chunks = new ArrayList<Chunk>();
+        try {
+            if (buffer.getInt() != VaultDataFormat.MAGIC) {
+                throw new IOException(sm.getString("vaultDataFormat.notVaultData"));
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(sm.getString("vaultDataFormat.unsupportedVersion", String.valueOf(version), String.valueOf(VERSION)));
+            }
+            buffer.getInt();
+            buffer.getLong();
+            int directoryLength = buffer.getInt();
+            int compressedLength = buffer.getInt();
+            if (directoryLength < 0 || compressedLength < 0 || compressedLength > length - HEADER_SIZE - 4) {
+                throw new IOException(sm.getString("vaultDataFormat.truncated"));
+            }
+            CRC32 crc = new CRC32();
+            crc.update(file, 0, HEADER_SIZE + compressedLength);
+            if (buffer.getInt(HEADER_SIZE + compressedLength) != (int) crc.getValue()) {
+                throw new IOException(sm.getString("vaultDataFormat.checksumMismatch"));
+            }
+            ByteBuffer directory = ByteBuffer.wrap(inflate(file, HEADER_SIZE, compressedLength, directoryLength));
+
+            blocks = new String[readCount(directory)];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = readString(directory);
+            }
+            int chunkCount = readCount(directory);
+            long offset = HEADER_SIZE + compressedLength + 4;
+            for (int i = 0; i < chunkCount; i++) {
+                int entryCount = readCount(directory);
+                int[] blockIndexes = new int[entryCount];
+                String[] attributeNames = new String[entryCount];
+                for (int j = 0; j < entryCount; j++) {
+                    blockIndexes[j] = directory.getInt();
+                    if (blockIndexes[j] < NO_BLOCK || blockIndexes[j] >= blocks.length) {
+                        throw new IOException(sm.getString("vaultDataFormat.corrupted"));
+                    }
+                    attributeNames[j] = readString(directory);
+                }
+                // chunks are bounded by the file, not by the directory
+                int chunkLength = directory.getInt();
+                int compressedChunkLength = directory.getInt();
+                if (chunkLength < 0 || compressedChunkLength < 0 || compressedChunkLength > length) {
+                    throw new IOException(sm.getString("vaultDataFormat.corrupted"));
+                }
+                int checksum = directory.getInt();
+                chunks.add(new Chunk(blockIndexes, attributeNames, offset, chunkLength, compressedChunkLength, checksum));
+                offset += compressedChunkLength;
+            }
+        } catch (BufferUnderflowException | DataFormatException e) {
+            throw new IOException(sm.getString("vaultDataFormat.corrupted"), e);
+        }
+
+        final byte[][][] values = new byte[chunks.size()][][];
+        ExecutorService pool = context.getWorkerPool();
+        if (pool == null || chunks.size() < 2) {
+            for (int i = 0; i < chunks.size(); i++) {
+                values[i] = chunks.get(i).read(file, length);
+            }
+        } else {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks.size());
+            for (int i = 0; i < chunks.size(); i++) {
+                final int chunk = i;
+                tasks.add(new Callable<Void>() {
+                    public Void call() {
+                        values[chunk] = chunks.get(chunk).read(file, length);
+                        return null;
+                    }
+                });
+            }
+            try {
+                for (Future<Void> f : pool.invokeAll(tasks)) {
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+
+        SecurityVaultData data = new SecurityVaultData();
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            for (int j = 0; j < chunk.attributeNames.length; j++) {
+                int block = chunk.blockIndexes[j];
+                String attributeName = chunk.attributeNames[j];
+                if (values[i] == null) {
+                    context.reportDamaged(block == NO_BLOCK ? null : blocks[block], attributeName);
+                } else if (block == NO_BLOCK) {
+                    data.addUnindexedData(attributeName, values[i][j]);
+                } else {
+                    data.addVaultData(null, blocks[block], attributeName, values[i][j]);
+                }
+            }
+        }
+        return data;
+    }
+
+    private static byte[] deflate(byte[] bytes, int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return exactly length inflated bytes
+     * @throws DataFormatException if the compressed data is damaged or does not inflate to length bytes
+     */
+    private static byte[] inflate(byte[] bytes, int offset, int compressedLength, int length) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, offset, compressedLength);
+            byte[] inflated = new byte[length];
+            byte[] excess = new byte[1];
+            int n = 0;
+            while (!inflater.finished()) {
+                int read = n < length ? inflater.inflate(inflated, n, length - n) : inflater.inflate(excess);
+                if (n == length && read > 0) {
+                    throw new DataFormatException();
+                }
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException();
+                }
+                n += read;
+            }
+            if (n != length) {
+                throw new DataFormatException();
+            }
+            return inflated;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int readCount(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        // neither entries nor bytes can outnumber the bytes of the directory
+        if (count < 0 || count > buffer.capacity()) {
+            throw new BufferUnderflowException();
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String str = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return str;
+    }
+
+    /**
+     * Splits entries into chunks, collecting the directory part of the chunks and the compressed chunks.
+     */
+    private static final class ChunkWriter {
+        final ByteArrayOutputStream directory = new ByteArrayOutputStream();
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int count;
+
+        private final ByteArrayOutputStream keys = new ByteArrayOutputStream();
+        private final DataOutputStream keysOut = new DataOutputStream(keys);
+        private final ByteArrayOutputStream values = new ByteArrayOutputStream(CHUNK_SIZE + 1024);
+        private final DataOutputStream valuesOut = new DataOutputStream(values);
+        private int entries;
+
+        void add(int block, String attributeName, byte[] value) throws IOException {
+            keysOut.writeInt(block);
+            VaultDataFormat.writeString(keysOut, attributeName);
+            valuesOut.writeInt(value.length);
+            valuesOut.write(value);
+            entries++;
+            if (values.size() >= CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        void finish() throws IOException {
+            if (entries > 0) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            // values are mostly ciphertext, which hardly compresses
+            byte[] compressed = deflate(values.toByteArray(), Deflater.BEST_SPEED);
+            CRC32 crc = new CRC32();
+            crc.update(compressed);
+            DataOutputStream out = new DataOutputStream(directory);
+            out.writeInt(entries);
+            keys.writeTo(out);
+            out.writeInt(values.size());
+            out.writeInt(compressed.length);
+            out.writeInt((int) crc.getValue());
+            data.write(compressed);
+            keys.reset();
+            values.reset();
+            entries = 0;
+            count++;
+        }
+    }
+
+    /**
+     * Directory entry of a chunk.
+     */
+    private static final class Chunk {
+        final int[] blockIndexes;
+        final String[] attributeNames;
+        final long offset;
+        final int length;
+        final int compressedLength;
+        final int checksum;
+
+        Chunk(int[] blockIndexes, String[] attributeNames, long offset, int length, int compressedLength, int checksum) {
+            this.blockIndexes = blockIndexes;
+            this.attributeNames = attributeNames;
+            this.offset = offset;
+            this.length = length;
+            this.compressedLength = compressedLength;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @return values of the chunk, null if the chunk is damaged or beyond the end of the file
+         */
+        byte[][] read(byte[] file, int fileLength) {
+            if (offset + compressedLength > fileLength) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(file, (int) offset, compressedLength);
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(inflate(file, (int) offset, compressedLength, length));
+                byte[][] values = new byte[attributeNames.length][];
+                for (int i = 0; i < values.length; i++) {
+                    int valueLength = buffer.getInt();
+                    if (valueLength < 0 || valueLength > buffer.remaining()) {
+                        return null;
+                    }
+                    values[i] = new byte[valueLength];
+                    buffer.get(values[i]);
+                }
+                return buffer.hasRemaining() ? null : values;
+            } catch (DataFormatException | BufferUnderflowException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.util.res.StringManager;
+import org.apache.tomcat.vault.util.StringUtil;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Read only vault data backed by a memory mapped vault data file in the indexed layout (version 3). Only the
+ * header and the entries without vault block are read when the file is mapped, a lookup probes the hash index
+ * and copies out the one value asked for.
+ * <p>
+ * Layout, numbers are big-endian and strings are written the way {@link VaultDataFormat} writes them:
+ * <pre>
+ * header: magic "TVLT" | version (int) | flags (int) | [generation (long)] | entry count (int)
+ *         | unindexed count (int) | slot count (int, power of two) | CRC32 of the preceding header bytes (int)
+ * index:  slots of hash (int) | record offset (long, 0 marks a free slot), linear probing
+ * values: records of vault block (string) | attribute name (string) | value length (int) | value
+ *         | CRC32 of the record (int), entries without vault block first
+ * </pre>
+ * The generation is present when flags contain {@link VaultDataFormat#FLAG_GENERATION}, at the same position as in
+ * the version 2 layout. Records are verified when they are read. Mapped buffers are only read through duplicates, so lookups are
+ * safe from any thread.
+ * <p>
+ * On Windows a file cannot be replaced while it is mapped, and a mapping is only released when its buffer is garbage
+ * collected. The file is read into the heap there instead, lookups still only decode the value asked for.
+ */
+final class MappedVaultData implements StoredVaultData {
+
+    private static final StringManager sm = StringManager.getManager(MappedVaultData.class.getPackage().getName());
+
+    static final int VERSION = 3;
+
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+    private static final String SEPARATOR = StringUtil.PROPERTY_DEFAULT_SEPARATOR;
+    private static final int HEADER_SIZE = 28;
+    private static final int SLOT_SIZE = 12;
+    private static final int MIN_SLOTS = 16;
+    private static final boolean MAP_FILES = !System.getProperty("os.name", "").toLowerCase(Locale.ENGLISH).startsWith("windows");
+
+    private final ByteBuffer buffer;
+    private final int entryCount;
+    private final int slotCount;
+    private final int indexOffset;
+    private final int entriesOffset;
+    private final Map<String, byte[]> unindexedData;
+
+    private MappedVaultData(ByteBuffer buffer, int entryCount, int slotCount, int indexOffset, int entriesOffset,
+                            Map<String, byte[]> unindexedData) {
+        this.buffer = buffer;
+        this.entryCount = entryCount;
+        this.slotCount = slotCount;
+        this.indexOffset = indexOffset;
+        this.entriesOffset = entriesOffset;
+        this.unindexedData = unindexedData;
+    }
+
+    /**
+     * Map a vault data file in the indexed layout. The mapping stays valid after the channel is closed. On Windows
+     * the file is read into the heap instead, so that it can still be replaced.
+     *
+     * @param channel
+     * @return
+     * @throws IOException if the file is not in the indexed layout or its header is damaged
+     */
+    static MappedVaultData map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(sm.getString("mappedVaultData.tooLarge", String.valueOf(size)));
+        }
+        if (size < HEADER_SIZE) {
+            throw new IOException(sm.getString("vaultDataFormat.truncated"));
+        }
+        ByteBuffer buffer = MAP_FILES ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : read(channel, (int) size);
+        if (buffer.getInt(0) != VaultDataFormat.MAGIC) {
+            throw new IOException(sm.getString("vaultDataFormat.notVaultData"));
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException(sm.getString("vaultDataFormat.unsupportedVersion", String.valueOf(version), String.valueOf(VERSION)));
+        }
+        int headerSize = headerSize(buffer.getInt(8));
+        if (size < headerSize) {
+            throw new IOException(sm.getString("vaultDataFormat.truncated"));
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer header = buffer.duplicate();
+        header.limit(headerSize - 4);
+        crc.update(header);
+        int entryCount = buffer.getInt(headerSize - 16);
+        int unindexedCount = buffer.getInt(headerSize - 12);
+        int slotCount = buffer.getInt(headerSize - 8);
+        if (buffer.getInt(headerSize - 4) != (int) crc.getValue()) {
+            throw new IOException(sm.getString("vaultDataFormat.checksumMismatch"));
+        }
+        if (entryCount < 0 || unindexedCount < 0 || slotCount < MIN_SLOTS || Integer.bitCount(slotCount) != 1
+                || slotCount <= entryCount || (long) headerSize + (long) slotCount * SLOT_SIZE > size) {
+            throw new IOException(sm.getString("vaultDataFormat.corrupted"));
+        }
+
+        Map<String, byte[]> unindexedData = new HashMap<String, byte[]>();
+        int offset = headerSize + slotCount * SLOT_SIZE;
+        try {
+            for (int i = 0; i < unindexedCount; i++) {
+                Record record = new Record(buffer, offset);
+                unindexedData.put(record.attributeName(), record.value());
+                offset = record.end;
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        return new MappedVaultData(buffer, entryCount, slotCount, headerSize, offset, unindexedData);
+    }
+
+    private static ByteBuffer read(FileChannel channel, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                throw new IOException(sm.getString("vaultDataFormat.truncated"));
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @return entries without vault block, read when the file was mapped
+     */
+    public Map<String, byte[]> getUnindexedData() {
+        return unindexedData;
+    }
+
+    int size() {
+        return entryCount;
+    }
+
+    /**
+     * Look up a value, vault blocks containing the separator are split the same way {@link BlockIndex} does.
+     *
+     * @return copy of the value or null
+     * @throws IllegalStateException if the file is damaged
+     */
+    public byte[] get(String vaultBlock, String attributeName) {
+        int sep = vaultBlock.indexOf(SEPARATOR);
+        if (sep >= 0) {
+            return get(vaultBlock.substring(0, sep), vaultBlock.substring(sep + SEPARATOR.length()) + SEPARATOR + attributeName);
+        }
+        byte[] block = vaultBlock.getBytes(UTF8);
+        byte[] attribute = attributeName.getBytes(UTF8);
+        int hash = hash(vaultBlock, attributeName);
+        int mask = slotCount - 1;
+        for (int i = 0, slot = spread(hash) & mask; i < slotCount; i++, slot = (slot + 1) & mask) {
+            int slotOffset = indexOffset + slot * SLOT_SIZE;
+            long offset = buffer.getLong(slotOffset + 4);
+            if (offset == 0) {
+                return null;
+            }
+            if (buffer.getInt(slotOffset) == hash) {
+                Record record = new Record(buffer, checkOffset(offset));
+                if (record.matches(block, attribute)) {
+                    return record.value();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read all entries of one vault block, scans all records.
+     *
+     * @param vaultBlock
+     * @return
+     */
+    public Map<String, byte[]> getBlock(String vaultBlock) {
+        int sep = vaultBlock.indexOf(SEPARATOR);
+        if (sep >= 0) {
+            return BlockIndex.subBlock(getBlock(vaultBlock.substring(0, sep)), vaultBlock.substring(sep + SEPARATOR.length()));
+        }
+        byte[] block = vaultBlock.getBytes(UTF8);
+        Map<String, byte[]> attributes = new HashMap<String, byte[]>();
+        int offset = entriesOffset;
+        for (int i = 0; i < entryCount; i++) {
+            Record record = new Record(buffer, offset);
+            if (record.inBlock(block)) {
+                attributes.put(record.attributeName(), record.value());
+            }
+            offset = record.end;
+        }
+        return attributes;
+    }
+
+    /**
+     * Read all entries grouped by vault block, scans all records.
+     *
+     * @return
+     */
+    public Map<String, Map<String, byte[]>> getAll() {
+        Map<String, Map<String, byte[]>> content = new HashMap<String, Map<String, byte[]>>();
+        int offset = entriesOffset;
+        for (int i = 0; i < entryCount; i++) {
+            Record record = new Record(buffer, offset);
+            String vaultBlock = record.vaultBlock();
+            Map<String, byte[]> attributes = content.get(vaultBlock);
+            if (attributes == null) {
+                attributes = new HashMap<String, byte[]>();
+                content.put(vaultBlock, attributes);
+            }
+            attributes.put(record.attributeName(), record.value());
+            offset = record.end;
+        }
+        return content;
+    }
+
+    /**
+     * Write vault data in the indexed layout.
+     *
+     * @param content   entries grouped by vault block, vault blocks must not contain the separator
+     * @param unindexed  entries without vault block
+     * @param generation number of times the vault data file has been written
+     * @param os         stream to write to, it is not closed
+     * @throws IOException
+     */
+    static void write(Map<String, Map<String, byte[]>> content, Map<String, byte[]> unindexed, long generation,
+                      OutputStream os) throws IOException {
+        List<byte[][]> records = new ArrayList<byte[][]>();
+        List<Integer> hashes = new ArrayList<Integer>();
+        for (Map.Entry<String, Map<String, byte[]>> block : content.entrySet()) {
+            byte[] vaultBlock = block.getKey().getBytes(UTF8);
+            for (Map.Entry<String, byte[]> entry : block.getValue().entrySet()) {
+                records.add(new byte[][]{vaultBlock, entry.getKey().getBytes(UTF8), entry.getValue()});
+                hashes.add(hash(block.getKey(), entry.getKey()));
+            }
+        }
+        int entryCount = records.size();
+        int slotCount = MIN_SLOTS;
+        while (slotCount < entryCount * 2) {
+            slotCount <<= 1;
+        }
+
+        // offsets of the indexed records follow the records without vault block
+        int headerSize = headerSize(VaultDataFormat.FLAG_GENERATION);
+        long offset = headerSize + (long) slotCount * SLOT_SIZE;
+        List<byte[][]> unindexedRecords = new ArrayList<byte[][]>();
+        for (Map.Entry<String, byte[]> entry : unindexed.entrySet()) {
+            byte[][] record = new byte[][]{new byte[0], entry.getKey().getBytes(UTF8), entry.getValue()};
+            unindexedRecords.add(record);
+            offset += recordSize(record);
+        }
+        int[] slotHashes = new int[slotCount];
+        long[] slotOffsets = new long[slotCount];
+        int mask = slotCount - 1;
+        for (int i = 0; i < entryCount; i++) {
+            int hash = hashes.get(i);
+            int slot = spread(hash) & mask;
+            while (slotOffsets[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slotHashes[slot] = hash;
+            slotOffsets[slot] = offset;
+            offset += recordSize(records.get(i));
+        }
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException(sm.getString("mappedVaultData.tooLarge", String.valueOf(offset)));
+        }
+
+        DataOutputStream out = new DataOutputStream(os);
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putInt(VaultDataFormat.MAGIC).putInt(VERSION).putInt(VaultDataFormat.FLAG_GENERATION)
+                .putLong(generation).putInt(entryCount).putInt(unindexedRecords.size()).putInt(slotCount);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, header.position());
+        header.putInt((int) crc.getValue());
+        out.write(header.array());
+        for (int slot = 0; slot < slotCount; slot++) {
+            out.writeInt(slotHashes[slot]);
+            out.writeLong(slotOffsets[slot]);
+        }
+        for (byte[][] record : unindexedRecords) {
+            writeRecord(out, record);
+        }
+        for (byte[][] record : records) {
+            writeRecord(out, record);
+        }
+        out.flush();
+    }
+
+    private static long recordSize(byte[][] record) {
+        return 4 + record[0].length + 4 + record[1].length + 4 + record[2].length + 4;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[][] record) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate((int) recordSize(record));
+        bytes.putInt(record[0].length).put(record[0]).putInt(record[1].length).put(record[1])
+                .putInt(record[2].length).put(record[2]);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), 0, bytes.position());
+        bytes.putInt((int) crc.getValue());
+        out.write(bytes.array());
+    }
+
+    private static int hash(String vaultBlock, String attributeName) {
+        // String hash codes are specified, so the index stays valid across JVMs
+        return vaultBlock.hashCode() * 31 + attributeName.hashCode();
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int headerSize(int flags) {
+        return (flags & VaultDataFormat.FLAG_GENERATION) != 0 ? HEADER_SIZE + 8 : HEADER_SIZE;
+    }
+
+    private int checkOffset(long offset) {
+        if (offset < indexOffset || offset >= buffer.capacity()) {
+            throw new IllegalStateException(sm.getString("vaultDataFormat.corrupted"));
+        }
+        return (int) offset;
+    }
+
+    /**
+     * Bounds checked view of one record.
+     */
+    private static final class Record {
+        private final ByteBuffer buffer;
+        private final int blockOffset;
+        private final int blockLength;
+        private final int attributeOffset;
+        private final int attributeLength;
+        private final int valueOffset;
+        private final int valueLength;
+        final int end;
+
+        Record(ByteBuffer buffer, int offset) {
+            this.buffer = buffer;
+            blockLength = length(buffer, offset);
+            blockOffset = offset + 4;
+            attributeLength = length(buffer, blockOffset + blockLength);
+            attributeOffset = blockOffset + blockLength + 4;
+            valueLength = length(buffer, attributeOffset + attributeLength);
+            valueOffset = attributeOffset + attributeLength + 4;
+            end = valueOffset + valueLength + 4;
+            if (end > buffer.capacity()) {
+                throw new IllegalStateException(sm.getString("vaultDataFormat.truncated"));
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer bytes = buffer.duplicate();
+            bytes.limit(end - 4).position(offset);
+            crc.update(bytes);
+            if (buffer.getInt(end - 4) != (int) crc.getValue()) {
+                throw new IllegalStateException(sm.getString("vaultDataFormat.checksumMismatch"));
+            }
+        }
+
+        private static int length(ByteBuffer buffer, int offset) {
+            if (offset < 0 || offset > buffer.capacity() - 4) {
+                throw new IllegalStateException(sm.getString("vaultDataFormat.truncated"));
+            }
+            int length = buffer.getInt(offset);
+            if (length < 0 || length > buffer.capacity() - offset - 4) {
+                throw new IllegalStateException(sm.getString("vaultDataFormat.corrupted"));
+            }
+            return length;
+        }
+
+        boolean inBlock(byte[] block) {
+            return equal(blockOffset, blockLength, block);
+        }
+
+        boolean matches(byte[] block, byte[] attribute) {
+            return equal(blockOffset, blockLength, block) && equal(attributeOffset, attributeLength, attribute);
+        }
+
+        private boolean equal(int offset, int length, byte[] bytes) {
+            if (length != bytes.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(offset + i) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String vaultBlock() {
+            return new String(copy(blockOffset, blockLength), UTF8);
+        }
+
+        String attributeName() {
+            return new String(copy(attributeOffset, attributeLength), UTF8);
+        }
+
+        byte[] value() {
+            return copy(valueOffset, valueLength);
+        }
+
+        private byte[] copy(int offset, int length) {
+            byte[] bytes = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.get(bytes);
+            return bytes;
+        }
+    }
+}
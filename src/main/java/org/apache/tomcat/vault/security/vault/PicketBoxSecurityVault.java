@@ -29,6 +29,7 @@ import org.apache.tomcat.vault.security.Util;
 import org.apache.tomcat.vault.security.plugins.PBEUtils;
 import org.apache.tomcat.vault.util.EncryptionUtil;
 import org.apache.tomcat.vault.util.KeyStoreUtil;
+import org.apache.tomcat.vault.util.SecretCodec;
 import org.apache.tomcat.vault.util.StringUtil;
 
 import javax.crypto.SecretKey;
@@ -37,16 +38,43 @@ import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.PBEParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStore.Entry;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * An instance of {@link SecurityVault} that uses
@@ -76,6 +104,40 @@ import java.util.StringTokenizer;
  * KEY_SIZE: Key size of encryption. Default is 128 bytes.
  * CREATE_KEYSTORE: Whether PicketBox Security Vault has to create missing key store in time of initialization. Default is "FALSE". Implies KEYSTORE_TYPE "JCEKS".
  * KEYSTORE_TYPE: Key store type. Default is JCEKS.
+ * EAGER_DECRYPT: Whether all vault entries are decrypted in parallel during initialization and kept in memory.
+ * Initialization fails if any entry cannot be decrypted. Default is "FALSE".
+ * MEMORY_MAPPED: Whether the vault data file is written in the indexed layout. Such a file is memory mapped, or read
+ * into the heap on Windows, and values are decoded from it on demand instead of loading the whole file during
+ * initialization. Default is "FALSE".
+ * SHARDED: Whether the vault data is split into shard files by vault block, the vault data file then only holds a
+ * manifest. Shards are read when first needed and a write replaces only the shards holding changed vault blocks.
+ * Takes precedence over MEMORY_MAPPED. Default is "FALSE".
+ * COMPRESSED: Whether the vault data file is written as independently compressed and checksummed chunks. Entries of
+ * a damaged chunk are reported and skipped while all other entries are loaded. MEMORY_MAPPED and SHARDED take
+ * precedence. Default is "FALSE".
+ * SHARD_COUNT: Number of shard files vault blocks are hashed to. Changing it rewrites all shards. Default is 64.
+ * VAULT_CODEC: Name of the {@link VaultDataCodec} writing the vault data file, one of "binary", "mapped", "sharded",
+ * "compressed" or the name of a codec discovered by {@link java.util.ServiceLoader}. Takes precedence over
+ * MEMORY_MAPPED, SHARDED and COMPRESSED, which select the codec of the same layout. Vault data files are always read
+ * with the codec recognizing their header. Default is "binary".
+ * HISTORY_SIZE: Number of previous versions kept per attribute besides the current value, which can be retrieved
+ * by version number, e.g. VAULT::vaultBlock::attributeName::@2. Versions are kept in a history file read on the
+ * first versioned lookup and written once per commit of changed attributes. Default is 0, no versions are recorded.
+ * JOURNAL: Whether stored and removed attributes are appended to a journal next to the vault data file instead of
+ * rewriting the whole vault data file. The journal is always replayed during initialization. Default is "FALSE".
+ * JOURNAL_COMPACT_SIZE: Journal size in bytes above which the journal is folded into the vault data file.
+ * Default is 1048576.
+ * HOT_RELOAD: Whether vault files changed by another process, e.g. the vault tool, are reloaded in the background.
+ * Lookups are served from the previous content until the reloaded content replaces it, listeners are notified
+ * about changed entries. Default is "FALSE".
+ * HOT_RELOAD_INTERVAL: Milliseconds between checks of the vault files, also when file system events are not
+ * available. Default is 2000.
+ * FAST_START: Whether the initialized vault state is kept in a file next to the vault data file, encrypted under a
+ * key derived from the key store password. A restart then reads this file instead of loading the key store and
+ * parsing the vault data file, until the key store, the vault data file or the journal change. Default is "FALSE".
+ * GROUP_COMMIT_WINDOW: Milliseconds a write waits for concurrent stores and removes, so that they are made durable
+ * by one write. Every store and remove returns once its change is on disk. Default is 0, concurrent changes are
+ * still written together when they queue up behind a write in progress.
  *
  * @author Anil.Saldhana@redhat.com
  * @author Peter Skopek (pskopek_at_redhat_dot_com)
@@ -86,7 +148,7 @@ public class PicketBoxSecurityVault implements SecurityVault {
     private static final Log log = LogFactory.getLog(PicketBoxSecurityVault.class);
     private static final StringManager msm = StringManager.getManager("org.apache.tomcat.vault.security.resources");
 
-    protected boolean finishedInit = false;
+    protected volatile boolean finishedInit = false;
 
     protected KeyStore keystore = null;
 
@@ -98,16 +160,85 @@ public class PicketBoxSecurityVault implements SecurityVault {
 
     private String alias = null;
 
-    private SecurityVaultData vaultContent = null;
+    // replaced as a whole by a hot reload
+    private volatile SecurityVaultData vaultContent = null;
 
     private SecretKey adminKey;
 
+    private EncryptionUtil encryptionEngine;
+
+    // values were always encoded with the platform charset, so existing vaults stay readable
+    private final SecretCodec valueCodec = new SecretCodec(Charset.defaultCharset());
+
     private String decodedEncFileDir;
 
     private boolean createKeyStore = false;
 
+    // decrypted values indexed by vault block and attribute name, only used with EAGER_DECRYPT
+    private BlockIndex<char[]> decryptedContent = null;
+
     private String keyStoreType = defaultKeyStoreType;
 
+    private final List<SecurityVaultListener> listeners = new CopyOnWriteArrayList<SecurityVaultListener>();
+
+    // bounded pool for bulk decryption, created on first use
+    private ExecutorService workerPool;
+
+    // mutations not yet folded into the vault data file, replaced by init
+    private VaultJournal journal;
+
+    // guards the journal, serializes vault data file writes
+    private final Object journalLock = new Object();
+
+    private boolean journalEnabled = false;
+
+    // writes the vault data file
+    private VaultDataCodec codec;
+
+    // passed to codecs
+    private Map<String, Object> options = Collections.emptyMap();
+
+    // previous versions of attribute values, read on demand
+    private VaultHistory history;
+
+    private int historySize = 0;
+
+    // keys of entries lost to a damaged vault data file, replaced whenever the vault data file is read
+    private volatile Set<String> damagedEntries = Collections.emptySet();
+
+    private long journalCompactSize = DEFAULT_JOURNAL_COMPACT_SIZE;
+
+    // sequence numbers of persisted mutations, see commit(long)
+    private final AtomicLong mutationCount = new AtomicLong();
+
+    private final Object commitLock = new Object();
+
+    // guarded by commitLock
+    private long committedCount = 0;
+
+    // guarded by commitLock, whether a thread is leading a commit
+    private boolean committing = false;
+
+    private long groupCommitWindow = 0;
+
+    // only with HOT_RELOAD
+    private volatile VaultFileWatcher watcher;
+
+    // serializes writers of the vault files across processes
+    private VaultFileLock fileLock;
+
+    // guarded by journalLock, state of the vault files as last read or written by this vault
+    private long knownGeneration = 0;
+    private long knownJournalLength = 0;
+
+    // guarded by journalLock, mutations not written to the vault data file yet, without JOURNAL only
+    private final List<PendingMutation> pendingMutations = new ArrayList<PendingMutation>();
+
+    // guarded by journalLock, changed attributes the next commit records in the history file, with HISTORY_SIZE only
+    private final List<String> historyKeys = new ArrayList<String>();
+    private final List<byte[]> historyPrevious = new ArrayList<byte[]>();
+    private final List<byte[]> historyValues = new ArrayList<byte[]>();
+
     // options
     public static final String ENC_FILE_DIR = "ENC_FILE_DIR";
 
@@ -131,12 +262,52 @@ public class PicketBoxSecurityVault implements SecurityVault {
 
     public static final String KEYSTORE_TYPE = "KEYSTORE_TYPE";
 
+    public static final String EAGER_DECRYPT = "EAGER_DECRYPT";
+
+    public static final String MEMORY_MAPPED = "MEMORY_MAPPED";
+
+    public static final String SHARDED = "SHARDED";
+
+    public static final String SHARD_COUNT = "SHARD_COUNT";
+
+    public static final String COMPRESSED = "COMPRESSED";
+
+    public static final String VAULT_CODEC = "VAULT_CODEC";
+
+    public static final String HISTORY_SIZE = "HISTORY_SIZE";
+
+    public static final String JOURNAL = "JOURNAL";
+
+    public static final String JOURNAL_COMPACT_SIZE = "JOURNAL_COMPACT_SIZE";
+
+    public static final String GROUP_COMMIT_WINDOW = "GROUP_COMMIT_WINDOW";
+
+    public static final String HOT_RELOAD = "HOT_RELOAD";
+
+    public static final String HOT_RELOAD_INTERVAL = "HOT_RELOAD_INTERVAL";
+
+    public static final String FAST_START = "FAST_START";
+
     // backward compatibility constants
     private static final String ENCODED_FILE = "ENC.dat";
     private static final String SHARED_KEY_FILE = "Shared.dat";
     private static final String ADMIN_KEY = "ADMIN_KEY";
 
     protected static final String VAULT_CONTENT_FILE = "VAULT.dat"; // versioned vault data file
+    protected static final String VAULT_JOURNAL_FILE = VAULT_CONTENT_FILE + ".journal";
+    protected static final String VAULT_LOCK_FILE = VAULT_CONTENT_FILE + ".lock";
+    protected static final String VAULT_DAMAGED_FILE = VAULT_CONTENT_FILE + ".damaged";
+    protected static final String VAULT_HISTORY_FILE = VAULT_CONTENT_FILE + ".history";
+    protected static final String VAULT_FAST_START_FILE = VAULT_CONTENT_FILE + ".faststart";
+
+    private static final long DEFAULT_JOURNAL_COMPACT_SIZE = 1024 * 1024;
+
+    private static final long DEFAULT_HOT_RELOAD_INTERVAL = 2000;
+
+    // bulk operations on fewer entries are not worth handing over to the worker pool
+    private static final int PARALLEL_THRESHOLD = 32;
+    // entries encrypted or decrypted at once by bulk operations
+    private static final int BATCH_SIZE = 1024;
     protected static final String defaultKeyStoreType = "JCEKS";
 
 
@@ -145,6 +316,9 @@ public class PicketBoxSecurityVault implements SecurityVault {
      */
     public void init(Map<String, Object> options) throws SecurityVaultException {
 
+        // a failed initialization leaves the vault uninitialized, also when it was initialized before
+        finishedInit = false;
+
         if (Util.isFIPS()) {
             throw new SecurityVaultException(msm.getString("cantdoFIPS"));
         }
@@ -192,19 +366,121 @@ public class PicketBoxSecurityVault implements SecurityVault {
         createKeyStore = (options.get(CREATE_KEYSTORE) != null ? Boolean.parseBoolean((String) options.get(CREATE_KEYSTORE))
                 : false);
         keyStoreType = (options.get(KEYSTORE_TYPE) != null ? (String) options.get(KEYSTORE_TYPE) : defaultKeyStoreType);
+        boolean eagerDecrypt = (options.get(EAGER_DECRYPT) != null ? Boolean.parseBoolean((String) options.get(EAGER_DECRYPT))
+                : false);
+        boolean memoryMapped = (options.get(MEMORY_MAPPED) != null ? Boolean.parseBoolean((String) options.get(MEMORY_MAPPED))
+                : false);
+        boolean sharded = (options.get(SHARDED) != null ? Boolean.parseBoolean((String) options.get(SHARDED))
+                : false);
+        boolean compressed = (options.get(COMPRESSED) != null ? Boolean.parseBoolean((String) options.get(COMPRESSED))
+                : false);
+        String codecName = (String) options.get(VAULT_CODEC);
+        if (codecName == null) {
+            codecName = sharded ? VaultDataCodecs.SHARDED : memoryMapped ? VaultDataCodecs.MAPPED
+                    : compressed ? VaultDataCodecs.COMPRESSED : VaultDataCodecs.BINARY;
+        }
+        codec = VaultDataCodecs.get(codecName);
+        if (codec == null) {
+            throw new SecurityVaultException(sm.getString("picketBoxSecurityVault.unknownCodec", codecName,
+                    VaultDataCodecs.getNames().toString()));
+        }
+        if (!codec.canWrite()) {
+            throw new SecurityVaultException(sm.getString("vaultDataCodecs.readOnly", codecName));
+        }
+        String historySizeStr = (String) options.get(HISTORY_SIZE);
+        historySize = historySizeStr != null ? Integer.parseInt(historySizeStr) : 0;
+        if (historySize < 0) {
+            throw new SecurityVaultException(sm.getString("picketBoxSecurityVault.invalidHistorySize", historySizeStr));
+        }
+        String shardCountStr = (String) options.get(SHARD_COUNT);
+        int shardCount = shardCountStr != null ? Integer.parseInt(shardCountStr) : ShardedVaultData.DEFAULT_SHARDS;
+        if (shardCount < 1 || shardCount > ShardedVaultData.MAX_SHARDS) {
+            throw new SecurityVaultException(sm.getString("picketBoxSecurityVault.invalidShardCount", shardCountStr,
+                    String.valueOf(ShardedVaultData.MAX_SHARDS)));
+        }
+        journalEnabled = (options.get(JOURNAL) != null ? Boolean.parseBoolean((String) options.get(JOURNAL))
+                : false);
+        String journalCompactSizeStr = (String) options.get(JOURNAL_COMPACT_SIZE);
+        if (journalCompactSizeStr != null) {
+            journalCompactSize = Long.parseLong(journalCompactSizeStr);
+        }
+        String groupCommitWindowStr = (String) options.get(GROUP_COMMIT_WINDOW);
+        if (groupCommitWindowStr != null) {
+            groupCommitWindow = Long.parseLong(groupCommitWindowStr);
+        }
+        boolean hotReload = (options.get(HOT_RELOAD) != null ? Boolean.parseBoolean((String) options.get(HOT_RELOAD))
+                : false);
+        String hotReloadIntervalStr = (String) options.get(HOT_RELOAD_INTERVAL);
+        long hotReloadInterval = hotReloadIntervalStr != null ? Long.parseLong(hotReloadIntervalStr)
+                : DEFAULT_HOT_RELOAD_INTERVAL;
+        boolean fastStart = (options.get(FAST_START) != null ? Boolean.parseBoolean((String) options.get(FAST_START))
+                : false);
 
-        try {
-            keyStorePWD = loadKeystorePassword(password, salt, iterationCount);
-            keystore = getKeyStore(keystoreURL);
+        this.options = Collections.unmodifiableMap(new HashMap<String, Object>(options));
 
-            checkAndConvertKeyStoreToJCEKS(keystoreURL);
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
 
-        } catch (Exception e) {
-            throw new SecurityVaultException(e);
+        keyStorePWD = null;
+        openVaultFiles(encFileDir);
+        VaultFastStart fastStartFile = fastStart ? new VaultFastStart(new File(decodedEncFileDir + VAULT_FAST_START_FILE),
+                new File(keystoreURL), new File(decodedEncFileDir + VAULT_CONTENT_FILE), journal.getFile()) : null;
+
+        if (fastStartFile != null) {
+            try {
+                // the fast start file is encrypted under the key store password
+                keyStorePWD = loadKeystorePassword(password, salt, iterationCount);
+            } catch (Exception e) {
+                throw new SecurityVaultException(e);
+            }
+        }
+
+        if (fastStartFile == null || !readFastStart(fastStartFile, keystoreURL)) {
+            VaultFastStart.Stamp stamp = null;
+            if (fastStartFile != null) {
+                try {
+                    // before the vault files are read, a change made meanwhile invalidates the written state
+                    stamp = fastStartFile.stamp();
+                } catch (IOException e) {
+                    throw new SecurityVaultException(e);
+                }
+            }
+
+            // unlock the key store, read and possibly convert vault content
+            readVaultContent(keystoreURL, password, salt, iterationCount);
+
+            if (fastStartFile != null) {
+                writeFastStart(fastStartFile, keystoreURL, stamp);
+            }
+        }
+
+        // admin key is resolved once, cipher instances are then reused per thread
+        encryptionEngine = new EncryptionUtil(encryptionAlgorithm, keySize, adminKey);
+
+        if (decryptedContent != null) {
+            for (String vaultBlock : decryptedContent.getBlocks()) {
+                for (char[] value : decryptedContent.getBlock(vaultBlock).values()) {
+                    wipe(value);
+                }
+            }
+            decryptedContent = null;
+        }
+        if (eagerDecrypt) {
+            decryptVaultContent();
         }
 
-        // read and possibly convert vault content
-        readVaultContent(keystoreURL, encFileDir);
+        if (hotReload) {
+            watcher = new VaultFileWatcher(new File(decodedEncFileDir).toPath(),
+                    new String[]{VAULT_CONTENT_FILE, VAULT_JOURNAL_FILE}, hotReloadInterval,
+                    new VaultFileWatcher.Reloader() {
+                        public boolean reload() {
+                            return reloadVaultContent();
+                        }
+                    });
+            watcher.start();
+        }
 
         log.info(sm.getString("picketBoxSecurityVault.vaultInitialized"));
         finishedInit = true;
@@ -230,7 +506,11 @@ public class PicketBoxSecurityVault implements SecurityVault {
      * @see org.jboss.security.vault.SecurityVault#keyList()
      */
     public Set<String> keyList() throws SecurityVaultException {
-        return vaultContent.getVaultDataKeys();
+        try {
+            return vaultContent.getVaultDataKeys();
+        } catch (IllegalStateException e) {
+            throw unreadable(e);
+        }
     }
 
     /* (non-Javadoc)
@@ -243,21 +523,200 @@ public class PicketBoxSecurityVault implements SecurityVault {
         if (StringUtil.isNullOrEmpty(attributeName))
             throw new IllegalArgumentException(msm.getString("invalidNullArgument", "attributeName"));
 
-        String av = new String(attributeValue);
+        byte[] encryptedData = encrypt(attributeValue);
 
-        EncryptionUtil util = new EncryptionUtil(encryptionAlgorithm, keySize);
         try {
-            SecretKeySpec sKeySpec = new SecretKeySpec(adminKey.getEncoded(), encryptionAlgorithm);
-            byte[] encryptedData = util.encrypt(av.getBytes(), sKeySpec);
-            vaultContent.addVaultData(alias, vaultBlock, attributeName, encryptedData);
-        } catch (Exception e1) {
-            throw new SecurityVaultException(msm.getString("unableToEncryptDataMessage"), e1);
+            long mutation = mutate(vaultBlock, attributeName, encryptedData, attributeValue);
+            fireVaultEntryChanged(vaultBlock, attributeName);
+            commit(mutation);
+        } catch (IOException e) {
+            throw new SecurityVaultException(msm.getString("unableToWriteVaultDataFileMessage", VAULT_CONTENT_FILE), e);
+        } catch (Exception e) {
+            throw new SecurityVaultException(e);
         }
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.tomcat.vault.security.vault.SecurityVault#storeAll(java.util.Iterator, byte[])
+     */
+    public int storeAll(Iterator<VaultEntry> entries, byte[] sharedKey) throws SecurityVaultException {
+        if (entries == null)
+            throw new IllegalArgumentException(msm.getString("invalidNullArgument", "entries"));
 
+        int count = 0;
+        long mutation = 0;
+        Exception failure = null;
         try {
-            writeVaultData();
+            final List<VaultEntry> batch = new ArrayList<VaultEntry>(BATCH_SIZE);
+            RuntimeException readFailure = null;
+            boolean more = true;
+            while (more) {
+                batch.clear();
+                try {
+                    while (batch.size() < BATCH_SIZE && (more = entries.hasNext())) {
+                        batch.add(entries.next());
+                    }
+                } catch (RuntimeException e) {
+                    // entries read before the failure are stored first
+                    readFailure = e;
+                    more = false;
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                final byte[][] encryptedValues = new byte[batch.size()][];
+                final char[][] decryptedValues = new char[batch.size()][];
+                try {
+                    forEachIndex(batch.size(), new IndexedTask() {
+                        public void run(int i) throws SecurityVaultException {
+                            VaultEntry entry = batch.get(i);
+                            if (!entry.isEncrypted()) {
+                                encryptedValues[i] = encrypt(entry.getValue());
+                                return;
+                            }
+                            // only values encrypted by the admin key of this vault can be retrieved later
+                            char[] value;
+                            try {
+                                value = decrypt(entry.getEncryptedValue());
+                            } catch (SecurityVaultException e) {
+                                throw new SecurityVaultException(sm.getString("picketBoxSecurityVault.unableToDecryptEntry",
+                                        SecurityVaultData.dataKey(alias, entry.getVaultBlock(), entry.getAttributeName())), e);
+                            }
+                            if (decryptedContent != null) {
+                                decryptedValues[i] = value;
+                            } else {
+                                wipe(value);
+                            }
+                            encryptedValues[i] = entry.getEncryptedValue();
+                        }
+                    });
+                    // one write of the vault data file at the end instead of a journal record per entry
+                    synchronized (journalLock) {
+                        List<String[]> keys = new ArrayList<String[]>(batch.size());
+                        for (VaultEntry entry : batch) {
+                            keys.add(new String[]{entry.getVaultBlock(), entry.getAttributeName()});
+                        }
+                        recordHistory(keys, Arrays.asList(encryptedValues));
+                        for (int i = 0; i < encryptedValues.length; i++) {
+                            VaultEntry entry = batch.get(i);
+                            applyMutation(entry.getVaultBlock(), entry.getAttributeName(), encryptedValues[i],
+                                    entry.isEncrypted() ? decryptedValues[i] : entry.getValue());
+                            pendingMutations.add(new PendingMutation(entry.getVaultBlock(), entry.getAttributeName(),
+                                    encryptedValues[i]));
+                        }
+                        mutation = mutationCount.addAndGet(encryptedValues.length);
+                    }
+                } finally {
+                    for (char[] value : decryptedValues) {
+                        wipe(value);
+                    }
+                }
+                for (VaultEntry entry : batch) {
+                    fireVaultEntryChanged(entry.getVaultBlock(), entry.getAttributeName());
+                }
+                count += batch.size();
+            }
+            if (readFailure != null) {
+                throw readFailure;
+            }
         } catch (IOException e) {
-            throw new SecurityVaultException(msm.getString("unableToWriteVaultDataFileMessage", VAULT_CONTENT_FILE), e);
+            failure = new SecurityVaultException(msm.getString("unableToWriteVaultDataFileMessage", VAULT_HISTORY_FILE), e);
+        } catch (SecurityVaultException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        if (mutation > 0) {
+            // entries stored before a failure are kept
+            try {
+                commit(mutation);
+            } catch (IOException e) {
+                SecurityVaultException commitFailure = new SecurityVaultException(
+                        msm.getString("unableToWriteVaultDataFileMessage", VAULT_CONTENT_FILE), e);
+                if (failure == null) {
+                    throw commitFailure;
+                }
+                // the cause of the failed import is reported, not the write failing after it
+                failure.addSuppressed(commitFailure);
+            }
+        }
+        if (failure != null) {
+            throw new SecurityVaultException(msm.getString("partiallyStored", count, failure.getMessage()), failure);
+        }
+        return count;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.tomcat.vault.security.vault.SecurityVault#exportAll(org.apache.tomcat.vault.security.vault.VaultEntryHandler, boolean)
+     */
+    public int exportAll(VaultEntryHandler handler, final boolean encrypted) throws SecurityVaultException, IOException {
+        if (handler == null)
+            throw new IllegalArgumentException(msm.getString("invalidNullArgument", "handler"));
+
+        Map<String, Map<String, byte[]>> content;
+        try {
+            content = new TreeMap<String, Map<String, byte[]>>(vaultContent.getVaultContent());
+        } catch (IllegalStateException e) {
+            throw unreadable(e);
+        }
+        final List<String[]> keys = new ArrayList<String[]>(BATCH_SIZE);
+        final List<byte[]> encryptedValues = new ArrayList<byte[]>(BATCH_SIZE);
+        int count = 0;
+        for (Map.Entry<String, Map<String, byte[]>> block : content.entrySet()) {
+            for (Map.Entry<String, byte[]> entry : new TreeMap<String, byte[]>(block.getValue()).entrySet()) {
+                keys.add(new String[]{block.getKey(), entry.getKey()});
+                encryptedValues.add(entry.getValue());
+                if (keys.size() == BATCH_SIZE) {
+                    count += exportBatch(handler, keys, encryptedValues, encrypted);
+                }
+            }
+        }
+        return count + exportBatch(handler, keys, encryptedValues, encrypted);
+    }
+
+    /**
+     * Pass a batch of entries to the handler, values are decrypted on the worker pool. The batch is cleared.
+     */
+    private int exportBatch(VaultEntryHandler handler, final List<String[]> keys, final List<byte[]> encryptedValues,
+                            boolean encrypted) throws SecurityVaultException, IOException {
+        final char[][] values = new char[keys.size()][];
+        try {
+            if (!encrypted) {
+                forEachIndex(values.length, new IndexedTask() {
+                    public void run(int i) throws SecurityVaultException {
+                        try {
+                            values[i] = decrypt(encryptedValues.get(i));
+                        } catch (SecurityVaultException e) {
+                            throw new SecurityVaultException(sm.getString("picketBoxSecurityVault.unableToDecryptEntry",
+                                    SecurityVaultData.dataKey(alias, keys.get(i)[0], keys.get(i)[1])), e);
+                        }
+                    }
+                });
+            }
+            for (int i = 0; i < values.length; i++) {
+                String[] key = keys.get(i);
+                handler.handle(encrypted ? VaultEntry.encrypted(key[0], key[1], encryptedValues.get(i).clone())
+                        : VaultEntry.plain(key[0], key[1], values[i]));
+                wipe(values[i]);
+            }
+            return values.length;
+        } finally {
+            for (char[] value : values) {
+                wipe(value);
+            }
+            keys.clear();
+            encryptedValues.clear();
+        }
+    }
+
+    private byte[] encrypt(char[] value) throws SecurityVaultException {
+        ByteBuffer encoded = valueCodec.encode(value);
+        try {
+            return encryptionEngine.encrypt(encoded.array(), encoded.position(), encoded.remaining());
+        } catch (Exception e) {
+            throw new SecurityVaultException(msm.getString("unableToEncryptDataMessage"), e);
+        } finally {
+            valueCodec.release(encoded);
         }
     }
 
@@ -270,18 +729,258 @@ public class PicketBoxSecurityVault implements SecurityVault {
         if (StringUtil.isNullOrEmpty(attributeName))
             throw new IllegalArgumentException(msm.getString("invalidNullArgument", "attributeName"));
 
-        byte[] encryptedValue = vaultContent.getVaultData(alias, vaultBlock, attributeName);
+        if (decryptedContent != null) {
+            char[] value = decryptedContent.get(vaultBlock, attributeName);
+            if (value == null) {
+                throw attributeNotInVault(vaultBlock, attributeName);
+            }
+            return value.clone();
+        }
+
+        byte[] encryptedValue = getEncryptedValue(vaultBlock, attributeName);
 
         if (encryptedValue == null) {
-            throw new SecurityVaultException(sm.getString("picketBoxSecurityVault.attributeNotInVault", alias,
+            throw attributeNotInVault(vaultBlock, attributeName);
+        }
+
+        return decrypt(encryptedValue);
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.tomcat.vault.security.vault.SecurityVault#retrieve(java.lang.String, java.lang.String, byte[], int)
+     */
+    public char[] retrieve(String vaultBlock, String attributeName, byte[] sharedKey, int version) throws SecurityVaultException {
+        if (version == LATEST_VERSION) {
+            return retrieve(vaultBlock, attributeName, sharedKey);
+        }
+        if (StringUtil.isNullOrEmpty(vaultBlock))
+            throw new IllegalArgumentException(msm.getString("invalidNullArgument", "vaultBlock"));
+        if (StringUtil.isNullOrEmpty(attributeName))
+            throw new IllegalArgumentException(msm.getString("invalidNullArgument", "attributeName"));
+
+        byte[] current = getEncryptedValue(vaultBlock, attributeName);
+        List<VaultHistory.Version> recorded;
+        try {
+            recorded = history.get(SecurityVaultData.dataKey(null, vaultBlock, attributeName));
+        } catch (IOException e) {
+            throw new SecurityVaultException(e);
+        }
+        if (current != null && VaultHistory.versionOf(recorded, current) == version) {
+            return retrieve(vaultBlock, attributeName, sharedKey);
+        }
+        for (VaultHistory.Version recordedVersion : recorded) {
+            if (recordedVersion.number == version) {
+                return decrypt(recordedVersion.value);
+            }
+        }
+        throw new SecurityVaultException(sm.getString("picketBoxSecurityVault.versionNotInVault", alias,
+                vaultBlock, attributeName, String.valueOf(version)));
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.tomcat.vault.security.vault.SecurityVault#retrieveInto(java.lang.String, java.lang.String, java.nio.CharBuffer)
+     */
+    public int retrieveInto(String vaultBlock, String attributeName, CharBuffer value) throws SecurityVaultException {
+        if (StringUtil.isNullOrEmpty(vaultBlock))
+            throw new IllegalArgumentException(msm.getString("invalidNullArgument", "vaultBlock"));
+        if (StringUtil.isNullOrEmpty(attributeName))
+            throw new IllegalArgumentException(msm.getString("invalidNullArgument", "attributeName"));
+        if (value == null)
+            throw new IllegalArgumentException(msm.getString("invalidNullArgument", "value"));
+
+        if (decryptedContent != null) {
+            char[] decrypted = decryptedContent.get(vaultBlock, attributeName);
+            if (decrypted == null) {
+                throw attributeNotInVault(vaultBlock, attributeName);
+            }
+            if (decrypted.length > value.remaining()) {
+                throw new BufferOverflowException();
+            }
+            value.put(decrypted);
+            return decrypted.length;
+        }
+
+        byte[] encryptedValue = getEncryptedValue(vaultBlock, attributeName);
+        if (encryptedValue == null) {
+            throw attributeNotInVault(vaultBlock, attributeName);
+        }
+
+        ByteBuffer plain = decryptToBuffer(encryptedValue);
+        try {
+            int start = value.position();
+            if (!valueCodec.decode(plain, value)) {
+                throw new BufferOverflowException();
+            }
+            return value.position() - start;
+        } finally {
+            valueCodec.release(plain);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.tomcat.vault.security.vault.SecurityVault#retrieveBlock(java.lang.String)
+     */
+    public Map<String, char[]> retrieveBlock(final String vaultBlock) throws SecurityVaultException {
+        if (StringUtil.isNullOrEmpty(vaultBlock))
+            throw new IllegalArgumentException(msm.getString("invalidNullArgument", "vaultBlock"));
+
+        if (decryptedContent != null) {
+            Map<String, char[]> result = new HashMap<String, char[]>();
+            for (Map.Entry<String, char[]> entry : decryptedContent.getBlock(vaultBlock).entrySet()) {
+                result.put(entry.getKey(), entry.getValue().clone());
+            }
+            return result;
+        }
+
+        final List<Map.Entry<String, byte[]>> entries;
+        try {
+            entries = new ArrayList<Map.Entry<String, byte[]>>(vaultContent.getVaultBlockData(vaultBlock).entrySet());
+        } catch (IllegalStateException e) {
+            throw unreadable(e);
+        }
+        final char[][] values = new char[entries.size()][];
+        try {
+            forEachIndex(values.length, new IndexedTask() {
+                public void run(int i) throws SecurityVaultException {
+                    try {
+                        values[i] = decrypt(entries.get(i).getValue());
+                    } catch (SecurityVaultException e) {
+                        throw new SecurityVaultException(sm.getString("picketBoxSecurityVault.unableToDecryptEntry",
+                                SecurityVaultData.dataKey(alias, vaultBlock, entries.get(i).getKey())), e);
+                    }
+                }
+            });
+        } catch (SecurityVaultException e) {
+            for (char[] value : values) {
+                wipe(value);
+            }
+            throw e;
+        }
+
+        Map<String, char[]> result = new HashMap<String, char[]>();
+        for (int i = 0; i < values.length; i++) {
+            result.put(entries.get(i).getKey(), values[i]);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.tomcat.vault.security.vault.SecurityVault#retrieveAll(java.util.Collection, byte[])
+     */
+    public VaultRetrievalResult retrieveAll(Collection<VaultRef> references, byte[] sharedKey) throws SecurityVaultException {
+        if (references == null)
+            throw new IllegalArgumentException(msm.getString("invalidNullArgument", "references"));
+
+        if (!finishedInit)
+            throw new SecurityVaultException(sm.getString("picketBoxSecurityVault.notInitialized"));
+
+        VaultRetrievalResult result = new VaultRetrievalResult();
+        BlockIndex<char[]> decrypted = decryptedContent;
+        if (decrypted != null) {
+            for (VaultRef ref : new LinkedHashSet<VaultRef>(references)) {
+                char[] value = decrypted.get(ref.getVaultBlock(), ref.getAttributeName());
+                if (value == null) {
+                    result.addMissing(ref);
+                } else {
+                    result.addValue(ref, value.clone());
+                }
+            }
+            return result;
+        }
+
+        final List<VaultRef> found = new ArrayList<VaultRef>(references.size());
+        final List<byte[]> encryptedValues = new ArrayList<byte[]>(references.size());
+        for (VaultRef ref : new LinkedHashSet<VaultRef>(references)) {
+            byte[] encryptedValue;
+            try {
+                encryptedValue = getEncryptedValue(ref.getVaultBlock(), ref.getAttributeName());
+            } catch (SecurityVaultException e) {
+                result.addFailure(ref, e);
+                continue;
+            }
+            if (encryptedValue == null) {
+                result.addMissing(ref);
+            } else {
+                found.add(ref);
+                encryptedValues.add(encryptedValue);
+            }
+        }
+
+        final char[][] values = new char[found.size()][];
+        final SecurityVaultException[] failures = new SecurityVaultException[found.size()];
+        forEachIndex(found.size(), new IndexedTask() {
+            public void run(int i) {
+                try {
+                    values[i] = decrypt(encryptedValues.get(i));
+                } catch (SecurityVaultException e) {
+                    failures[i] = e;
+                }
+            }
+        });
+
+        for (int i = 0; i < values.length; i++) {
+            if (failures[i] != null) {
+                result.addFailure(found.get(i), failures[i]);
+            } else {
+                result.addValue(found.get(i), values[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Look up an encrypted value. Vault data read on demand reports a damaged vault file by an unchecked exception,
+     * which is turned into a checked one here.
+     *
+     * @return encrypted value or null if there is no such entry
+     * @throws SecurityVaultException if the vault file holding the value is damaged
+     */
+    private byte[] getEncryptedValue(String vaultBlock, String attributeName) throws SecurityVaultException {
+        try {
+            return vaultContent.getVaultData(alias, vaultBlock, attributeName);
+        } catch (IllegalStateException e) {
+            throw unreadable(e);
+        }
+    }
+
+    private static SecurityVaultException unreadable(IllegalStateException e) {
+        return new SecurityVaultException(e.getMessage(), e);
+    }
+
+    private SecurityVaultException attributeNotInVault(String vaultBlock, String attributeName) {
+        String key = SecurityVaultData.dataKey(null, vaultBlock, attributeName);
+        if (damagedEntries.contains(key)) {
+            return new SecurityVaultException(sm.getString("picketBoxSecurityVault.damagedEntry", key,
+                    decodedEncFileDir + VAULT_DAMAGED_FILE));
+        }
+        return new SecurityVaultException(sm.getString("picketBoxSecurityVault.attributeNotInVault", alias,
                 vaultBlock, attributeName));
+    }
+
+    private char[] decrypt(byte[] encryptedValue) throws SecurityVaultException {
+        ByteBuffer plain = decryptToBuffer(encryptedValue);
+        try {
+            return valueCodec.decode(plain);
+        } finally {
+            valueCodec.release(plain);
         }
+    }
 
-        SecretKeySpec secretKeySpec = new SecretKeySpec(adminKey.getEncoded(), encryptionAlgorithm);
-        EncryptionUtil encUtil = new EncryptionUtil(encryptionAlgorithm, keySize);
+    /**
+     * Decrypt value into the scratch buffer of the current thread. The buffer has to be released
+     * by {@link SecretCodec#release(ByteBuffer)}.
+     */
+    private ByteBuffer decryptToBuffer(byte[] encryptedValue) throws SecurityVaultException {
+        ByteBuffer plain = null;
         try {
-            return (new String(encUtil.decrypt(encryptedValue, secretKeySpec))).toCharArray();
+            plain = valueCodec.byteBuffer(encryptionEngine.getDecryptOutputSize(encryptedValue.length));
+            encryptionEngine.decrypt(encryptedValue, plain);
+            plain.flip();
+            return plain;
         } catch (Exception e) {
+            if (plain != null) {
+                valueCodec.release(plain);
+            }
             throw new SecurityVaultException(e);
         }
     }
@@ -290,7 +989,7 @@ public class PicketBoxSecurityVault implements SecurityVault {
      * @see org.jboss.security.vault.SecurityVault#exists(java.lang.String, java.lang.String)
      */
     public boolean exists(String vaultBlock, String attributeName) throws SecurityVaultException {
-        return vaultContent.getVaultData(alias, vaultBlock, attributeName) != null;
+        return getEncryptedValue(vaultBlock, attributeName) != null;
     }
 
     /* (non-Javadoc)
@@ -304,11 +1003,13 @@ public class PicketBoxSecurityVault implements SecurityVault {
             throw new IllegalArgumentException(msm.getString("invalidNullArgument", "attributeName"));
 
         try {
-            if (vaultContent.deleteVaultData(alias, vaultBlock, attributeName)) {
-                writeVaultData();
-                return true;
+            long mutation = mutate(vaultBlock, attributeName, null, null);
+            if (mutation == 0) {
+                return false;
             }
-            return false;
+            fireVaultEntryChanged(vaultBlock, attributeName);
+            commit(mutation);
+            return true;
         } catch (IOException e) {
             throw new SecurityVaultException(msm.getString("unableToWriteVaultDataFileMessage", VAULT_CONTENT_FILE), e);
         } catch (Exception e) {
@@ -316,6 +1017,171 @@ public class PicketBoxSecurityVault implements SecurityVault {
         }
     }
 
+    /* (non-Javadoc)
+     * @see org.apache.tomcat.vault.security.vault.SecurityVault#addVaultListener(org.apache.tomcat.vault.security.vault.SecurityVaultListener)
+     */
+    public boolean addVaultListener(SecurityVaultListener listener) {
+        if (listener == null)
+            throw new IllegalArgumentException(msm.getString("invalidNullArgument", "listener"));
+        listeners.add(listener);
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.tomcat.vault.security.vault.SecurityVault#close()
+     */
+    public void close() {
+        finishedInit = false;
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
+        ExecutorService pool;
+        synchronized (this) {
+            pool = workerPool;
+            workerPool = null;
+        }
+        if (pool != null) {
+            // running bulk operations complete, their threads then terminate
+            pool.shutdown();
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.warn(sm.getString("picketBoxSecurityVault.closeFailed"), e);
+            }
+        }
+    }
+
+    private void fireVaultEntryChanged(String vaultBlock, String attributeName) {
+        for (SecurityVaultListener listener : listeners) {
+            listener.vaultEntryChanged(vaultBlock, attributeName);
+        }
+    }
+
+    /**
+     * Decrypt all vault entries on the worker pool and keep them in {@link #decryptedContent}.
+     * Fails when any of the entries cannot be decrypted.
+     *
+     * @throws SecurityVaultException
+     */
+    private void decryptVaultContent() throws SecurityVaultException {
+        // initialize the cipher path of the current thread (and the JCE provider) before the first lookup
+        try {
+            encryptionEngine.decrypt(encryptionEngine.encrypt(new byte[0]));
+        } catch (GeneralSecurityException e) {
+            throw new SecurityVaultException(e);
+        }
+
+        final List<String> blocks = new ArrayList<String>();
+        final List<String> attributes = new ArrayList<String>();
+        final List<byte[]> encryptedValues = new ArrayList<byte[]>();
+        Map<String, Map<String, byte[]>> encryptedContent;
+        try {
+            encryptedContent = vaultContent.getVaultContent();
+        } catch (IllegalStateException e) {
+            throw unreadable(e);
+        }
+        for (Map.Entry<String, Map<String, byte[]>> block : encryptedContent.entrySet()) {
+            for (Map.Entry<String, byte[]> entry : block.getValue().entrySet()) {
+                blocks.add(block.getKey());
+                attributes.add(entry.getKey());
+                encryptedValues.add(entry.getValue());
+            }
+        }
+        final char[][] values = new char[encryptedValues.size()][];
+        forEachIndex(values.length, new IndexedTask() {
+            public void run(int i) throws SecurityVaultException {
+                try {
+                    values[i] = decrypt(encryptedValues.get(i));
+                } catch (SecurityVaultException e) {
+                    throw new SecurityVaultException(sm.getString("picketBoxSecurityVault.unableToDecryptEntry",
+                            SecurityVaultData.dataKey(alias, blocks.get(i), attributes.get(i))), e);
+                }
+            }
+        });
+
+        BlockIndex<char[]> content = new BlockIndex<char[]>();
+        for (int i = 0; i < values.length; i++) {
+            content.put(blocks.get(i), attributes.get(i), values[i]);
+        }
+        decryptedContent = content;
+    }
+
+    private static void wipe(char[] value) {
+        if (value != null) {
+            Arrays.fill(value, '\0');
+        }
+    }
+
+    /**
+     * Run the task for indexes 0 to count - 1. Larger counts are split into chunks executed on the worker pool,
+     * each chunk being processed by one thread with its own cipher instances.
+     *
+     * @param count
+     * @param task
+     * @throws SecurityVaultException
+     */
+    private void forEachIndex(final int count, final IndexedTask task) throws SecurityVaultException {
+        ExecutorService pool = count < PARALLEL_THRESHOLD ? null : getWorkerPool();
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        if (pool == null || parallelism < 2) {
+            for (int i = 0; i < count; i++) {
+                task.run(i);
+            }
+            return;
+        }
+
+        int chunkSize = (count + parallelism - 1) / parallelism;
+        List<Callable<Void>> chunks = new ArrayList<Callable<Void>>(parallelism);
+        for (int start = 0; start < count; start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(count, start + chunkSize);
+            chunks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    for (int i = from; i < to; i++) {
+                        task.run(i);
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> f : pool.invokeAll(chunks)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SecurityVaultException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SecurityVaultException) {
+                throw (SecurityVaultException) e.getCause();
+            }
+            throw new SecurityVaultException(e.getCause());
+        }
+    }
+
+    private synchronized ExecutorService getWorkerPool() {
+        if (workerPool == null) {
+            final ClassLoader vaultClassLoader = PicketBoxSecurityVault.class.getClassLoader();
+            workerPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("tomcat-vault-worker-" + thread.getPoolIndex());
+                    // do not pin the class loader of whichever web application happened to trigger the pool creation
+                    thread.setContextClassLoader(vaultClassLoader);
+                    return thread;
+                }
+            }, null, false);
+        }
+        return workerPool;
+    }
+
+    private interface IndexedTask {
+        void run(int i) throws SecurityVaultException;
+    }
+
     private char[] loadKeystorePassword(String passwordDef, String salt, int iterationCount) throws Exception {
         final char[] password;
 
@@ -373,16 +1239,393 @@ public class PicketBoxSecurityVault implements SecurityVault {
         }
     }
 
+    /**
+     * Apply a stored or removed attribute to the vault content. With JOURNAL it is appended to the journal right
+     * away, otherwise it is kept until the next write of the vault data file. {@link #commit(long)} makes it durable.
+     *
+     * @param encryptedData stored value, null to remove the attribute
+     * @param value         stored value
+     * @return sequence number of the mutation, 0 if there was no attribute to remove
+     */
+    private long mutate(String vaultBlock, String attributeName, byte[] encryptedData, char[] value) throws Exception {
+        synchronized (journalLock) {
+            if (!journalEnabled) {
+                recordHistory(Collections.singletonList(new String[]{vaultBlock, attributeName}),
+                        Collections.singletonList(encryptedData));
+                if (!applyMutation(vaultBlock, attributeName, encryptedData, value)) {
+                    return 0;
+                }
+                pendingMutations.add(new PendingMutation(vaultBlock, attributeName, encryptedData));
+                return mutationCount.incrementAndGet();
+            }
+            fileLock.lock();
+            try {
+                // records of other processes stay in the journal, this record is replayed after them
+                mergeIfStale();
+                recordHistory(Collections.singletonList(new String[]{vaultBlock, attributeName}),
+                        Collections.singletonList(encryptedData));
+                if (!applyMutation(vaultBlock, attributeName, encryptedData, value)) {
+                    return 0;
+                }
+                if (encryptedData != null) {
+                    journal.appendStore(vaultBlock, attributeName, encryptedData);
+                } else {
+                    journal.appendRemove(vaultBlock, attributeName);
+                }
+                knownJournalLength = journal.size();
+                acknowledgeOwnWrite();
+            } finally {
+                fileLock.unlock();
+            }
+            return mutationCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Keep the current values of changed attributes to be recorded as previous versions, with HISTORY_SIZE only.
+     * Called holding the journal lock before the changes are applied, the history file is written once per commit.
+     *
+     * @param keys   vault block and attribute name of the changed attributes
+     * @param values new values, null for removed attributes
+     */
+    private void recordHistory(List<String[]> keys, List<byte[]> values) throws IOException {
+        if (historySize == 0) {
+            return;
+        }
+        List<byte[]> previous = new ArrayList<byte[]>(keys.size());
+        for (String[] key : keys) {
+            try {
+                previous.add(vaultContent.getVaultData(alias, key[0], key[1]));
+            } catch (IllegalStateException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+        for (String[] key : keys) {
+            historyKeys.add(SecurityVaultData.dataKey(null, key[0], key[1]));
+        }
+        historyPrevious.addAll(previous);
+        historyValues.addAll(values);
+    }
+
+    /**
+     * Record the changes kept since the last commit in the history file. Called holding the journal lock. Changes
+     * that could not be recorded are dropped, the history stays correct without them.
+     */
+    private void writeHistory() throws IOException {
+        if (historyKeys.isEmpty()) {
+            return;
+        }
+        fileLock.lock();
+        try {
+            history.record(historyKeys, historyPrevious, historyValues, historySize);
+        } finally {
+            historyKeys.clear();
+            historyPrevious.clear();
+            historyValues.clear();
+            fileLock.unlock();
+        }
+    }
+
+    private boolean applyMutation(String vaultBlock, String attributeName, byte[] encryptedData, char[] value) {
+        if (encryptedData != null) {
+            vaultContent.addVaultData(alias, vaultBlock, attributeName, encryptedData);
+            if (decryptedContent != null) {
+                wipe(decryptedContent.put(vaultBlock, attributeName, value.clone()));
+            }
+            return true;
+        }
+        if (!vaultContent.deleteVaultData(alias, vaultBlock, attributeName)) {
+            return false;
+        }
+        if (decryptedContent != null) {
+            wipe(decryptedContent.remove(vaultBlock, attributeName));
+        }
+        return true;
+    }
+
+    /**
+     * Group commit. One thread at a time leads a commit, which makes all mutations counted so far durable with
+     * one write and one sync. Threads whose mutation is covered by a finished commit return, the others wait and
+     * one of them leads the next commit.
+     *
+     * @param mutation sequence number of the mutation that has to be durable
+     */
+    private void commit(long mutation) throws IOException {
+        synchronized (commitLock) {
+            while (true) {
+                if (committedCount >= mutation) {
+                    return;
+                }
+                if (!committing) {
+                    committing = true;
+                    break;
+                }
+                try {
+                    commitLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        long committed = -1;
+        try {
+            if (groupCommitWindow > 0) {
+                // let concurrent mutations join this commit
+                try {
+                    Thread.sleep(groupCommitWindow);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            long counted;
+            boolean compact;
+            synchronized (journalLock) {
+                counted = mutationCount.get();
+                // one write of the history file for all mutations of this commit
+                writeHistory();
+                // bulk stores are not journaled
+                compact = !journalEnabled || !pendingMutations.isEmpty() || journal.size() >= journalCompactSize;
+                if (compact) {
+                    // vaultContent already holds every counted mutation
+                    writeVaultData();
+                }
+            }
+            if (!compact) {
+                journal.force();
+            }
+            committed = counted;
+        } finally {
+            synchronized (commitLock) {
+                committing = false;
+                if (committed > committedCount) {
+                    committedCount = committed;
+                }
+                commitLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes vault data with the configured {@link VaultDataCodec}, files in other layouts are converted on the first
+     * write. The file is replaced atomically, the journal is folded into it and dropped. Changes written by other
+     * processes in the meantime are merged first.
+     */
     private void writeVaultData() throws IOException {
-        FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
+        fileLock.lock();
+        try {
+            mergeIfStale();
+            long generation = knownGeneration + 1;
+            vaultContent = codec.write(vaultContent, generation, new CodecContext(null));
+            knownGeneration = generation;
+            ShardedVaultData.deleteUnlisted(new File(decodedEncFileDir + VAULT_CONTENT_FILE), vaultContent.getStoredData());
+            journal.reset();
+            knownJournalLength = 0;
+            pendingMutations.clear();
+            acknowledgeOwnWrite();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Whether the vault files have been changed by another process since this vault read or wrote them. Only the
+     * header of the vault data file and the length of the journal are read.
+     *
+     * @return
+     * @throws SecurityVaultException if the vault data file cannot be read
+     */
+    public boolean isStale() throws SecurityVaultException {
+        long generation;
+        long journalLength;
+        synchronized (journalLock) {
+            generation = knownGeneration;
+            journalLength = knownJournalLength;
+        }
+        try {
+            return filesChanged(generation, journalLength);
+        } catch (IOException e) {
+            throw new SecurityVaultException(e);
+        }
+    }
+
+    private boolean filesChanged(long generation, long journalLength) throws IOException {
+        if (journal.getFile().length() != journalLength) {
+            return true;
+        }
+        File file = new File(decodedEncFileDir + VAULT_CONTENT_FILE);
+        if (!file.exists()) {
+            return generation != 0;
+        }
+        FileInputStream fis = new FileInputStream(file);
         try {
-            fos = new FileOutputStream(decodedEncFileDir + VAULT_CONTENT_FILE);
-            oos = new ObjectOutputStream(fos);
-            oos.writeObject(vaultContent);
+            return VaultDataCodecs.readGeneration(fis.getChannel()) != generation;
         } finally {
-            safeClose(oos);
-            safeClose(fos);
+            safeClose(fis);
+        }
+    }
+
+    /**
+     * Bring the vault content up to date with vault files written by another process, mutations of this vault
+     * not written yet are applied again on top. Called holding the journal and the file lock.
+     */
+    private void mergeIfStale() throws Exception {
+        if (!filesChanged(knownGeneration, knownJournalLength)) {
+            return;
+        }
+        journal.refresh();
+        VaultSnapshot snapshot = readVaultDataFile(journal, true, true);
+        for (PendingMutation mutation : pendingMutations) {
+            mutation.applyTo(snapshot.data);
+        }
+        List<String[]> changed = replaceVaultContent(snapshot);
+        for (String[] entry : changed) {
+            fireVaultEntryChanged(entry[0], entry[1]);
+        }
+        log.info(sm.getString("picketBoxSecurityVault.merged", String.valueOf(changed.size()), decodedEncFileDir + VAULT_CONTENT_FILE));
+    }
+
+    private void acknowledgeOwnWrite() {
+        VaultFileWatcher fileWatcher = watcher;
+        if (fileWatcher != null) {
+            fileWatcher.acknowledge();
+        }
+    }
+
+    /**
+     * Replace the vault content by vault files changed by another process. Lookups keep using the previous content
+     * until the new one is published, listeners are only notified about changed entries.
+     *
+     * @return false if own mutations are not written yet, the files are reloaded later then
+     */
+    private boolean reloadVaultContent() {
+        List<String[]> changed;
+        synchronized (journalLock) {
+            synchronized (commitLock) {
+                if (committing || committedCount < mutationCount.get()) {
+                    return false;
+                }
+            }
+            try {
+                if (!filesChanged(knownGeneration, knownJournalLength)) {
+                    return true;
+                }
+                // other processes may be appending, the journal is not repaired
+                changed = replaceVaultContent(readVaultDataFile(new VaultJournal(journal.getFile()), false, true));
+                // the journal may have been compacted or appended to
+                journal.refresh();
+            } catch (Exception e) {
+                log.error(sm.getString("picketBoxSecurityVault.reloadFailed", decodedEncFileDir + VAULT_CONTENT_FILE), e);
+                return true;
+            }
+        }
+        for (String[] entry : changed) {
+            fireVaultEntryChanged(entry[0], entry[1]);
+        }
+        if (!changed.isEmpty()) {
+            log.info(sm.getString("picketBoxSecurityVault.reloaded", String.valueOf(changed.size()), decodedEncFileDir + VAULT_CONTENT_FILE));
+        }
+        return true;
+    }
+
+    /**
+     * Publish vault content read from the vault files. Called holding the journal lock.
+     *
+     * @param snapshot
+     * @return changed entries as vault block and attribute name
+     * @throws SecurityVaultException if a changed entry cannot be decrypted, the current content is kept then
+     */
+    private List<String[]> replaceVaultContent(VaultSnapshot snapshot) throws SecurityVaultException {
+        SecurityVaultData fresh = snapshot.data;
+        List<String[]> changed = new ArrayList<String[]>();
+        Set<String> changedBlocks = changedBlocks(vaultContent, fresh, snapshot.generation == knownGeneration);
+        Map<String, Map<String, byte[]>> currentContent;
+        Map<String, Map<String, byte[]>> freshContent;
+        if (changedBlocks == null) {
+            currentContent = vaultContent.getVaultContent();
+            freshContent = fresh.getVaultContent();
+        } else {
+            // vault files read on demand are only read where they may differ
+            currentContent = new HashMap<String, Map<String, byte[]>>();
+            freshContent = new HashMap<String, Map<String, byte[]>>();
+            for (String vaultBlock : changedBlocks) {
+                currentContent.put(vaultBlock, vaultContent.getVaultBlockData(vaultBlock));
+                freshContent.put(vaultBlock, fresh.getVaultBlockData(vaultBlock));
+            }
+        }
+        diff(currentContent, freshContent, changed);
+        diff(freshContent, currentContent, changed);
+
+        char[][] values = null;
+        if (decryptedContent != null) {
+            // decrypt before anything is published, a broken entry leaves the current content in place
+            values = new char[changed.size()][];
+            for (int i = 0; i < values.length; i++) {
+                byte[] encryptedValue = fresh.getVaultData(alias, changed.get(i)[0], changed.get(i)[1]);
+                values[i] = encryptedValue == null ? null : decrypt(encryptedValue);
+            }
+        }
+        vaultContent = fresh;
+        history.invalidate();
+        knownGeneration = snapshot.generation;
+        knownJournalLength = snapshot.journalLength;
+        damagedEntries = snapshot.damaged;
+        if (values != null) {
+            for (int i = 0; i < values.length; i++) {
+                String[] entry = changed.get(i);
+                wipe(values[i] == null ? decryptedContent.remove(entry[0], entry[1])
+                        : decryptedContent.put(entry[0], entry[1], values[i]));
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Vault blocks which may differ between vault data read from vault files at different times.
+     *
+     * @param sameGeneration whether both are based on the same vault data file, only their changes on top differ then
+     * @return vault blocks, null if all entries have to be compared
+     */
+    private static Set<String> changedBlocks(SecurityVaultData current, SecurityVaultData fresh, boolean sameGeneration) {
+        if (current.getStoredData() == null || fresh.getStoredData() == null) {
+            // held in memory, comparing all entries reads no files
+            return null;
+        }
+        Set<String> vaultBlocks = new HashSet<String>();
+        if (!sameGeneration) {
+            Set<String> changedBlocks = fresh.getStoredData().getChangedBlocks(current.getStoredData());
+            if (changedBlocks == null) {
+                return null;
+            }
+            vaultBlocks.addAll(changedBlocks);
+        }
+        vaultBlocks.addAll(current.getChangedBlocks());
+        vaultBlocks.addAll(fresh.getChangedBlocks());
+        return vaultBlocks;
+    }
+
+    /**
+     * Collect entries of from which are missing or different in to.
+     */
+    private static void diff(Map<String, Map<String, byte[]>> from, Map<String, Map<String, byte[]>> to, List<String[]> changed) {
+        Set<String> seen = new HashSet<String>();
+        for (String[] entry : changed) {
+            seen.add(SecurityVaultData.dataKey(null, entry[0], entry[1]));
+        }
+        for (Map.Entry<String, Map<String, byte[]>> block : from.entrySet()) {
+            Map<String, byte[]> other = to.get(block.getKey());
+            for (Map.Entry<String, byte[]> entry : block.getValue().entrySet()) {
+                byte[] value = other == null ? null : other.get(entry.getKey());
+                if (!Arrays.equals(entry.getValue(), value)
+                        && seen.add(SecurityVaultData.dataKey(null, block.getKey(), entry.getKey()))) {
+                    changed.add(new String[]{block.getKey(), entry.getKey()});
+                }
+            }
         }
     }
 
@@ -414,7 +1657,13 @@ public class PicketBoxSecurityVault implements SecurityVault {
         }
     }
 
-    private void readVaultContent(String keystoreURL, String encFileDir) throws SecurityVaultException {
+    /**
+     * Resolve the vault directory and set up access to the vault files in it.
+     *
+     * @param encFileDir
+     * @throws SecurityVaultException if the directory does not exist
+     */
+    private void openVaultFiles(String encFileDir) throws SecurityVaultException {
 
         try {
             if (encFileDir.contains("${)")) {
@@ -429,7 +1678,31 @@ public class PicketBoxSecurityVault implements SecurityVault {
                 decodedEncFileDir = decodedEncFileDir + File.separator;
             }
 
+            synchronized (journalLock) {
+                if (journal != null) {
+                    journal.close();
+                }
+                journal = new VaultJournal(new File(decodedEncFileDir + VAULT_JOURNAL_FILE));
+                fileLock = new VaultFileLock(new File(decodedEncFileDir + VAULT_LOCK_FILE));
+                history = new VaultHistory(new File(decodedEncFileDir + VAULT_HISTORY_FILE));
+                knownGeneration = 0;
+                knownJournalLength = 0;
+                pendingMutations.clear();
+                historyKeys.clear();
+                historyPrevious.clear();
+                historyValues.clear();
+            }
+        } catch (Exception e) {
+            throw new SecurityVaultException(e);
+        }
+    }
+
+    private void readVaultContent(String keystoreURL, String password, String salt, int iterationCount)
+            throws SecurityVaultException {
+
+        try {
             if (vaultFileExists(ENCODED_FILE)) {
+                unlockKeyStore(keystoreURL, password, salt, iterationCount);
                 if (vaultFileExists(VAULT_CONTENT_FILE)) {
                     log.error(sm.getString("picketBoxSecurityVault.mixedVaultDataFound",
                             VAULT_CONTENT_FILE, ENCODED_FILE, decodedEncFileDir + ENCODED_FILE));
@@ -439,8 +1712,9 @@ public class PicketBoxSecurityVault implements SecurityVault {
                 }
             } else {
                 if (vaultFileExists(VAULT_CONTENT_FILE)) {
-                    readVersionedVaultContent();
+                    readVersionedVaultContent(keystoreURL, password, salt, iterationCount);
                 } else {
+                    unlockKeyStore(keystoreURL, password, salt, iterationCount);
                     setUpVault(keystoreURL, decodedEncFileDir);
                 }
             }
@@ -451,6 +1725,18 @@ public class PicketBoxSecurityVault implements SecurityVault {
 
     }
 
+    /**
+     * Unmask the key store password, unless already done, load the key store and convert it to JCEKS if needed.
+     */
+    private void unlockKeyStore(String keystoreURL, String password, String salt, int iterationCount) throws Exception {
+        if (keyStorePWD == null) {
+            keyStorePWD = loadKeystorePassword(password, salt, iterationCount);
+        }
+        keystore = getKeyStore(keystoreURL);
+
+        checkAndConvertKeyStoreToJCEKS(keystoreURL);
+    }
+
     @SuppressWarnings("unchecked")
     private void convertVaultContent(String keystoreURL, String alias) throws Exception {
         FileInputStream fis = null;
@@ -526,7 +1812,11 @@ public class PicketBoxSecurityVault implements SecurityVault {
     }
 
     private void saveKeyStoreToFile(String keystoreURL) throws Exception {
-        keystore.store(new FileOutputStream(new File(keystoreURL)), keyStorePWD);
+        VaultFiles.writeAtomically(new File(keystoreURL), new VaultFiles.Content() {
+            public void writeTo(OutputStream os) throws IOException, GeneralSecurityException {
+                keystore.store(os, keyStorePWD);
+            }
+        });
     }
 
     private void checkAndConvertKeyStoreToJCEKS(String keystoreURL) throws Exception {
@@ -552,21 +1842,282 @@ public class PicketBoxSecurityVault implements SecurityVault {
     }
 
 
-    private void readVersionedVaultContent() throws Exception {
+    /**
+     * Unlock the key store and read the vault data file concurrently on the worker pool, neither depends on the
+     * other. Both are complete before the admin key is checked and the vault content is published.
+     */
+    private void readVersionedVaultContent(final String keystoreURL, final String password, final String salt,
+                                           final int iterationCount) throws Exception {
+        ExecutorService pool = getWorkerPool();
+        CompletableFuture<SecretKey> unlocked = CompletableFuture.supplyAsync(new Supplier<SecretKey>() {
+            public SecretKey get() {
+                try {
+                    unlockKeyStore(keystoreURL, password, salt, iterationCount);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+                return getAdminKey();
+            }
+        }, pool);
+        CompletableFuture<VaultSnapshot> parsed = CompletableFuture.supplyAsync(new Supplier<VaultSnapshot>() {
+            public VaultSnapshot get() {
+                try {
+                    // nothing is repaired before the admin key is confirmed
+                    return readVaultDataFileExclusively(false);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, pool);
+
+        SecretKey secretKey;
+        VaultSnapshot snapshot;
+        try {
+            // a failure to unlock the key store is reported first, it may also explain the other one
+            secretKey = unlocked.join();
+        } catch (CompletionException e) {
+            // not started yet, it is not run, otherwise its result is dropped
+            parsed.cancel(false);
+            throw unwrap(e);
+        }
+        if (secretKey == null) {
+            parsed.cancel(false);
+            throw new RuntimeException(msm.getString("vaultDoesnotContainSecretKey", alias));
+        }
+        try {
+            snapshot = parsed.join();
+        } catch (CompletionException e) {
+            throw unwrap(e);
+        }
+        if (snapshot.repairNeeded) {
+            // read again cutting off the damaged journal tail and copying the damaged vault data file aside
+            snapshot = readVaultDataFileExclusively(true);
+        }
+        adminKey = secretKey;
+        useVaultSnapshot(snapshot);
+    }
+
+    private static Exception unwrap(CompletionException e) {
+        if (e.getCause() instanceof Exception) {
+            return (Exception) e.getCause();
+        }
+        return e;
+    }
+
+    /**
+     * Initialize from the fast start file.
+     *
+     * @param fastStartFile
+     * @param keystoreURL
+     * @return false if the file is missing, stale or unreadable, the key store and vault files are read then
+     */
+    private boolean readFastStart(VaultFastStart fastStartFile, String keystoreURL) {
+        try {
+            if (!vaultFileExists(VAULT_CONTENT_FILE)) {
+                return false;
+            }
+            VaultFastStart.State state = fastStartFile.read(keyStorePWD, keystoreURL, alias);
+            if (state == null) {
+                return false;
+            }
+            adminKey = state.adminKey;
+            if (state.content != null) {
+                vaultContent = state.content;
+                knownGeneration = state.generation;
+                knownJournalLength = state.journalLength;
+                damagedEntries = Collections.emptySet();
+            } else {
+                loadVaultDataFile();
+            }
+        } catch (Exception e) {
+            log.warn(sm.getString("picketBoxSecurityVault.fastStartUnreadable", fastStartFile.getFile().getPath()), e);
+            return false;
+        }
+        // the key store is only needed to set up or convert a vault
+        keystore = null;
+        log.info(sm.getString("picketBoxSecurityVault.fastStart", fastStartFile.getFile().getPath()));
+        return true;
+    }
+
+    /**
+     * Keep the initialized vault state for the next start. Failures are logged, the vault is usable anyway.
+     *
+     * @param fastStartFile
+     * @param keystoreURL
+     * @param stamp         state of the key store and vault files before they were read
+     */
+    private void writeFastStart(VaultFastStart fastStartFile, String keystoreURL, VaultFastStart.Stamp stamp) {
+        try {
+            if (!damagedEntries.isEmpty()) {
+                // reported on every start until the vault data file is repaired
+                fastStartFile.delete();
+                return;
+            }
+            // stored vault data is read on demand anyway
+            SecurityVaultData content = vaultContent.getStoredData() == null ? vaultContent : null;
+            fastStartFile.write(keyStorePWD, keystoreURL, alias, stamp,
+                    new VaultFastStart.State(adminKey, knownGeneration, knownJournalLength, content));
+        } catch (Exception e) {
+            log.warn(sm.getString("picketBoxSecurityVault.fastStartNotWritten", fastStartFile.getFile().getPath()), e);
+        }
+    }
+
+    /**
+     * Read the vault data file and replay the journal, the result becomes the vault content.
+     */
+    private void loadVaultDataFile() throws Exception {
+        useVaultSnapshot(readVaultDataFileExclusively(true));
+    }
+
+    /**
+     * @param repair whether a damaged journal tail is cut off and a vault data file with damaged entries is copied
+     *               aside, see {@link #readVaultDataFile}
+     */
+    private VaultSnapshot readVaultDataFileExclusively(boolean repair) throws Exception {
+        fileLock.lock();
+        try {
+            // a torn journal tail is only cut off while no other process appends
+            return readVaultDataFile(journal, repair, repair);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private void useVaultSnapshot(VaultSnapshot snapshot) {
+        vaultContent = snapshot.data;
+        knownGeneration = snapshot.generation;
+        knownJournalLength = snapshot.journalLength;
+        damagedEntries = snapshot.damaged;
+    }
+
+    /**
+     * Read the vault data file in any of its layouts and replay the journal over it.
+     *
+     * @param journal
+     * @param repairJournal whether a damaged journal tail is cut off
+     * @param copyDamaged   whether the vault data file is copied aside if it has damaged entries
+     * @return
+     * @throws Exception
+     */
+    private VaultSnapshot readVaultDataFile(VaultJournal journal, boolean repairJournal, boolean copyDamaged) throws Exception {
+        SecurityVaultData vaultContent;
+        long generation;
+        List<String> damaged = new ArrayList<String>();
         FileInputStream fis = null;
-        ObjectInputStream ois = null;
         try {
             fis = new FileInputStream(decodedEncFileDir + VAULT_CONTENT_FILE);
-            ois = new ObjectInputStream(fis);
-            vaultContent = (SecurityVaultData) ois.readObject();
+            FileChannel channel = fis.getChannel();
+            VaultDataCodec fileCodec = VaultDataCodecs.detect(channel);
+            if (fileCodec == null) {
+                throw new IOException(sm.getString("picketBoxSecurityVault.unknownVaultDataFormat", decodedEncFileDir + VAULT_CONTENT_FILE));
+            }
+            generation = fileCodec.readGeneration(channel);
+            // files in another layout are rewritten with the configured codec by the next write
+            vaultContent = fileCodec.read(channel, new CodecContext(damaged));
+            if (!damaged.isEmpty() && copyDamaged) {
+                // the next write drops the damaged entries, keep what is left of them
+                Files.copy(new File(decodedEncFileDir + VAULT_CONTENT_FILE).toPath(),
+                        new File(decodedEncFileDir + VAULT_DAMAGED_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                log.error(sm.getString("picketBoxSecurityVault.damagedEntries", decodedEncFileDir + VAULT_CONTENT_FILE,
+                        String.valueOf(damaged.size()), damaged.toString(), decodedEncFileDir + VAULT_DAMAGED_FILE));
+            }
         } finally {
             safeClose(fis);
-            safeClose(ois);
         }
+        int replayed = journal.replay(vaultContent, repairJournal);
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("picketBoxSecurityVault.journalReplayed", String.valueOf(replayed), journal.getFile().getPath()));
+        }
+        return new VaultSnapshot(vaultContent, generation, journal.replayedLength(),
+                damaged.isEmpty() ? Collections.<String>emptySet() : new HashSet<String>(damaged),
+                (!damaged.isEmpty() && !copyDamaged) || (journal.hasDamagedTail() && !repairJournal));
+    }
 
-        adminKey = getAdminKey();
-        if (adminKey == null) {
-            throw new RuntimeException(msm.getString("vaultDoesnotContainSecretKey", alias));
+    /**
+     * Vault data file access for codecs.
+     */
+    private final class CodecContext implements VaultDataCodec.Context {
+        // null while writing
+        private final List<String> damaged;
+
+        CodecContext(List<String> damaged) {
+            this.damaged = damaged;
+        }
+
+        public File getFile() {
+            return new File(decodedEncFileDir + VAULT_CONTENT_FILE);
+        }
+
+        public Map<String, Object> getOptions() {
+            return options;
+        }
+
+        public ExecutorService getWorkerPool() {
+            return PicketBoxSecurityVault.this.getWorkerPool();
+        }
+
+        public void reportDamaged(String vaultBlock, String attributeName) {
+            if (damaged != null) {
+                damaged.add(vaultBlock == null ? attributeName : SecurityVaultData.dataKey(null, vaultBlock, attributeName));
+            }
+        }
+
+        public void writeAtomically(File file, final VaultDataCodec.Output content) throws IOException {
+            try {
+                VaultFiles.writeAtomically(file, new VaultFiles.Content() {
+                    public void writeTo(OutputStream os) throws IOException {
+                        content.writeTo(os);
+                    }
+                });
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Vault content with the state of the vault files it was read from.
+     */
+    private static final class VaultSnapshot {
+        final SecurityVaultData data;
+        final long generation;
+        final long journalLength;
+        // keys of entries which could not be read
+        final Set<String> damaged;
+        // whether damaged files were read without repairing them
+        final boolean repairNeeded;
+
+        VaultSnapshot(SecurityVaultData data, long generation, long journalLength, Set<String> damaged,
+                      boolean repairNeeded) {
+            this.data = data;
+            this.generation = generation;
+            this.journalLength = journalLength;
+            this.damaged = damaged;
+            this.repairNeeded = repairNeeded;
+        }
+    }
+
+    /**
+     * Stored or removed attribute not written to the vault data file yet.
+     */
+    private static final class PendingMutation {
+        final String vaultBlock;
+        final String attributeName;
+        // null if the attribute was removed
+        final byte[] encryptedData;
+
+        PendingMutation(String vaultBlock, String attributeName, byte[] encryptedData) {
+            this.vaultBlock = vaultBlock;
+            this.attributeName = attributeName;
+            this.encryptedData = encryptedData;
+        }
+
+        void applyTo(SecurityVaultData data) {
+            if (encryptedData != null) {
+                data.addVaultData(null, vaultBlock, attributeName, encryptedData);
+            } else {
+                data.deleteVaultData(null, vaultBlock, attributeName);
+            }
         }
     }
 
@@ -22,6 +22,18 @@
 
 package org.apache.tomcat.vault.security.vault;
 
+import org.apache.tomcat.util.res.StringManager;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -32,6 +44,11 @@ import java.util.Set;
  * @since Aug 12, 2011
  */
 public interface SecurityVault {
+    /**
+     * Version number denoting the current value of an attribute
+     */
+    int LATEST_VERSION = 0;
+
     /**
      * Initialize the vault
      *
@@ -96,6 +113,93 @@ public interface SecurityVault {
      */
     char[] retrieve(String vaultBlock, String attributeName, byte[] sharedKey) throws SecurityVaultException;
 
+    /**
+     * Retrieve a version of the attribute value. Versions are numbered per attribute starting at 1, every stored
+     * value gets the next number.
+     *
+     * @param vaultBlock
+     * @param attributeName
+     * @param sharedKey
+     * @param version       version number, {@link #LATEST_VERSION} for the current value
+     * @return
+     * @throws SecurityVaultException if the version is not kept by the vault
+     */
+    default char[] retrieve(String vaultBlock, String attributeName, byte[] sharedKey, int version) throws SecurityVaultException {
+        if (version == LATEST_VERSION) {
+            return retrieve(vaultBlock, attributeName, sharedKey);
+        }
+        StringManager msm = StringManager.getManager("org.apache.tomcat.vault.security.resources");
+        throw new SecurityVaultException(msm.getString("versionsNotSupported"));
+    }
+
+    /**
+     * Retrieve the attribute value into given buffer, so no copy of the value is left behind on the heap.
+     *
+     * @param vaultBlock
+     * @param attributeName
+     * @param value buffer the value is written to, starting at its current position
+     * @return number of characters written
+     * @throws SecurityVaultException
+     * @throws BufferOverflowException if the value does not fit into the remaining space of the buffer, nothing is
+     *                                 written in that case
+     */
+    default int retrieveInto(String vaultBlock, String attributeName, CharBuffer value) throws SecurityVaultException {
+        char[] retrieved = retrieve(vaultBlock, attributeName, null);
+        try {
+            if (retrieved.length > value.remaining()) {
+                throw new BufferOverflowException();
+            }
+            value.put(retrieved);
+            return retrieved.length;
+        } finally {
+            Arrays.fill(retrieved, '\0');
+        }
+    }
+
+    /**
+     * Retrieve all attribute values stored in a vault block.
+     *
+     * @param vaultBlock
+     * @return attribute values keyed by attribute name, empty if the vault block does not exist
+     * @throws SecurityVaultException
+     */
+    default Map<String, char[]> retrieveBlock(String vaultBlock) throws SecurityVaultException {
+        String prefix = vaultBlock + "::";
+        Map<String, char[]> values = new HashMap<String, char[]>();
+        for (String key : keyList()) {
+            if (key.startsWith(prefix)) {
+                String attributeName = key.substring(prefix.length());
+                values.put(attributeName, retrieve(vaultBlock, attributeName, null));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Retrieve several attribute values at once. Missing attributes and attributes which fail to be retrieved
+     * are reported in the result instead of aborting the whole retrieval.
+     *
+     * @param references
+     * @param sharedKey
+     * @return
+     * @throws SecurityVaultException
+     */
+    default VaultRetrievalResult retrieveAll(Collection<VaultRef> references, byte[] sharedKey) throws SecurityVaultException {
+        VaultRetrievalResult result = new VaultRetrievalResult();
+        for (VaultRef ref : references) {
+            if (!exists(ref.getVaultBlock(), ref.getAttributeName())) {
+                result.addMissing(ref);
+                continue;
+            }
+            try {
+                result.addValue(ref, retrieve(ref.getVaultBlock(), ref.getAttributeName(), sharedKey));
+            } catch (SecurityVaultException e) {
+                result.addFailure(ref, e);
+            }
+        }
+        return result;
+    }
+
     /**
      * Remove an existing attribute value
      *
@@ -107,4 +211,86 @@ public interface SecurityVault {
      * @since v4.0.4.final
      */
     boolean remove(String vaultBlock, String attributeName, byte[] sharedKey) throws SecurityVaultException;
+
+    /**
+     * Store many attribute values at once. Entries are consumed from the iterator as they are stored, so the
+     * iterator may stream them from a file of any size.
+     *
+     * @param entries   entries to store, later entries of the same attribute replace earlier ones
+     * @param sharedKey
+     * @return number of entries stored
+     * @throws SecurityVaultException if an entry cannot be read or stored, entries stored before are kept and
+     *                                 their number is part of the message, the cause is the original failure
+     */
+    default int storeAll(Iterator<VaultEntry> entries, byte[] sharedKey) throws SecurityVaultException {
+        StringManager msm = StringManager.getManager("org.apache.tomcat.vault.security.resources");
+        int count = 0;
+        try {
+            while (entries.hasNext()) {
+                VaultEntry entry = entries.next();
+                if (entry.isEncrypted()) {
+                    throw new SecurityVaultException(msm.getString("encryptedEntriesNotSupported"));
+                }
+                store(entry.getVaultBlock(), entry.getAttributeName(), entry.getValue(), sharedKey);
+                count++;
+            }
+        } catch (SecurityVaultException e) {
+            throw new SecurityVaultException(msm.getString("partiallyStored", count, e.getMessage()), e);
+        } catch (RuntimeException e) {
+            throw new SecurityVaultException(msm.getString("partiallyStored", count, e.getMessage()), e);
+        }
+        return count;
+    }
+
+    /**
+     * Pass all attribute values to given handler, sorted by vault block and attribute name.
+     *
+     * @param handler
+     * @param encrypted whether values are exported as stored in the vault instead of in plain text
+     * @return number of entries exported
+     * @throws SecurityVaultException
+     * @throws IOException thrown by the handler
+     */
+    default int exportAll(VaultEntryHandler handler, boolean encrypted) throws SecurityVaultException, IOException {
+        if (encrypted) {
+            StringManager msm = StringManager.getManager("org.apache.tomcat.vault.security.resources");
+            throw new SecurityVaultException(msm.getString("encryptedEntriesNotSupported"));
+        }
+        List<String> keys = new ArrayList<String>(keyList());
+        Collections.sort(keys);
+        int count = 0;
+        for (String key : keys) {
+            int separator = key.indexOf("::");
+            if (separator < 0) {
+                continue;
+            }
+            String vaultBlock = key.substring(0, separator);
+            String attributeName = key.substring(separator + 2);
+            char[] value = retrieve(vaultBlock, attributeName, null);
+            try {
+                handler.handle(VaultEntry.plain(vaultBlock, attributeName, value));
+            } finally {
+                Arrays.fill(value, '\0');
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Register a listener to be notified about changed attribute values.
+     *
+     * @param listener
+     * @return true if the vault notifies listeners, false if change notification is not supported
+     */
+    default boolean addVaultListener(SecurityVaultListener listener) {
+        return false;
+    }
+
+    /**
+     * Stop background work of the vault and release its threads and open files. The vault has to be initialized
+     * again before it is used.
+     */
+    default void close() {
+    }
 }
\ No newline at end of file
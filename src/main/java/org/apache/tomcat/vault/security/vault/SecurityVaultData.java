@@ -31,12 +31,19 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Security vault data store with version serialized data storage.
+ * <p>
+ * Java serialization is the version 1 vault data file layout, which is still read. Vault data files are read and
+ * written by a {@link VaultDataCodec}. Vault data backed by files read on demand keeps changes made since the files
+ * were opened in memory, removed entries are masked.
  *
  * @author Peter Skopek (pskopek_at_redhat_dot_com)
  */
@@ -56,7 +63,16 @@ public class SecurityVaultData implements Serializable {
      */
     private static final int VERSION = 1;
 
-    private transient Map<String, byte[]> vaultData = new ConcurrentHashMap<String, byte[]>();
+    private transient BlockIndex<byte[]> vaultData = new BlockIndex<byte[]>();
+
+    // version 1 keys without vault block separator, kept only to be written back unchanged
+    private transient Map<String, byte[]> unindexedData = new ConcurrentHashMap<String, byte[]>();
+
+    // read only base of vault files read on demand, vaultData then only holds changes
+    private transient StoredVaultData storedData;
+
+    // marks an entry of storedData as removed
+    private static final byte[] REMOVED = new byte[0];
 
 
     /**
@@ -66,14 +82,32 @@ public class SecurityVaultData implements Serializable {
     }
 
     /**
-     * Writes object to the ObjectOutputSteream.
+     * Vault data on top of vault files read on demand. Entries added or removed later are kept in memory, the
+     * stored data is not changed.
+     *
+     * @param storedData
+     */
+    public SecurityVaultData(StoredVaultData storedData) {
+        this.storedData = storedData;
+        unindexedData.putAll(storedData.getUnindexedData());
+    }
+
+    /**
+     * Writes object to the ObjectOutputSteream. The block index is flattened to the version 1 layout, so the data
+     * stays readable by older releases.
      *
      * @param oos
      * @throws IOException
      */
     private void writeObject(ObjectOutputStream oos) throws IOException {
+        Map<String, byte[]> flat = new ConcurrentHashMap<String, byte[]>(unindexedData);
+        for (Map.Entry<String, Map<String, byte[]>> block : getVaultContent().entrySet()) {
+            for (Map.Entry<String, byte[]> entry : block.getValue().entrySet()) {
+                flat.put(dataKey(null, block.getKey(), entry.getKey()), entry.getValue());
+            }
+        }
         oos.writeObject(new Integer(VERSION));
-        oos.writeObject(vaultData);
+        oos.writeObject(flat);
     }
 
     /**
@@ -93,7 +127,25 @@ public class SecurityVaultData implements Serializable {
         }
 
         if (version == 1) {
-            this.vaultData = (Map<String, byte[]>) ois.readObject();
+            vaultData = new BlockIndex<byte[]>();
+            unindexedData = new ConcurrentHashMap<String, byte[]>();
+            Map<String, byte[]> flat = (Map<String, byte[]>) ois.readObject();
+            for (Map.Entry<String, byte[]> entry : flat.entrySet()) {
+                String key = entry.getKey();
+                int sep = key.indexOf(StringUtil.PROPERTY_DEFAULT_SEPARATOR);
+                if (sep < 0) {
+                    log.warn(sm.getString("securityVaultData.unindexedKey", key));
+                    unindexedData.put(key, entry.getValue());
+                    continue;
+                }
+                String vaultBlock = key.substring(0, sep);
+                String attributeName = key.substring(sep + StringUtil.PROPERTY_DEFAULT_SEPARATOR.length());
+                if (attributeName.contains(StringUtil.PROPERTY_DEFAULT_SEPARATOR)) {
+                    log.info(sm.getString("securityVaultData.ambiguousKey", StringUtil.PROPERTY_DEFAULT_SEPARATOR,
+                            vaultBlock, attributeName));
+                }
+                vaultData.put(vaultBlock, attributeName, entry.getValue());
+            }
         } else {
             throw new RuntimeException(msm.getString("unrecognizedVaultContentVersion", String.valueOf(version), "1", String.valueOf(VERSION)));
         }
@@ -107,42 +159,147 @@ public class SecurityVaultData implements Serializable {
      * @param attributeName
      * @return
      */
-    byte[] getVaultData(String keyAlias, String vaultBlock, String attributeName) {
-        return vaultData.get(dataKey(keyAlias, vaultBlock, attributeName));
+    public byte[] getVaultData(String keyAlias, String vaultBlock, String attributeName) {
+        byte[] value = vaultData.get(vaultBlock, attributeName);
+        if (value == null && storedData != null) {
+            value = storedData.get(vaultBlock, attributeName);
+        }
+        return value == REMOVED ? null : value;
     }
 
     /**
-     * @param keyAlias
+     * @param keyAlias      - currently not used (for possible future extension)
      * @param vaultBlock
      * @param attributeName
      * @param encryptedData
      */
-    void addVaultData(String keyAlias, String vaultBlock, String attributeName, byte[] encryptedData) {
-        vaultData.put(dataKey(keyAlias, vaultBlock, attributeName), encryptedData);
+    public void addVaultData(String keyAlias, String vaultBlock, String attributeName, byte[] encryptedData) {
+        vaultData.put(vaultBlock, attributeName, encryptedData);
     }
 
     /**
      * Removes data stored in vault storage.
      *
-     * @param keyAlias
+     * @param keyAlias      - currently not used (for possible future extension)
      * @param vaultBlock
      * @param attributeName
      * @return true when vault data has been removed successfully, otherwise false
      */
-    boolean deleteVaultData(String keyAlias, String vaultBlock, String attributeName) {
-        if (vaultData.remove(dataKey(keyAlias, vaultBlock, attributeName)) == null) {
-            return false;
+    public boolean deleteVaultData(String keyAlias, String vaultBlock, String attributeName) {
+        if (storedData == null) {
+            return vaultData.remove(vaultBlock, attributeName) != null;
         }
-        return true;
+        byte[] previous = vaultData.put(vaultBlock, attributeName, REMOVED);
+        if (previous == null) {
+            previous = storedData.get(vaultBlock, attributeName);
+        }
+        return previous != null && previous != REMOVED;
     }
 
     /**
-     * Returns mapping keys for all stored data.
+     * Returns mapping keys for all stored data in the {@link #dataKey(String, String, String)} format.
      *
-     * @return
+     * @return snapshot of the keys
      */
     Set<String> getVaultDataKeys() {
-        return vaultData.keySet();
+        Set<String> keys = new HashSet<String>();
+        for (Map.Entry<String, Map<String, byte[]>> block : getVaultContent().entrySet()) {
+            for (String attributeName : block.getValue().keySet()) {
+                keys.add(dataKey(null, block.getKey(), attributeName));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns names of all vault blocks holding data.
+     *
+     * @return
+     */
+    Set<String> getVaultBlocks() {
+        return storedData == null ? vaultData.getBlocks() : getVaultContent().keySet();
+    }
+
+    /**
+     * Returns data stored in one vault block keyed by attribute name.
+     *
+     * @param vaultBlock
+     * @return read only view, empty if there is no such block
+     */
+    public Map<String, byte[]> getVaultBlockData(String vaultBlock) {
+        if (storedData == null) {
+            return vaultData.getBlock(vaultBlock);
+        }
+        Map<String, byte[]> attributes = storedData.getBlock(vaultBlock);
+        merge(attributes, vaultData.getBlock(vaultBlock));
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * Returns all data grouped by vault block.
+     *
+     * @return snapshot, values are not copied
+     */
+    public Map<String, Map<String, byte[]>> getVaultContent() {
+        Map<String, Map<String, byte[]>> content = storedData != null ? storedData.getAll()
+                : new HashMap<String, Map<String, byte[]>>();
+        for (String vaultBlock : vaultData.getBlocks()) {
+            Map<String, byte[]> attributes = content.get(vaultBlock);
+            if (attributes == null) {
+                attributes = new HashMap<String, byte[]>();
+                content.put(vaultBlock, attributes);
+            }
+            merge(attributes, vaultData.getBlock(vaultBlock));
+            if (attributes.isEmpty()) {
+                content.remove(vaultBlock);
+            }
+        }
+        return content;
+    }
+
+    private static void merge(Map<String, byte[]> attributes, Map<String, byte[]> changes) {
+        for (Map.Entry<String, byte[]> entry : changes.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                attributes.remove(entry.getKey());
+            } else {
+                attributes.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return vault files this data is based on, null if all data is held in memory
+     */
+    public StoredVaultData getStoredData() {
+        return storedData;
+    }
+
+    /**
+     * Returns vault blocks changed since the vault files this data is based on were opened.
+     *
+     * @return
+     */
+    Set<String> getChangedBlocks() {
+        return vaultData.getBlocks();
+    }
+
+    /**
+     * Returns entries without vault block read from an old vault data file.
+     *
+     * @return
+     */
+    public Map<String, byte[]> getUnindexedData() {
+        return unindexedData;
+    }
+
+    /**
+     * Keeps an entry without vault block, so it can be written back unchanged.
+     *
+     * @param key
+     * @param encryptedData
+     */
+    public void addUnindexedData(String key, byte[] encryptedData) {
+        unindexedData.put(key, encryptedData);
     }
 
     /**
@@ -151,10 +308,9 @@ public class SecurityVaultData implements Serializable {
      * @param keyAlias      - currently not used (for possible future extension)
      * @param vaultBlock
      * @param attributeName
-     * @param alias
      * @return
      */
-    private static String dataKey(String keyAlias, String vaultBlock, String attributeName) {
+    static String dataKey(String keyAlias, String vaultBlock, String attributeName) {
         return vaultBlock + StringUtil.PROPERTY_DEFAULT_SEPARATOR + attributeName;
     }
 
@@ -0,0 +1,450 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.apache.tomcat.vault.security.vault;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.res.StringManager;
+import org.apache.tomcat.vault.util.StringUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Read only vault data split into shard files by vault block, for vaults too large to be read or rewritten as a
+ * whole. The vault data file becomes a manifest and every shard file holds the vault blocks hashed to it in the
+ * version 2 layout of {@link VaultDataFormat}. A shard is read when one of its vault blocks is first looked up, a
+ * write adds new files for the shards holding changed vault blocks and then replaces the manifest.
+ * <p>
+ * Manifest layout (version 4), numbers are big-endian and strings are written the way {@link VaultDataFormat}
+ * writes them:
+ * <pre>
+ * magic "TVLT" | version (int) | flags (int) | generation (long) | shard count (int)
+ * generation each shard was written with (long, 0 for an empty shard without file)...
+ * entry count (int) | entries without vault block: attribute name (string) | value length (int) | value...
+ * CRC32 of all preceding bytes (int)
+ * </pre>
+ * Shard files are named after the manifest, their number and the generation they were written with, e.g.
+ * VAULT.dat.007-12. Written shard files are never replaced, so the manifest is the only commit point: a crash
+ * before it is replaced leaves the previous manifest and all of its shards in place. Shard files no longer listed
+ * are deleted once the manifest is replaced.
+ */
+final class ShardedVaultData implements StoredVaultData {
+
+    private static final Log log = LogFactory.getLog(ShardedVaultData.class);
+    private static final StringManager sm = StringManager.getManager(ShardedVaultData.class.getPackage().getName());
+
+    static final int VERSION = 4;
+    static final int MAX_SHARDS = 4096;
+    static final int DEFAULT_SHARDS = 64;
+
+    private static final String SEPARATOR = StringUtil.PROPERTY_DEFAULT_SEPARATOR;
+    private static final int MIN_MANIFEST_SIZE = 32;
+
+    private final File manifest;
+    private final int shardCount;
+    private final long[] shardGenerations;
+    // vault blocks of each shard, null until the shard is read
+    private final AtomicReferenceArray<Map<String, Map<String, byte[]>>> shards;
+    private final Map<String, byte[]> unindexedData;
+
+    private ShardedVaultData(File manifest, long[] shardGenerations,
+                             AtomicReferenceArray<Map<String, Map<String, byte[]>>> shards, Map<String, byte[]> unindexedData) {
+        this.manifest = manifest;
+        this.shardCount = shardGenerations.length;
+        this.shardGenerations = shardGenerations;
+        this.shards = shards;
+        this.unindexedData = unindexedData;
+    }
+
+    /**
+     * Read a manifest, shards are read on demand.
+     *
+     * @param manifest manifest file, shard files are looked up next to it
+     * @param channel  channel of the manifest, it is not closed
+     * @return
+     * @throws IOException if the manifest is malformed or damaged
+     */
+    static ShardedVaultData read(File manifest, FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < MIN_MANIFEST_SIZE) {
+            throw new IOException(sm.getString("vaultDataFormat.truncated"));
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(sm.getString("vaultDataFormat.corrupted"));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+            // read the whole manifest
+        }
+        if (buffer.hasRemaining()) {
+            throw new IOException(sm.getString("vaultDataFormat.truncated"));
+        }
+        buffer.flip();
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.limit() - 4);
+        if (buffer.getInt(buffer.limit() - 4) != (int) crc.getValue()) {
+            throw new IOException(sm.getString("vaultDataFormat.checksumMismatch"));
+        }
+        buffer.limit(buffer.limit() - 4);
+
+        try {
+            if (buffer.getInt() != VaultDataFormat.MAGIC) {
+                throw new IOException(sm.getString("vaultDataFormat.notVaultData"));
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(sm.getString("vaultDataFormat.unsupportedVersion", String.valueOf(version), String.valueOf(VERSION)));
+            }
+            if ((buffer.getInt() & VaultDataFormat.FLAG_GENERATION) != 0) {
+                buffer.getLong();
+            }
+            int shardCount = buffer.getInt();
+            if (shardCount < 1 || shardCount > MAX_SHARDS) {
+                throw new IOException(sm.getString("vaultDataFormat.corrupted"));
+            }
+            long[] shardGenerations = new long[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                shardGenerations[i] = buffer.getLong();
+                if (shardGenerations[i] < 0) {
+                    throw new IOException(sm.getString("vaultDataFormat.corrupted"));
+                }
+            }
+            Map<String, byte[]> unindexedData = new HashMap<String, byte[]>();
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String attributeName = new String(readBytes(buffer), StandardCharsets.UTF_8);
+                unindexedData.put(attributeName, readBytes(buffer));
+            }
+            return new ShardedVaultData(manifest, shardGenerations,
+                    new AtomicReferenceArray<Map<String, Map<String, byte[]>>>(shardCount), unindexedData);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(sm.getString("vaultDataFormat.corrupted"), e);
+        }
+    }
+
+    int getShardCount() {
+        return shardCount;
+    }
+
+    public Map<String, byte[]> getUnindexedData() {
+        return unindexedData;
+    }
+
+    public byte[] get(String vaultBlock, String attributeName) {
+        int sep = vaultBlock.indexOf(SEPARATOR);
+        if (sep >= 0) {
+            return get(vaultBlock.substring(0, sep), vaultBlock.substring(sep + SEPARATOR.length()) + SEPARATOR + attributeName);
+        }
+        Map<String, byte[]> attributes = shard(shardOf(vaultBlock, shardCount)).get(vaultBlock);
+        return attributes == null ? null : attributes.get(attributeName);
+    }
+
+    public Map<String, byte[]> getBlock(String vaultBlock) {
+        int sep = vaultBlock.indexOf(SEPARATOR);
+        if (sep >= 0) {
+            return BlockIndex.subBlock(getBlock(vaultBlock.substring(0, sep)), vaultBlock.substring(sep + SEPARATOR.length()));
+        }
+        Map<String, byte[]> attributes = shard(shardOf(vaultBlock, shardCount)).get(vaultBlock);
+        return attributes == null ? new HashMap<String, byte[]>() : new HashMap<String, byte[]>(attributes);
+    }
+
+    /**
+     * Read all entries grouped by vault block, reads all shards.
+     *
+     * @return
+     */
+    public Map<String, Map<String, byte[]>> getAll() {
+        Map<String, Map<String, byte[]>> content = new HashMap<String, Map<String, byte[]>>();
+        for (int i = 0; i < shardCount; i++) {
+            for (Map.Entry<String, Map<String, byte[]>> block : shard(i).entrySet()) {
+                content.put(block.getKey(), new HashMap<String, byte[]>(block.getValue()));
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Compares the shard generations listed by both manifests, only shards written since are read.
+     */
+    @Override
+    public Set<String> getChangedBlocks(StoredVaultData previous) {
+        if (!(previous instanceof ShardedVaultData) || ((ShardedVaultData) previous).shardCount != shardCount
+                || !((ShardedVaultData) previous).manifest.equals(manifest)) {
+            return null;
+        }
+        ShardedVaultData other = (ShardedVaultData) previous;
+        Set<String> vaultBlocks = new HashSet<String>();
+        for (int i = 0; i < shardCount; i++) {
+            if (shardGenerations[i] != other.shardGenerations[i]) {
+                vaultBlocks.addAll(shard(i).keySet());
+                vaultBlocks.addAll(other.shard(i).keySet());
+            }
+        }
+        return vaultBlocks;
+    }
+
+    private Map<String, Map<String, byte[]>> shard(int shard) {
+        Map<String, Map<String, byte[]>> blocks = shards.get(shard);
+        if (blocks == null) {
+            // concurrent lookups may read a shard twice, the first one read is kept
+            shards.compareAndSet(shard, null, readShard(shard));
+            blocks = shards.get(shard);
+        }
+        return blocks;
+    }
+
+    private Map<String, Map<String, byte[]>> readShard(int shard) {
+        if (shardGenerations[shard] == 0) {
+            return Collections.emptyMap();
+        }
+        File file = shardFile(manifest, shard, shardGenerations[shard]);
+        FileInputStream fis;
+        try {
+            fis = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            // replaced and deleted by a later write, possibly of another process, read the shard it wrote instead
+            ShardedVaultData current = readCurrent(file, e);
+            if (current.shardCount != shardCount || current.shardGenerations[shard] == shardGenerations[shard]) {
+                throw new IllegalStateException(sm.getString("shardedVaultData.unreadableShard", file.getPath(), e.getMessage()), e);
+            }
+            return current.shard(shard);
+        }
+        try {
+            FileChannel channel = fis.getChannel();
+            return VaultDataFormat.read(channel, channel.size()).getVaultContent();
+        } catch (IOException e) {
+            throw new IllegalStateException(sm.getString("shardedVaultData.unreadableShard", file.getPath(), e.getMessage()), e);
+        } finally {
+            try {
+                fis.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private ShardedVaultData readCurrent(File shardFile, IOException cause) {
+        try {
+            FileInputStream fis = new FileInputStream(manifest);
+            try {
+                return read(manifest, fis.getChannel());
+            } finally {
+                fis.close();
+            }
+        } catch (IOException e) {
+            IllegalStateException ise = new IllegalStateException(
+                    sm.getString("shardedVaultData.unreadableShard", shardFile.getPath(), cause.getMessage()), cause);
+            ise.addSuppressed(e);
+            throw ise;
+        }
+    }
+
+    /**
+     * Write vault data as manifest and shard files. If the data is based on shard files with the same shard count,
+     * only shards holding vault blocks changed since are written. Shard files no longer listed are left for
+     * {@link #deleteUnlisted(File, StoredVaultData)}.
+     *
+     * @param manifest   manifest file
+     * @param data       vault data, not changed while written
+     * @param shardCount
+     * @param generation number of times the vault data file has been written
+     * @return vault data with the same content based on the written files
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    static SecurityVaultData write(File manifest, SecurityVaultData data, int shardCount, final long generation)
+            throws IOException, GeneralSecurityException {
+        StoredVaultData stored = data.getStoredData();
+        ShardedVaultData previous = null;
+        if (stored instanceof ShardedVaultData && ((ShardedVaultData) stored).shardCount == shardCount
+                && ((ShardedVaultData) stored).manifest.equals(manifest)) {
+            previous = (ShardedVaultData) stored;
+        }
+
+        AtomicReferenceArray<Map<String, Map<String, byte[]>>> shards =
+                new AtomicReferenceArray<Map<String, Map<String, byte[]>>>(shardCount);
+        final long[] shardGenerations = previous != null ? previous.shardGenerations.clone() : new long[shardCount];
+        Map<Integer, Map<String, Map<String, byte[]>>> changed = new HashMap<Integer, Map<String, Map<String, byte[]>>>();
+        if (previous != null) {
+            Set<Integer> dirty = new HashSet<Integer>();
+            for (int i = 0; i < shardCount; i++) {
+                // shards read so far stay in memory
+                shards.set(i, previous.shards.get(i));
+            }
+            for (String vaultBlock : data.getChangedBlocks()) {
+                dirty.add(shardOf(vaultBlock, shardCount));
+            }
+            for (int shard : dirty) {
+                Set<String> vaultBlocks = new HashSet<String>(previous.shard(shard).keySet());
+                for (String vaultBlock : data.getChangedBlocks()) {
+                    if (shardOf(vaultBlock, shardCount) == shard) {
+                        vaultBlocks.add(vaultBlock);
+                    }
+                }
+                Map<String, Map<String, byte[]>> blocks = new HashMap<String, Map<String, byte[]>>();
+                for (String vaultBlock : vaultBlocks) {
+                    Map<String, byte[]> attributes = data.getVaultBlockData(vaultBlock);
+                    if (!attributes.isEmpty()) {
+                        blocks.put(vaultBlock, new HashMap<String, byte[]>(attributes));
+                    }
+                }
+                changed.put(shard, blocks);
+            }
+        } else {
+            for (int i = 0; i < shardCount; i++) {
+                changed.put(i, new HashMap<String, Map<String, byte[]>>());
+            }
+            for (Map.Entry<String, Map<String, byte[]>> block : data.getVaultContent().entrySet()) {
+                changed.get(shardOf(block.getKey(), shardCount)).put(block.getKey(), block.getValue());
+            }
+        }
+
+        for (Map.Entry<Integer, Map<String, Map<String, byte[]>>> shard : changed.entrySet()) {
+            final Map<String, Map<String, byte[]>> blocks = shard.getValue();
+            if (blocks.isEmpty()) {
+                shardGenerations[shard.getKey()] = 0;
+            } else {
+                // a new file, the one the current manifest lists stays untouched until the manifest is replaced
+                VaultFiles.writeAtomically(shardFile(manifest, shard.getKey(), generation), new VaultFiles.Content() {
+                    public void writeTo(OutputStream os) throws IOException {
+                        VaultDataFormat.write(blocks, Collections.<String, byte[]>emptyMap(), generation, os);
+                    }
+                });
+                shardGenerations[shard.getKey()] = generation;
+            }
+            shards.set(shard.getKey(), blocks);
+        }
+
+        final Map<String, byte[]> unindexed = new HashMap<String, byte[]>(data.getUnindexedData());
+        // the manifest last, it commits all shard files written before
+        VaultFiles.writeAtomically(manifest, new VaultFiles.Content() {
+            public void writeTo(OutputStream os) throws IOException {
+                writeManifest(shardGenerations, unindexed, generation, os);
+            }
+        });
+        return new SecurityVaultData(new ShardedVaultData(manifest, shardGenerations, shards, unindexed));
+    }
+
+    /**
+     * Delete shard files of a vault data file which the stored data does not read, after the vault data file has
+     * been written. Shard files of an earlier write or a different shard count could otherwise keep removed
+     * attributes on disk, as could all shard files once the vault data file is written by another codec.
+     *
+     * @param file   vault data file
+     * @param stored stored data the file was written as, or null
+     */
+    static void deleteUnlisted(File file, StoredVaultData stored) {
+        Set<String> listed = new HashSet<String>();
+        if (stored instanceof ShardedVaultData && ((ShardedVaultData) stored).manifest.equals(file)) {
+            ShardedVaultData sharded = (ShardedVaultData) stored;
+            for (int i = 0; i < sharded.shardCount; i++) {
+                if (sharded.shardGenerations[i] != 0) {
+                    listed.add(shardFile(file, i, sharded.shardGenerations[i]).getName());
+                }
+            }
+        }
+        File dir = file.getAbsoluteFile().getParentFile();
+        String[] names = dir == null ? null : dir.list();
+        if (names == null) {
+            return;
+        }
+        Pattern shardName = Pattern.compile(Pattern.quote(file.getName()) + "\\.\\d{3,}(-\\d+)?");
+        for (String name : names) {
+            if (shardName.matcher(name).matches() && !listed.contains(name)) {
+                File shardFile = new File(dir, name);
+                if (!shardFile.delete() && shardFile.exists()) {
+                    log.warn(sm.getString("shardedVaultData.deleteFailed", shardFile.getPath()));
+                }
+            }
+        }
+    }
+
+    private static void writeManifest(long[] shardGenerations, Map<String, byte[]> unindexed, long generation,
+                                      OutputStream os) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(VaultDataFormat.MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(VaultDataFormat.FLAG_GENERATION);
+        out.writeLong(generation);
+        out.writeInt(shardGenerations.length);
+        for (long shardGeneration : shardGenerations) {
+            out.writeLong(shardGeneration);
+        }
+        out.writeInt(unindexed.size());
+        for (Map.Entry<String, byte[]> entry : unindexed.entrySet()) {
+            VaultDataFormat.writeString(out, entry.getKey());
+            out.writeInt(entry.getValue().length);
+            out.write(entry.getValue());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        bytes.writeTo(os);
+        os.flush();
+    }
+
+    /**
+     * @return shard holding a vault block, vault blocks must not contain the separator
+     */
+    static int shardOf(String vaultBlock, int shardCount) {
+        // String hash codes are specified, so shards stay the same across JVMs
+        int hash = vaultBlock.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % shardCount;
+    }
+
+    static File shardFile(File manifest, int shard, long generation) {
+        return new File(manifest.getPath() + String.format(Locale.ROOT, ".%03d-%d", shard, generation));
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
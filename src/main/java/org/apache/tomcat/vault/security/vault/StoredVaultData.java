@@ -0,0 +1,77 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.apache.tomcat.vault.security.vault;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read only vault data backed by vault files and read on demand, the base {@link SecurityVaultData} keeps its
+ * changes on top of. A {@link VaultDataCodec} which does not load the whole vault data file returns
+ * {@code new SecurityVaultData(storedData)} from its read and write methods, e.g. over an index of the file.
+ * <p>
+ * A vault block containing the separator "::" is split on its first separator and the rest is prepended to the
+ * attribute name, so "a::b" and "c" look up attribute "b::c" of vault block "a". Implementations have to be thread
+ * safe.
+ */
+public interface StoredVaultData {
+
+    /**
+     * Look up a value, vault blocks containing the separator are split as described above.
+     *
+     * @return value or null
+     * @throws IllegalStateException if the file holding the value is damaged
+     */
+    byte[] get(String vaultBlock, String attributeName);
+
+    /**
+     * Read the entries of one vault block. For a vault block containing the separator, these are the attributes of
+     * the vault block before its first separator whose names start with the rest and the separator, keyed by the
+     * remaining name.
+     *
+     * @return modifiable copy of the entries of one vault block
+     */
+    Map<String, byte[]> getBlock(String vaultBlock);
+
+    /**
+     * @return modifiable copy of all entries grouped by vault block
+     */
+    Map<String, Map<String, byte[]>> getAll();
+
+    /**
+     * @return entries without vault block
+     */
+    Map<String, byte[]> getUnindexedData();
+
+    /**
+     * Vault blocks whose entries may differ from stored data read earlier from the same vault data file, so that a
+     * reload does not have to compare every entry.
+     *
+     * @param previous stored data read before this one
+     * @return vault blocks, null if any vault block may differ
+     */
+    default Set<String> getChangedBlocks(StoredVaultData previous) {
+        return null;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.security.vault;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Layout of the vault data file. {@link PicketBoxSecurityVault} reads a vault data file with the codec recognizing
+ * its header and writes it with the codec named by the VAULT_CODEC option.
+ * <p>
+ * Codecs besides the built-in ones are discovered by {@link java.util.ServiceLoader}: a jar next to the vault jar
+ * lists its implementations in META-INF/services/org.apache.tomcat.vault.security.vault.VaultDataCodec. Built-in
+ * codec names cannot be taken over. Codecs are shared by all vaults and have to be thread safe.
+ * <p>
+ * Values are encrypted before they reach a codec, a codec only decides how they are laid out.
+ */
+public interface VaultDataCodec {
+
+    /**
+     * Number of bytes at the start of a vault data file passed to {@link #canRead(ByteBuffer)}.
+     */
+    int HEADER_SIZE = 16;
+
+    /**
+     * @return name selecting this codec in the VAULT_CODEC option
+     */
+    String getName();
+
+    /**
+     * Whether a vault data file was written by this codec. Headers are tried with every codec, so a codec should
+     * check a magic number of its own, e.g. "TVLT" followed by a version number not taken by another codec.
+     *
+     * @param header first {@link #HEADER_SIZE} bytes of the file, fewer if the file is shorter
+     * @return
+     */
+    boolean canRead(ByteBuffer header);
+
+    /**
+     * @return whether this codec writes vault data files, files of read only codecs are converted by the next write
+     */
+    boolean canWrite();
+
+    /**
+     * Read a vault data file.
+     *
+     * @param channel channel of the vault data file, it is not closed
+     * @param context
+     * @return vault content, {@link SecurityVaultData#addVaultData} builds it. Content read on demand is wrapped by
+     * {@link SecurityVaultData#SecurityVaultData(StoredVaultData)}.
+     * @throws IOException if the file is malformed
+     */
+    SecurityVaultData read(FileChannel channel, Context context) throws IOException;
+
+    /**
+     * Replace the vault data file by the given content, see {@link Context#writeAtomically(File, Output)}.
+     *
+     * @param data       content to write, {@link SecurityVaultData#getVaultContent} returns all of it
+     * @param generation number of times the vault data file has been written, see {@link #readGeneration}
+     * @param context
+     * @return content now in the vault data file, usually data
+     * @throws IOException
+     */
+    SecurityVaultData write(SecurityVaultData data, long generation, Context context) throws IOException;
+
+    /**
+     * Read the generation a vault data file was written with. Only a few bytes should be read, it is called to
+     * find out whether another process changed the file. The default reads the generation of the "TVLT" header
+     * written by the built-in codecs, see {@link VaultDataFormat}.
+     *
+     * @param channel channel of the vault data file, its position is not changed
+     * @return generation, 0 if the file has none
+     * @throws IOException
+     */
+    default long readGeneration(FileChannel channel) throws IOException {
+        return VaultDataFormat.readGeneration(channel);
+    }
+
+    /**
+     * Access to the vault a codec reads or writes for.
+     */
+    interface Context {
+
+        /**
+         * @return the vault data file
+         */
+        File getFile();
+
+        /**
+         * @return vault options, unmodifiable
+         */
+        Map<String, Object> getOptions();
+
+        /**
+         * @return pool for reading or writing in parallel
+         */
+        ExecutorService getWorkerPool();
+
+        /**
+         * Report an entry which could not be read. The other entries are loaded, the entry is reported as damaged
+         * when looked up and the vault data file is copied aside.
+         *
+         * @param vaultBlock    null for entries without vault block
+         * @param attributeName
+         */
+        void reportDamaged(String vaultBlock, String attributeName);
+
+        /**
+         * Replace a file so that a crash leaves either the old or the new content behind.
+         *
+         * @param file
+         * @param content
+         * @throws IOException
+         */
+        void writeAtomically(File file, Output content) throws IOException;
+    }
+
+    /**
+     * Writes the content of a file.
+     */
+    interface Output {
+        void writeTo(OutputStream os) throws IOException;
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.security.vault;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.res.StringManager;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Built-in {@link VaultDataCodec}s and those discovered by {@link ServiceLoader}.
+ */
+final class VaultDataCodecs {
+
+    private static final StringManager sm = StringManager.getManager(VaultDataCodecs.class.getPackage().getName());
+    private static final Log log = LogFactory.getLog(VaultDataCodecs.class);
+
+    static final String SERIALIZED = "serialized";
+    static final String BINARY = "binary";
+    static final String MAPPED = "mapped";
+    static final String SHARDED = "sharded";
+    static final String COMPRESSED = "compressed";
+
+    // built-in codecs first, discovered once
+    private static volatile List<VaultDataCodec> codecs;
+
+    private VaultDataCodecs() {
+    }
+
+    /**
+     * @return all codecs, built-in ones first
+     */
+    static List<VaultDataCodec> getCodecs() {
+        List<VaultDataCodec> all = codecs;
+        if (all == null) {
+            synchronized (VaultDataCodecs.class) {
+                all = codecs;
+                if (all == null) {
+                    all = Collections.unmodifiableList(load());
+                    codecs = all;
+                }
+            }
+        }
+        return all;
+    }
+
+    /**
+     * @param name
+     * @return codec of that name, null if there is none
+     */
+    static VaultDataCodec get(String name) {
+        for (VaultDataCodec codec : getCodecs()) {
+            if (codec.getName().equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return names of all codecs
+     */
+    static List<String> getNames() {
+        List<String> names = new ArrayList<String>();
+        for (VaultDataCodec codec : getCodecs()) {
+            names.add(codec.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Find the codec which wrote a vault data file.
+     *
+     * @param channel channel of the vault data file, its position is not changed
+     * @return null if no codec recognizes the file
+     * @throws IOException
+     */
+    static VaultDataCodec detect(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(VaultDataCodec.HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            // read the whole header
+        }
+        header.flip();
+        for (VaultDataCodec codec : getCodecs()) {
+            if (codec.canRead(header.asReadOnlyBuffer())) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read the generation of a vault data file in any layout.
+     *
+     * @param channel channel of the vault data file, its position is not changed
+     * @return generation, 0 if the file has none or is not recognized
+     * @throws IOException
+     */
+    static long readGeneration(FileChannel channel) throws IOException {
+        VaultDataCodec codec = detect(channel);
+        return codec != null ? codec.readGeneration(channel) : 0;
+    }
+
+    private static List<VaultDataCodec> load() {
+        List<VaultDataCodec> all = new ArrayList<VaultDataCodec>();
+        all.add(new BinaryCodec());
+        all.add(new MappedCodec());
+        all.add(new ShardedCodec());
+        all.add(new CompressedCodec());
+        all.add(new SerializedCodec());
+        Map<String, VaultDataCodec> names = new HashMap<String, VaultDataCodec>();
+        for (VaultDataCodec codec : all) {
+            names.put(codec.getName(), codec);
+        }
+
+        Iterator<VaultDataCodec> discovered = ServiceLoader.load(VaultDataCodec.class,
+                VaultDataCodec.class.getClassLoader()).iterator();
+        while (true) {
+            VaultDataCodec codec;
+            try {
+                if (!discovered.hasNext()) {
+                    break;
+                }
+                codec = discovered.next();
+            } catch (ServiceConfigurationError e) {
+                log.error(sm.getString("vaultDataCodecs.unloadable"), e);
+                continue;
+            }
+            VaultDataCodec taken = names.get(codec.getName());
+            if (taken != null) {
+                log.warn(sm.getString("vaultDataCodecs.duplicateName", codec.getName(), codec.getClass().getName(),
+                        taken.getClass().getName()));
+                continue;
+            }
+            names.put(codec.getName(), codec);
+            all.add(codec);
+        }
+        return all;
+    }
+
+    private static boolean isVersion(ByteBuffer header, int version) {
+        return header.remaining() >= 8 && header.getInt(0) == VaultDataFormat.MAGIC && header.getInt(4) == version;
+    }
+
+    /**
+     * @return data with the same content held in memory, data read on demand may be based on files which are
+     * deleted once a single vault data file has been written
+     */
+    private static SecurityVaultData inMemory(SecurityVaultData data) {
+        if (data.getStoredData() == null) {
+            return data;
+        }
+        SecurityVaultData copy = new SecurityVaultData();
+        for (Map.Entry<String, Map<String, byte[]>> block : data.getVaultContent().entrySet()) {
+            for (Map.Entry<String, byte[]> entry : block.getValue().entrySet()) {
+                copy.addVaultData(null, block.getKey(), entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, byte[]> entry : data.getUnindexedData().entrySet()) {
+            copy.addUnindexedData(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+
+    /**
+     * Version 2, see {@link VaultDataFormat}.
+     */
+    private static final class BinaryCodec implements VaultDataCodec {
+        public String getName() {
+            return BINARY;
+        }
+
+        public boolean canRead(ByteBuffer header) {
+            return isVersion(header, VaultDataFormat.VERSION);
+        }
+
+        public boolean canWrite() {
+            return true;
+        }
+
+        public SecurityVaultData read(FileChannel channel, Context context) throws IOException {
+            return VaultDataFormat.read(channel, channel.size());
+        }
+
+        public SecurityVaultData write(final SecurityVaultData data, final long generation, Context context) throws IOException {
+            context.writeAtomically(context.getFile(), new Output() {
+                public void writeTo(OutputStream os) throws IOException {
+                    VaultDataFormat.write(data, generation, os);
+                }
+            });
+            return inMemory(data);
+        }
+    }
+
+    /**
+     * Version 3, see {@link MappedVaultData}.
+     */
+    private static final class MappedCodec implements VaultDataCodec {
+        public String getName() {
+            return MAPPED;
+        }
+
+        public boolean canRead(ByteBuffer header) {
+            return isVersion(header, MappedVaultData.VERSION);
+        }
+
+        public boolean canWrite() {
+            return true;
+        }
+
+        public SecurityVaultData read(FileChannel channel, Context context) throws IOException {
+            return new SecurityVaultData(MappedVaultData.map(channel));
+        }
+
+        public SecurityVaultData write(final SecurityVaultData data, final long generation, Context context) throws IOException {
+            context.writeAtomically(context.getFile(), new Output() {
+                public void writeTo(OutputStream os) throws IOException {
+                    MappedVaultData.write(data.getVaultContent(), data.getUnindexedData(), generation, os);
+                }
+            });
+            // based on the written file, the files data was read from may be deleted now
+            FileInputStream fis = new FileInputStream(context.getFile());
+            try {
+                return new SecurityVaultData(MappedVaultData.map(fis.getChannel()));
+            } finally {
+                fis.close();
+            }
+        }
+    }
+
+    /**
+     * Version 4, see {@link ShardedVaultData}. The shard count is taken from the SHARD_COUNT option.
+     */
+    private static final class ShardedCodec implements VaultDataCodec {
+        public String getName() {
+            return SHARDED;
+        }
+
+        public boolean canRead(ByteBuffer header) {
+            return isVersion(header, ShardedVaultData.VERSION);
+        }
+
+        public boolean canWrite() {
+            return true;
+        }
+
+        public SecurityVaultData read(FileChannel channel, Context context) throws IOException {
+            return new SecurityVaultData(ShardedVaultData.read(context.getFile(), channel));
+        }
+
+        public SecurityVaultData write(SecurityVaultData data, long generation, Context context) throws IOException {
+            String shardCount = (String) context.getOptions().get(PicketBoxSecurityVault.SHARD_COUNT);
+            try {
+                // same content, based on the written shards
+                return ShardedVaultData.write(context.getFile(), data,
+                        shardCount != null ? Integer.parseInt(shardCount) : ShardedVaultData.DEFAULT_SHARDS, generation);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Version 5, see {@link CompressedVaultData}.
+     */
+    private static final class CompressedCodec implements VaultDataCodec {
+        public String getName() {
+            return COMPRESSED;
+        }
+
+        public boolean canRead(ByteBuffer header) {
+            return isVersion(header, CompressedVaultData.VERSION);
+        }
+
+        public boolean canWrite() {
+            return true;
+        }
+
+        public SecurityVaultData read(FileChannel channel, Context context) throws IOException {
+            return CompressedVaultData.read(channel, context);
+        }
+
+        public SecurityVaultData write(final SecurityVaultData data, final long generation, Context context) throws IOException {
+            context.writeAtomically(context.getFile(), new Output() {
+                public void writeTo(OutputStream os) throws IOException {
+                    CompressedVaultData.write(data.getVaultContent(), new HashMap<String, byte[]>(data.getUnindexedData()),
+                            generation, os);
+                }
+            });
+            return inMemory(data);
+        }
+    }
+
+    /**
+     * Version 1, Java serialization of {@link SecurityVaultData}. Only read, the next write converts the file.
+     */
+    private static final class SerializedCodec implements VaultDataCodec {
+        public String getName() {
+            return SERIALIZED;
+        }
+
+        public boolean canRead(ByteBuffer header) {
+            return header.remaining() >= 2 && header.getShort(0) == VaultDataFormat.SERIALIZATION_MAGIC;
+        }
+
+        public boolean canWrite() {
+            return false;
+        }
+
+        public SecurityVaultData read(FileChannel channel, Context context) throws IOException {
+            channel.position(0);
+            // not closed, the channel belongs to the caller
+            ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            try {
+                return (SecurityVaultData) ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+
+        public SecurityVaultData write(SecurityVaultData data, long generation, Context context) throws IOException {
+            throw new IOException(sm.getString("vaultDataCodecs.readOnly", SERIALIZED));
+        }
+
+        public long readGeneration(FileChannel channel) {
+            return 0;
+        }
+    }
+}
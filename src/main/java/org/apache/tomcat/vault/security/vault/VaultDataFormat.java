@@ -0,0 +1,302 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.util.res.StringManager;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary vault data file layout (version 2). All numbers are big-endian, strings are UTF-8 prefixed by their byte
+ * length:
+ * <pre>
+ * magic "TVLT" | version (int) | flags (int) | [generation (long)]
+ * block count (int) | block names (string)...
+ * entry count (int) | entries: block index (int) | attribute name (string) | value length (int) | value...
+ * CRC32 of all preceding bytes (int)
+ * </pre>
+ * Entries refer to their vault block by the position in the block name table. Block index -1 marks an entry without
+ * vault block whose attribute name holds the whole original key.
+ * <p>
+ * The generation is present when flags contain {@link #FLAG_GENERATION}. It counts the writes of the vault data file,
+ * so a process can tell whether the file changed since it was read by looking at the header only.
+ * <p>
+ * Version 1 files are Java serialized {@link SecurityVaultData} objects and are recognized by the serialization
+ * stream magic.
+ */
+final class VaultDataFormat {
+
+    private static final StringManager sm = StringManager.getManager(VaultDataFormat.class.getPackage().getName());
+
+    static final int MAGIC = 0x54564C54; // "TVLT"
+    static final short SERIALIZATION_MAGIC = (short) 0xACED;
+    static final int VERSION = 2;
+    static final int FLAG_GENERATION = 1;
+
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+    private static final int NO_BLOCK = -1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int GENERATION_HEADER_SIZE = 20;
+
+    private VaultDataFormat() {
+    }
+
+    /**
+     * Write vault data in the version 2 layout.
+     *
+     * @param data
+     * @param generation number of times the vault data file has been written
+     * @param os         stream to write to, it is not closed
+     * @throws IOException
+     */
+    static void write(SecurityVaultData data, long generation, OutputStream os) throws IOException {
+        // snapshot, the counts have to match the entries written
+        write(data.getVaultContent(), new HashMap<String, byte[]>(data.getUnindexedData()), generation, os);
+    }
+
+    /**
+     * Write vault data in the version 2 layout.
+     *
+     * @param content    entries grouped by vault block, not changed while written
+     * @param unindexed  entries without vault block, not changed while written
+     * @param generation number of times the vault data file has been written
+     * @param os         stream to write to, it is not closed
+     * @throws IOException
+     */
+    static void write(Map<String, Map<String, byte[]>> content, Map<String, byte[]> unindexed, long generation,
+                      OutputStream os) throws IOException {
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(os, crc));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(FLAG_GENERATION);
+        out.writeLong(generation);
+
+        List<String> blocks = new ArrayList<String>(content.keySet());
+        out.writeInt(blocks.size());
+        for (String block : blocks) {
+            writeString(out, block);
+        }
+
+        int count = unindexed.size();
+        List<Map<String, byte[]>> blockData = new ArrayList<Map<String, byte[]>>(blocks.size());
+        for (String block : blocks) {
+            Map<String, byte[]> attributes = content.get(block);
+            blockData.add(attributes);
+            count += attributes.size();
+        }
+        out.writeInt(count);
+        for (int i = 0; i < blocks.size(); i++) {
+            for (Map.Entry<String, byte[]> entry : blockData.get(i).entrySet()) {
+                writeEntry(out, i, entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, byte[]> entry : unindexed.entrySet()) {
+            writeEntry(out, NO_BLOCK, entry.getKey(), entry.getValue());
+        }
+        out.flush();
+        // the checksum itself is not part of the checksum
+        new DataOutputStream(os).writeInt((int) crc.getValue());
+        os.flush();
+    }
+
+    /**
+     * Read vault data in the version 2 layout. Entries are added while the file is streamed, the checksum is
+     * verified at the end.
+     *
+     * @param channel channel positioned at the magic, it is not closed
+     * @param size    number of bytes available, bounds lengths read from the file
+     * @return
+     * @throws IOException if the file is truncated, malformed or the checksum does not match
+     */
+    static SecurityVaultData read(ReadableByteChannel channel, long size) throws IOException {
+        Reader in = new Reader(channel, size);
+        if (in.readInt() != MAGIC) {
+            throw new IOException(sm.getString("vaultDataFormat.notVaultData"));
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException(sm.getString("vaultDataFormat.unsupportedVersion", String.valueOf(version), String.valueOf(VERSION)));
+        }
+        if ((in.readInt() & FLAG_GENERATION) != 0) {
+            in.readInt();
+            in.readInt();
+        }
+
+        int blockCount = in.readCount();
+        String[] blocks = new String[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            blocks[i] = in.readString();
+        }
+
+        SecurityVaultData data = new SecurityVaultData();
+        int count = in.readCount();
+        for (int i = 0; i < count; i++) {
+            int block = in.readInt();
+            String attributeName = in.readString();
+            byte[] value = in.readBytes(in.readCount());
+            if (block == NO_BLOCK) {
+                data.addUnindexedData(attributeName, value);
+            } else if (block >= 0 && block < blockCount) {
+                data.addVaultData(null, blocks[block], attributeName, value);
+            } else {
+                throw new IOException(sm.getString("vaultDataFormat.corrupted"));
+            }
+        }
+
+        long expected = in.crc.getValue();
+        if (in.readIntUnchecked() != (int) expected) {
+            throw new IOException(sm.getString("vaultDataFormat.checksumMismatch"));
+        }
+        return data;
+    }
+
+    /**
+     * Read the generation from the header of a vault data file in the version 2 or 3 layout.
+     *
+     * @param channel channel of the vault data file, its position is not changed
+     * @return generation, 0 if the file has none
+     * @throws IOException
+     */
+    static long readGeneration(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(GENERATION_HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            // read the whole header
+        }
+        header.flip();
+        if (header.remaining() < GENERATION_HEADER_SIZE || header.getInt(0) != MAGIC
+                || (header.getInt(8) & FLAG_GENERATION) == 0) {
+            return 0;
+        }
+        return header.getLong(12);
+    }
+
+    private static void writeEntry(DataOutputStream out, int block, String attributeName, byte[] value) throws IOException {
+        out.writeInt(block);
+        writeString(out, attributeName);
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Buffered channel reader maintaining the checksum of consumed bytes.
+     */
+    private static final class Reader {
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final long size;
+        final CRC32 crc = new CRC32();
+
+        Reader(ReadableByteChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+            buffer.flip();
+        }
+
+        int readInt() throws IOException {
+            require(4);
+            crc.update(buffer.array(), buffer.position(), 4);
+            return buffer.getInt();
+        }
+
+        int readIntUnchecked() throws IOException {
+            require(4);
+            return buffer.getInt();
+        }
+
+        int readCount() throws IOException {
+            int count = readInt();
+            // neither entries nor bytes can outnumber the bytes of the file
+            if (count < 0 || count > size) {
+                throw new IOException(sm.getString("vaultDataFormat.corrupted"));
+            }
+            return count;
+        }
+
+        String readString() throws IOException {
+            int length = readCount();
+            if (length <= buffer.capacity()) {
+                require(length);
+                String str = new String(buffer.array(), buffer.position(), length, UTF8);
+                crc.update(buffer.array(), buffer.position(), length);
+                buffer.position(buffer.position() + length);
+                return str;
+            }
+            return new String(readBytes(length), UTF8);
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            int read = 0;
+            while (read < length) {
+                if (!buffer.hasRemaining()) {
+                    fill();
+                }
+                int n = Math.min(buffer.remaining(), length - read);
+                buffer.get(bytes, read, n);
+                read += n;
+            }
+            crc.update(bytes, 0, length);
+            return bytes;
+        }
+
+        private void require(int n) throws IOException {
+            while (buffer.remaining() < n) {
+                fill();
+            }
+        }
+
+        private void fill() throws IOException {
+            buffer.compact();
+            int n;
+            try {
+                n = channel.read(buffer);
+            } finally {
+                buffer.flip();
+            }
+            if (n < 0) {
+                throw new EOFException(sm.getString("vaultDataFormat.truncated"));
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.util.res.StringManager;
+import org.apache.tomcat.vault.util.StringUtil;
+
+/**
+ * Attribute value passed to or from a {@link SecurityVault} in bulk, either in plain text or encrypted by the admin
+ * key of the vault holding it.
+ */
+public final class VaultEntry {
+
+    private static final StringManager msm = StringManager.getManager("org.apache.tomcat.vault.security.resources");
+
+    private final String vaultBlock;
+    private final String attributeName;
+    private final char[] value;
+    private final byte[] encryptedValue;
+
+    private VaultEntry(String vaultBlock, String attributeName, char[] value, byte[] encryptedValue) {
+        if (StringUtil.isNullOrEmpty(vaultBlock))
+            throw new IllegalArgumentException(msm.getString("invalidNullArgument", "vaultBlock"));
+        if (StringUtil.isNullOrEmpty(attributeName))
+            throw new IllegalArgumentException(msm.getString("invalidNullArgument", "attributeName"));
+        if (value == null && encryptedValue == null)
+            throw new IllegalArgumentException(msm.getString("invalidNullArgument", "value"));
+        this.vaultBlock = vaultBlock;
+        this.attributeName = attributeName;
+        this.value = value;
+        this.encryptedValue = encryptedValue;
+    }
+
+    /**
+     * @param vaultBlock
+     * @param attributeName
+     * @param value         plain text value, not copied
+     * @return
+     */
+    public static VaultEntry plain(String vaultBlock, String attributeName, char[] value) {
+        return new VaultEntry(vaultBlock, attributeName, value, null);
+    }
+
+    /**
+     * @param vaultBlock
+     * @param attributeName
+     * @param encryptedValue value as stored in the vault, not copied
+     * @return
+     */
+    public static VaultEntry encrypted(String vaultBlock, String attributeName, byte[] encryptedValue) {
+        return new VaultEntry(vaultBlock, attributeName, null, encryptedValue);
+    }
+
+    public String getVaultBlock() {
+        return vaultBlock;
+    }
+
+    public String getAttributeName() {
+        return attributeName;
+    }
+
+    public boolean isEncrypted() {
+        return encryptedValue != null;
+    }
+
+    /**
+     * @return plain text value, null if the entry is encrypted
+     */
+    public char[] getValue() {
+        return value;
+    }
+
+    /**
+     * @return value as stored in the vault, null if the entry is in plain text
+     */
+    public byte[] getEncryptedValue() {
+        return encryptedValue;
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.util.res.StringManager;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Encrypted copy of the initialized vault state kept next to the vault data file, so that a restart neither loads
+ * the key store nor parses the vault data file.
+ * <p>
+ * The file holds the admin key and the position in the vault files it was taken at. It also holds the vault
+ * content, unless the vault data file is read on demand anyway. It is encrypted with AES/GCM under a key derived
+ * from the key store password with PBKDF2WithHmacSHA256. The header records the modification time and size of the
+ * key store, the vault data file and the journal, and the generation of the vault data file. It is authenticated
+ * but not encrypted, so a stale file is recognized without deriving the key.
+ * <p>
+ * Layout, numbers are big-endian and strings are written the way {@link VaultDataFormat} writes them:
+ * <pre>
+ * magic "TVFS" | version (int) | 3 x (modification time (long) | size (long)) | generation (long)
+ * iterations (int, always 10000 in this version) | salt (16 bytes) | nonce (12 bytes) | ciphertext and tag
+ * plain text: key store (string) | alias (string) | key algorithm (string) | key length (int) | key
+ *             generation (long) | journal length (long) | content flag (byte) [| vault content in the version 2 layout]
+ * </pre>
+ */
+final class VaultFastStart {
+
+    private static final StringManager sm = StringManager.getManager(VaultFastStart.class.getPackage().getName());
+
+    static final int MAGIC = 0x54564653; // "TVFS"
+    static final int VERSION = 1;
+
+    // a password guess against a JCEKS key store costs a single SHA-1, this is considerably more expensive
+    private static final int ITERATIONS = 10000;
+    private static final String KEY_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+    private static final int KEY_SIZE = 256;
+    private static final int SALT_LENGTH = 16;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+    private static final int STAMP_SIZE = 7 * 8;
+    private static final int HEADER_SIZE = 8 + STAMP_SIZE + 4 + SALT_LENGTH + NONCE_LENGTH;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final File file;
+    private final File keyStoreFile;
+    private final File vaultDataFile;
+    private final File journalFile;
+
+    VaultFastStart(File file, File keyStoreFile, File vaultDataFile, File journalFile) {
+        this.file = file;
+        this.keyStoreFile = keyStoreFile;
+        this.vaultDataFile = vaultDataFile;
+        this.journalFile = journalFile;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Record the current state of the key store and the vault files. Taken before they are read, so that a
+     * change made while reading them invalidates the state written afterwards.
+     *
+     * @return
+     * @throws IOException
+     */
+    Stamp stamp() throws IOException {
+        long generation = 0;
+        if (vaultDataFile.exists()) {
+            try {
+                FileChannel channel = FileChannel.open(vaultDataFile.toPath());
+                try {
+                    generation = VaultDataCodecs.readGeneration(channel);
+                } finally {
+                    channel.close();
+                }
+            } catch (NoSuchFileException e) {
+                // removed meanwhile, the sizes differ then
+            }
+        }
+        return new Stamp(new long[]{
+                lastModified(keyStoreFile), keyStoreFile.length(),
+                lastModified(vaultDataFile), vaultDataFile.length(),
+                lastModified(journalFile), journalFile.length(),
+                generation});
+    }
+
+    /**
+     * Read the vault state.
+     *
+     * @param password key store password
+     * @param keyStore key store location
+     * @param alias    key store alias of the admin key
+     * @return null if there is no file or it does not match the current key store, vault files or options
+     * @throws IOException              if the file is malformed
+     * @throws GeneralSecurityException if the file cannot be decrypted with the password
+     */
+    State read(char[] password, String keyStore, String alias) throws IOException, GeneralSecurityException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE || in.getInt() != MAGIC) {
+            throw new IOException(sm.getString("vaultFastStart.corrupted", file.getPath()));
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new IOException(sm.getString("vaultFastStart.unsupportedVersion", file.getPath(), String.valueOf(version), String.valueOf(VERSION)));
+        }
+        long[] values = new long[STAMP_SIZE / 8];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.getLong();
+        }
+        if (!new Stamp(values).equals(stamp())) {
+            return null;
+        }
+        int iterations = in.getInt();
+        byte[] salt = new byte[SALT_LENGTH];
+        in.get(salt);
+        byte[] nonce = new byte[NONCE_LENGTH];
+        in.get(nonce);
+        // the header is only authenticated once the key is derived, an iteration count taken from it could stall startup
+        if (iterations != ITERATIONS) {
+            throw new IOException(sm.getString("vaultFastStart.corrupted", file.getPath()));
+        }
+
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        cipher.init(Cipher.DECRYPT_MODE, deriveKey(password, salt, iterations), new GCMParameterSpec(TAG_LENGTH, nonce));
+        cipher.updateAAD(bytes, 0, HEADER_SIZE);
+        byte[] plain = cipher.doFinal(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+        try {
+            ByteBuffer state = ByteBuffer.wrap(plain);
+            if (!keyStore.equals(readString(state)) || !alias.equals(readString(state))) {
+                return null;
+            }
+            String keyAlgorithm = readString(state);
+            byte[] encodedKey = readBytes(state);
+            SecretKey adminKey = new SecretKeySpec(encodedKey, keyAlgorithm);
+            Arrays.fill(encodedKey, (byte) 0);
+            long generation = state.getLong();
+            long journalLength = state.getLong();
+            SecurityVaultData content = null;
+            if (state.get() != 0) {
+                content = VaultDataFormat.read(Channels.newChannel(new ByteArrayInputStream(plain, state.position(),
+                        state.remaining())), state.remaining());
+            }
+            return new State(adminKey, generation, journalLength, content);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(sm.getString("vaultFastStart.corrupted", file.getPath()), e);
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    /**
+     * Replace the file by the given vault state, unless the key store or the vault files changed since the stamp
+     * was taken.
+     *
+     * @param password key store password
+     * @param keyStore key store location
+     * @param alias    key store alias of the admin key
+     * @param stamp    state of the files the vault state was read from
+     * @param state
+     * @return whether the file was written
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    boolean write(char[] password, String keyStore, String alias, Stamp stamp, State state)
+            throws IOException, GeneralSecurityException {
+        if (!stamp.equals(stamp())) {
+            return false;
+        }
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(plain);
+        VaultDataFormat.writeString(out, keyStore);
+        VaultDataFormat.writeString(out, alias);
+        VaultDataFormat.writeString(out, state.adminKey.getAlgorithm());
+        byte[] encodedKey = state.adminKey.getEncoded();
+        out.writeInt(encodedKey.length);
+        out.write(encodedKey);
+        Arrays.fill(encodedKey, (byte) 0);
+        out.writeLong(state.generation);
+        out.writeLong(state.journalLength);
+        out.writeByte(state.content != null ? 1 : 0);
+        if (state.content != null) {
+            VaultDataFormat.write(state.content, state.generation, out);
+        }
+        out.flush();
+
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION);
+        for (long value : stamp.values) {
+            header.putLong(value);
+        }
+        header.putInt(ITERATIONS).put(salt).put(nonce);
+
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, deriveKey(password, salt, ITERATIONS), new GCMParameterSpec(TAG_LENGTH, nonce));
+        cipher.updateAAD(header.array());
+        byte[] bytes = plain.toByteArray();
+        final byte[] encrypted;
+        try {
+            encrypted = cipher.doFinal(bytes);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+
+        createPrivateFile();
+        final byte[] headerBytes = header.array();
+        VaultFiles.writeAtomically(file, new VaultFiles.Content() {
+            public void writeTo(OutputStream os) throws IOException {
+                os.write(headerBytes);
+                os.write(encrypted);
+                os.flush();
+            }
+        });
+        return true;
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * The file holds the admin key, only its owner may read it. An existing file keeps its permissions.
+     */
+    private void createPrivateFile() throws IOException {
+        try {
+            Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.newOutputStream(file.toPath(), StandardOpenOption.CREATE).close();
+        } catch (FileAlreadyExistsException e) {
+            // replaced keeping its permissions
+        }
+    }
+
+    private static SecretKey deriveKey(char[] password, byte[] salt, int iterations) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, KEY_SIZE);
+        try {
+            byte[] encoded = SecretKeyFactory.getInstance(KEY_ALGORITHM).generateSecret(spec).getEncoded();
+            SecretKey key = new SecretKeySpec(encoded, "AES");
+            Arrays.fill(encoded, (byte) 0);
+            return key;
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static long lastModified(File file) {
+        // 0 is also returned for a missing file
+        return file.exists() ? file.lastModified() : -1;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        return new String(readBytes(buffer), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Modification times and sizes of the key store and the vault files, and the vault data file generation.
+     */
+    static final class Stamp {
+        private final long[] values;
+
+        Stamp(long[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Stamp && Arrays.equals(values, ((Stamp) obj).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(values);
+        }
+    }
+
+    /**
+     * Vault state as it was after initialization.
+     */
+    static final class State {
+        final SecretKey adminKey;
+        final long generation;
+        final long journalLength;
+        // null if the vault data file is read on demand
+        final SecurityVaultData content;
+
+        State(SecretKey adminKey, long generation, long journalLength, SecurityVaultData content) {
+            this.adminKey = adminKey;
+            this.generation = generation;
+            this.journalLength = journalLength;
+            this.content = content;
+        }
+    }
+}
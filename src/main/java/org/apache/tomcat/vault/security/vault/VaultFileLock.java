@@ -0,0 +1,121 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.apache.tomcat.vault.security.vault;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive lock serializing writers of the vault files across processes, e.g. a running Tomcat and the vault
+ * tool. The lock is taken on a separate lock file, the vault files themselves are replaced by renames.
+ * <p>
+ * File locks are held by the whole JVM, so vaults of one JVM sharing the files are serialized by a lock per file
+ * first, which also holds the file lock. The lock is reentrant for the thread holding it, through any instance for
+ * the same file.
+ */
+final class VaultFileLock {
+
+    /**
+     * State shared by all instances locking the same file.
+     */
+    private static final class SharedLock {
+        private final ReentrantLock localLock = new ReentrantLock();
+
+        // guarded by localLock
+        private FileChannel channel;
+        private FileLock fileLock;
+    }
+
+    // file locks cannot be nested within one JVM
+    private static final ConcurrentMap<String, SharedLock> sharedLocks = new ConcurrentHashMap<String, SharedLock>();
+
+    private final File file;
+    private final SharedLock shared;
+
+    VaultFileLock(File file) throws IOException {
+        this.file = file;
+        String path = file.getCanonicalPath();
+        SharedLock lock = new SharedLock();
+        SharedLock existing = sharedLocks.putIfAbsent(path, lock);
+        this.shared = existing != null ? existing : lock;
+    }
+
+    /**
+     * Wait until no other vault, in this or another process, holds the lock.
+     *
+     * @throws IOException if the lock file cannot be opened or locked
+     */
+    void lock() throws IOException {
+        shared.localLock.lock();
+        if (shared.localLock.getHoldCount() > 1) {
+            return;
+        }
+        boolean locked = false;
+        try {
+            shared.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            shared.fileLock = shared.channel.lock();
+            locked = true;
+        } finally {
+            if (!locked) {
+                release();
+                shared.localLock.unlock();
+            }
+        }
+    }
+
+    void unlock() {
+        try {
+            if (shared.localLock.getHoldCount() == 1) {
+                release();
+            }
+        } finally {
+            shared.localLock.unlock();
+        }
+    }
+
+    private void release() {
+        try {
+            if (shared.fileLock != null) {
+                shared.fileLock.release();
+            }
+        } catch (IOException e) {
+            // released when the channel is closed
+        }
+        try {
+            if (shared.channel != null) {
+                shared.channel.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+        shared.fileLock = null;
+        shared.channel = null;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.security.vault;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.res.StringManager;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread noticing changes of vault files made by other processes. Directory events of a
+ * {@link WatchService} trigger a check right away, files are also checked every interval because watch services
+ * miss changes on some file systems and are not available on others.
+ * <p>
+ * A file counts as changed when its modification time, size or identity differs from the last acknowledged
+ * state. Own writes are acknowledged by the vault, so they do not trigger a reload.
+ */
+final class VaultFileWatcher implements Runnable {
+
+    private static final StringManager sm = StringManager.getManager(VaultFileWatcher.class.getPackage().getName());
+    private static final Log log = LogFactory.getLog(VaultFileWatcher.class);
+
+    /**
+     * Reloads the vault files.
+     */
+    interface Reloader {
+        /**
+         * @return false if the reload has to be retried later
+         */
+        boolean reload();
+    }
+
+    private final Path dir;
+    private final Path[] files;
+    private final long interval;
+    private final Reloader reloader;
+
+    private volatile Thread thread;
+
+    // guarded by this
+    private List<Object> known;
+
+    VaultFileWatcher(Path dir, String[] fileNames, long interval, Reloader reloader) {
+        this.dir = dir;
+        this.files = new Path[fileNames.length];
+        for (int i = 0; i < fileNames.length; i++) {
+            files[i] = dir.resolve(fileNames[i]);
+        }
+        this.interval = interval;
+        this.reloader = reloader;
+        this.known = state();
+    }
+
+    void start() {
+        Thread t = new Thread(this, "tomcat-vault-watcher");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    void stop() {
+        Thread t = thread;
+        thread = null;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Take the current state of the files as known, called after own writes.
+     */
+    synchronized void acknowledge() {
+        known = state();
+    }
+
+    public void run() {
+        WatchService watchService = null;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug(sm.getString("vaultFileWatcher.polling", dir), e);
+            close(watchService);
+            watchService = null;
+        }
+        try {
+            while (thread == Thread.currentThread()) {
+                if (watchService != null) {
+                    WatchKey key = watchService.poll(interval, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        // which file changed does not matter, all of them are checked
+                        key.pollEvents();
+                        if (!key.reset()) {
+                            log.warn(sm.getString("vaultFileWatcher.polling", dir));
+                            close(watchService);
+                            watchService = null;
+                        }
+                    }
+                } else {
+                    Thread.sleep(interval);
+                }
+                check();
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } finally {
+            close(watchService);
+        }
+    }
+
+    private void check() {
+        List<Object> current = state();
+        synchronized (this) {
+            if (current.equals(known)) {
+                return;
+            }
+        }
+        try {
+            if (reloader.reload()) {
+                synchronized (this) {
+                    known = current;
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error(sm.getString("vaultFileWatcher.reloadFailed", dir), e);
+        }
+    }
+
+    private List<Object> state() {
+        List<Object> state = new ArrayList<Object>(files.length * 3);
+        for (Path file : files) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                state.add(attributes.lastModifiedTime());
+                state.add(attributes.size());
+                state.add(attributes.fileKey());
+            } catch (IOException e) {
+                // missing file
+                state.add(null);
+                state.add(null);
+                state.add(null);
+            }
+        }
+        return state;
+    }
+
+    private static void close(WatchService watchService) {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.security.vault;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+
+/**
+ * Crash safe replacement of vault files. A file is written to a temporary file next to it, forced to disk and
+ * renamed over the original, so a crash leaves either the old or the new content behind. Every write uses its own
+ * temporary file, so concurrent writers of the same file, also in other processes, replace it one after the other.
+ */
+final class VaultFiles {
+
+    /**
+     * Writes the content of a file.
+     */
+    interface Content {
+        void writeTo(OutputStream os) throws IOException, GeneralSecurityException;
+    }
+
+    private VaultFiles() {
+    }
+
+    /**
+     * Replace target by the given content. Permissions of an existing target are kept.
+     *
+     * @param target
+     * @param content
+     * @throws IOException
+     * @throws GeneralSecurityException thrown by the content
+     */
+    static void writeAtomically(File target, Content content) throws IOException, GeneralSecurityException {
+        Path path = target.toPath().toAbsolutePath();
+        if (Files.exists(path)) {
+            // replace the file a symbolic link points to, not the link
+            path = path.toRealPath();
+        }
+        // unlike Files.createTempFile, keeps the permissions a new file gets by default
+        Path tmp = File.createTempFile(path.getFileName() + ".tmp", "", path.getParent().toFile()).toPath();
+        FileOutputStream fos;
+        try {
+            fos = new FileOutputStream(tmp.toFile());
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        try {
+            // before any content is written
+            copyPermissions(path, tmp);
+            OutputStream os = new BufferedOutputStream(fos);
+            // KeyStore.store closes the stream, the file still has to be synced
+            content.writeTo(new FilterOutputStream(os) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+            os.flush();
+            fos.getFD().sync();
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            fos.close();
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        fos.close();
+
+        try {
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        forceDirectory(path.getParent());
+    }
+
+    /**
+     * Make a created or renamed file durable, where the platform supports syncing directories.
+     *
+     * @param dir
+     */
+    static void forceDirectory(Path dir) {
+        if (dir == null) {
+            return;
+        }
+        try {
+            FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // directories cannot be opened or synced on some platforms, e.g. Windows
+        }
+    }
+
+    private static void copyPermissions(Path from, Path to) {
+        if (!Files.exists(from)) {
+            return;
+        }
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (UnsupportedOperationException | IOException e) {
+            // not a POSIX file system, the temporary file keeps the default permissions
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.util.res.StringManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Previous versions of attribute values, kept in a file next to the vault data file so they are only read when a
+ * version is asked for or recorded.
+ * <p>
+ * Versions are numbered per attribute starting at 1, every stored value gets the next number. An attribute is only
+ * recorded once it has been changed, until then its value is version 1. The current value is not marked as such,
+ * it is the recorded version with the same encrypted value or, if there is none, the version after the newest
+ * recorded one. So the history stays correct when the vault data file is written without recording versions.
+ * <p>
+ * Layout, numbers are big-endian and strings are written the way {@link VaultDataFormat} writes them:
+ * <pre>
+ * magic "TVHS" | version (int) | generation (long)
+ * attribute count (int) | attributes: data key (string) | version count (int) | versions: number (int) | value length (int) | value
+ * CRC32 of all preceding bytes (int)
+ * </pre>
+ */
+final class VaultHistory {
+
+    private static final StringManager sm = StringManager.getManager(VaultHistory.class.getPackage().getName());
+
+    static final int MAGIC = 0x54564853; // "TVHS"
+    static final int VERSION = 1;
+
+    private final File file;
+
+    // guarded by this, null until read
+    private Map<String, List<Version>> versions;
+    private long generation;
+
+    VaultHistory(File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Forget the versions read so far, the file has been changed by another process.
+     */
+    synchronized void invalidate() {
+        versions = null;
+    }
+
+    /**
+     * @param key data key, see {@link SecurityVaultData#dataKey}
+     * @return recorded versions, oldest first, empty if the attribute has not been changed
+     * @throws IOException if the history file cannot be read
+     */
+    synchronized List<Version> get(String key) throws IOException {
+        List<Version> recorded = load().get(key);
+        return recorded == null ? Collections.<Version>emptyList() : Collections.unmodifiableList(recorded);
+    }
+
+    /**
+     * Number of the current value.
+     *
+     * @param recorded versions of the attribute
+     * @param value    current value
+     * @return
+     */
+    static int versionOf(List<Version> recorded, byte[] value) {
+        for (int i = recorded.size() - 1; i >= 0; i--) {
+            if (Arrays.equals(recorded.get(i).value, value)) {
+                return recorded.get(i).number;
+            }
+        }
+        return recorded.isEmpty() ? 1 : recorded.get(recorded.size() - 1).number + 1;
+    }
+
+    /**
+     * Record changed attributes and write the history file. Called holding the file lock, changes of other
+     * processes are read first.
+     *
+     * @param keys     data keys of the changed attributes
+     * @param previous values before the change, null for attributes which did not exist
+     * @param values   values after the change, null for removed attributes
+     * @param size     number of versions kept besides the current one
+     * @throws IOException
+     */
+    synchronized void record(List<String> keys, List<byte[]> previous, List<byte[]> values, int size) throws IOException {
+        if (readGeneration() != generation) {
+            versions = null;
+        }
+        Map<String, List<Version>> history = load();
+        boolean changed = false;
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] before = previous.get(i);
+            if (before == null && !history.containsKey(keys.get(i))) {
+                // a new attribute, its value is version 1 without being recorded
+                continue;
+            }
+            List<Version> recorded = history.get(keys.get(i));
+            if (recorded == null) {
+                recorded = new ArrayList<Version>();
+                history.put(keys.get(i), recorded);
+            }
+            int number = recorded.isEmpty() ? 0 : recorded.get(recorded.size() - 1).number;
+            if (before != null && versionOf(recorded, before) > number) {
+                recorded.add(new Version(++number, before));
+            }
+            if (values.get(i) != null) {
+                recorded.add(new Version(++number, values.get(i)));
+            }
+            while (recorded.size() > size + 1) {
+                recorded.remove(0);
+            }
+            changed = true;
+        }
+        if (changed) {
+            write(history, generation + 1);
+        }
+    }
+
+    private Map<String, List<Version>> load() throws IOException {
+        if (versions == null) {
+            byte[] bytes;
+            try {
+                bytes = Files.readAllBytes(file.toPath());
+            } catch (NoSuchFileException e) {
+                versions = new HashMap<String, List<Version>>();
+                generation = 0;
+                return versions;
+            }
+            versions = read(bytes);
+            generation = ByteBuffer.wrap(bytes).getLong(8);
+        }
+        return versions;
+    }
+
+    private Map<String, List<Version>> read(byte[] bytes) throws IOException {
+        if (bytes.length < 24) {
+            throw new IOException(sm.getString("vaultHistory.corrupted", file.getPath()));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt(bytes.length - 4) != (int) crc.getValue() || buffer.getInt() != MAGIC) {
+            throw new IOException(sm.getString("vaultHistory.corrupted", file.getPath()));
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException(sm.getString("vaultHistory.unsupportedVersion", file.getPath(), String.valueOf(version), String.valueOf(VERSION)));
+        }
+        buffer.getLong();
+        buffer.limit(bytes.length - 4);
+        try {
+            Map<String, List<Version>> history = new HashMap<String, List<Version>>();
+            int count = readCount(buffer);
+            for (int i = 0; i < count; i++) {
+                String key = new String(readBytes(buffer), StandardCharsets.UTF_8);
+                int versionCount = readCount(buffer);
+                List<Version> recorded = new ArrayList<Version>(versionCount);
+                for (int j = 0; j < versionCount; j++) {
+                    int number = buffer.getInt();
+                    recorded.add(new Version(number, readBytes(buffer)));
+                }
+                history.put(key, recorded);
+            }
+            return history;
+        } catch (BufferUnderflowException e) {
+            throw new IOException(sm.getString("vaultHistory.corrupted", file.getPath()), e);
+        }
+    }
+
+    private void write(final Map<String, List<Version>> history, final long nextGeneration) throws IOException {
+        try {
+            VaultFiles.writeAtomically(file, new VaultFiles.Content() {
+                public void writeTo(OutputStream os) throws IOException {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(bytes);
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeLong(nextGeneration);
+                    out.writeInt(history.size());
+                    for (Map.Entry<String, List<Version>> entry : history.entrySet()) {
+                        VaultDataFormat.writeString(out, entry.getKey());
+                        out.writeInt(entry.getValue().size());
+                        for (Version version : entry.getValue()) {
+                            out.writeInt(version.number);
+                            out.writeInt(version.value.length);
+                            out.write(version.value);
+                        }
+                    }
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes.toByteArray());
+                    out.writeInt((int) crc.getValue());
+                    bytes.writeTo(os);
+                    os.flush();
+                }
+            });
+        } catch (IOException e) {
+            // the content written is unknown now
+            versions = null;
+            throw e;
+        } catch (Exception e) {
+            versions = null;
+            throw new IOException(e);
+        }
+        generation = nextGeneration;
+    }
+
+    private long readGeneration() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        try {
+            FileChannel channel = FileChannel.open(file.toPath());
+            try {
+                while (header.hasRemaining() && channel.read(header) > 0) {
+                    // read the whole header
+                }
+            } finally {
+                channel.close();
+            }
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        return header.hasRemaining() ? -1 : header.getLong(8);
+    }
+
+    private static int readCount(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return count;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[readCount(buffer)];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Numbered value of an attribute.
+     */
+    static final class Version {
+        final int number;
+        final byte[] value;
+
+        Version(int number, byte[] value) {
+            this.number = number;
+            this.value = value;
+        }
+    }
+}
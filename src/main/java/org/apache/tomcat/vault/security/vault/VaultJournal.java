@@ -0,0 +1,310 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.security.vault;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.res.StringManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of vault data mutations kept next to the vault data file. Replaying the journal over the vault
+ * data file gives the current vault content, writing the vault data file folds the journal into it.
+ * <p>
+ * Layout, numbers are big-endian and strings are written the way {@link VaultDataFormat} writes them:
+ * <pre>
+ * magic "TVJL" | version (int)
+ * records: payload length (int) | payload | CRC32 of the payload (int)
+ * payload: operation (byte) | vault block (string) | attribute name (string) [| value length (int) | value]
+ * </pre>
+ * Records are replayed in order and replaying a record twice does not change the result. A damaged or incomplete
+ * record, typically left by a crash during an append, ends the replay and is cut off the journal.
+ * <p>
+ * Appends are not forced to disk, {@link #force()} makes all records appended so far durable. Callers serialize
+ * appends, resets and closing, {@link #force()} may run concurrently with appends.
+ */
+final class VaultJournal {
+
+    private static final StringManager sm = StringManager.getManager(VaultJournal.class.getPackage().getName());
+    private static final Log log = LogFactory.getLog(VaultJournal.class);
+
+    static final int MAGIC = 0x54564A4C; // "TVJL"
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private final File file;
+    private long size = -1;
+    // end of the last record applied by replay
+    private long replayedLength;
+    // whether the last replay left a damaged tail in place
+    private boolean damagedTail;
+    // opened by the first append
+    private volatile FileChannel channel;
+
+    VaultJournal(File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return journal size in bytes, 0 if there is no journal
+     */
+    long size() {
+        if (size < 0) {
+            size = file.length();
+        }
+        return size;
+    }
+
+    /**
+     * @return length of the intact part of the journal found by the last replay
+     */
+    long replayedLength() {
+        return replayedLength;
+    }
+
+    /**
+     * @return whether the last replay found a damaged tail and did not cut it off
+     */
+    boolean hasDamagedTail() {
+        return damagedTail;
+    }
+
+    /**
+     * Apply all intact records to given vault data.
+     *
+     * @param data
+     * @param repair whether a damaged tail is cut off, only safe while no other process appends
+     * @return number of records applied
+     * @throws IOException if the journal cannot be read or is not a vault journal
+     */
+    int replay(SecurityVaultData data, boolean repair) throws IOException {
+        replayedLength = 0;
+        damagedTail = false;
+        if (!file.exists()) {
+            size = 0;
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (buffer.remaining() < HEADER_SIZE) {
+            // crashed while creating the journal
+            if (repair) {
+                truncate(0);
+            } else {
+                damagedTail = buffer.hasRemaining();
+            }
+            return 0;
+        }
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException(sm.getString("vaultJournal.notJournal", file.getPath()));
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException(sm.getString("vaultJournal.unsupportedVersion", file.getPath(), String.valueOf(version), String.valueOf(VERSION)));
+        }
+
+        replayedLength = HEADER_SIZE;
+        int count = 0;
+        CRC32 crc = new CRC32();
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            try {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining() - 4) {
+                    throw new BufferUnderflowException();
+                }
+                crc.reset();
+                crc.update(buffer.array(), buffer.position(), length);
+                ByteBuffer payload = (ByteBuffer) buffer.slice().limit(length);
+                buffer.position(buffer.position() + length);
+                if (buffer.getInt() != (int) crc.getValue()) {
+                    throw new BufferUnderflowException();
+                }
+                apply(data, payload);
+                count++;
+                replayedLength = buffer.position();
+            } catch (BufferUnderflowException e) {
+                if (repair) {
+                    log.warn(sm.getString("vaultJournal.damagedRecord", file.getPath(), String.valueOf(start), String.valueOf(count)));
+                    truncate(start);
+                } else {
+                    damagedTail = true;
+                }
+                return count;
+            }
+        }
+        size = buffer.limit();
+        replayedLength = size;
+        return count;
+    }
+
+    void appendStore(String vaultBlock, String attributeName, byte[] encryptedData) throws IOException {
+        append(PUT, vaultBlock, attributeName, encryptedData);
+    }
+
+    void appendRemove(String vaultBlock, String attributeName) throws IOException {
+        append(REMOVE, vaultBlock, attributeName, null);
+    }
+
+    /**
+     * Drop the journal once its records are part of the vault data file.
+     *
+     * @throws IOException if the journal cannot be deleted, its records would be replayed again otherwise
+     */
+    void reset() throws IOException {
+        close();
+        Files.deleteIfExists(file.toPath());
+        size = 0;
+    }
+
+    /**
+     * Force appended records to disk.
+     *
+     * @throws IOException
+     */
+    void force() throws IOException {
+        FileChannel appending = channel;
+        if (appending != null) {
+            appending.force(false);
+        }
+    }
+
+    /**
+     * Forget what is known about the journal file, it has been changed by another process.
+     *
+     * @throws IOException
+     */
+    void refresh() throws IOException {
+        close();
+        size = -1;
+    }
+
+    void close() throws IOException {
+        FileChannel appending = channel;
+        channel = null;
+        if (appending != null) {
+            appending.close();
+        }
+    }
+
+    private void append(byte operation, String vaultBlock, String attributeName, byte[] value) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64 + (value == null ? 0 : value.length));
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(operation);
+        VaultDataFormat.writeString(out, vaultBlock);
+        VaultDataFormat.writeString(out, attributeName);
+        if (value != null) {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+
+        boolean header = size() == 0;
+        ByteArrayOutputStream record = new ByteArrayOutputStream(payload.size() + 16);
+        out = new DataOutputStream(record);
+        if (header) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+        out.writeInt((int) crc.getValue());
+
+        long previousSize = size;
+        // stat the file again if the append fails half way
+        size = -1;
+        FileChannel appending = channel;
+        if (appending == null) {
+            appending = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            channel = appending;
+            if (header) {
+                VaultFiles.forceDirectory(file.getAbsoluteFile().getParentFile().toPath());
+            }
+        }
+        // one write per record, a crash leaves at most one incomplete record behind
+        ByteBuffer bytes = ByteBuffer.wrap(record.toByteArray());
+        while (bytes.hasRemaining()) {
+            appending.write(bytes);
+        }
+        size = previousSize + record.size();
+    }
+
+    private static void apply(SecurityVaultData data, ByteBuffer payload) {
+        byte operation = payload.get();
+        String vaultBlock = readString(payload);
+        String attributeName = readString(payload);
+        if (operation == PUT) {
+            int length = payload.getInt();
+            if (length < 0 || length > payload.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            byte[] value = new byte[length];
+            payload.get(value);
+            data.addVaultData(null, vaultBlock, attributeName, value);
+        } else if (operation == REMOVE) {
+            data.deleteVaultData(null, vaultBlock, attributeName);
+        } else {
+            throw new BufferUnderflowException();
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String str = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return str;
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getChannel().truncate(length);
+        } finally {
+            raf.close();
+        }
+        size = length;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.util.res.StringManager;
+import org.apache.tomcat.vault.util.StringUtil;
+
+/**
+ * Reference to an attribute stored in a {@link SecurityVault}, identified by vault block and attribute name.
+ */
+public final class VaultRef {
+
+    private static final StringManager msm = StringManager.getManager("org.apache.tomcat.vault.security.resources");
+
+    private final String vaultBlock;
+    private final String attributeName;
+
+    public VaultRef(String vaultBlock, String attributeName) {
+        if (StringUtil.isNullOrEmpty(vaultBlock))
+            throw new IllegalArgumentException(msm.getString("invalidNullArgument", "vaultBlock"));
+        if (StringUtil.isNullOrEmpty(attributeName))
+            throw new IllegalArgumentException(msm.getString("invalidNullArgument", "attributeName"));
+        this.vaultBlock = vaultBlock;
+        this.attributeName = attributeName;
+    }
+
+    public String getVaultBlock() {
+        return vaultBlock;
+    }
+
+    public String getAttributeName() {
+        return attributeName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VaultRef)) {
+            return false;
+        }
+        VaultRef other = (VaultRef) o;
+        return vaultBlock.equals(other.vaultBlock) && attributeName.equals(other.attributeName);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * vaultBlock.hashCode() + attributeName.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "VAULT" + StringUtil.PROPERTY_DEFAULT_SEPARATOR + vaultBlock + StringUtil.PROPERTY_DEFAULT_SEPARATOR
+                + attributeName;
+    }
+}
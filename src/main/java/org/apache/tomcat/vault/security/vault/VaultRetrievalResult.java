@@ -0,0 +1,98 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.security.vault;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Result of {@link SecurityVault#retrieveAll(java.util.Collection, byte[])}. Holds retrieved values together
+ * with references which are not stored in the vault and references which failed to decrypt.
+ */
+public class VaultRetrievalResult {
+
+    private final Map<VaultRef, char[]> values = new HashMap<VaultRef, char[]>();
+    private final Set<VaultRef> missing = new HashSet<VaultRef>();
+    private final Map<VaultRef, SecurityVaultException> failures = new HashMap<VaultRef, SecurityVaultException>();
+
+    /**
+     * Retrieved values. The caller owns the returned arrays and should wipe them after use.
+     *
+     * @return
+     */
+    public Map<VaultRef, char[]> getValues() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Get retrieved value of given reference.
+     *
+     * @param ref
+     * @return value or null if the value has not been retrieved
+     */
+    public char[] get(VaultRef ref) {
+        return values.get(ref);
+    }
+
+    /**
+     * References which are not stored in the vault.
+     *
+     * @return
+     */
+    public Set<VaultRef> getMissing() {
+        return Collections.unmodifiableSet(missing);
+    }
+
+    /**
+     * References which are stored in the vault but could not be retrieved.
+     *
+     * @return
+     */
+    public Map<VaultRef, SecurityVaultException> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Check whether all requested values have been retrieved.
+     *
+     * @return
+     */
+    public boolean isComplete() {
+        return missing.isEmpty() && failures.isEmpty();
+    }
+
+    void addValue(VaultRef ref, char[] value) {
+        values.put(ref, value);
+    }
+
+    void addMissing(VaultRef ref) {
+        missing.add(ref);
+    }
+
+    void addFailure(VaultRef ref, SecurityVaultException e) {
+        failures.put(ref, e);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.util;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encryptor for CRYPT2:: values.
+ * <p>
+ * The AES key is derived from the encryption password with PBKDF2WithHmacSHA256 once per salt and iteration
+ * count. The keys of the 16 most recently used salts and iteration counts are kept. Values are encrypted with the
+ * {@link #getDefaultSalt() default salt} of the password unless a salt is given, so that they all share one key.
+ * Every value is encrypted with AES/GCM under a fresh nonce. The encrypted value is self-describing, it contains (base64 encoded):
+ * <pre>
+ * version (1 byte) | iterations (4 bytes) | salt length (1 byte) | salt | nonce (12 bytes) | ciphertext and tag
+ * </pre>
+ */
+public class Crypt2Encryptor {
+
+    public static final int DEFAULT_ITERATIONS = 100000;
+
+    // values claiming more iterations are rejected, so that a crafted value cannot stall the key derivation
+    public static final int MAX_ITERATIONS = 10 * DEFAULT_ITERATIONS;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte VERSION = 1;
+    private static final String KEY_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+    private static final int KEY_SIZE = 256;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+    private static final int SALT_LENGTH = 16;
+    private static final int MAX_DERIVED_KEYS = 16;
+    private static final String DEFAULT_SALT_LABEL = "tomcat-vault CRYPT2 salt";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final char[] password;
+    // least recently used keys are dropped, values normally share a few salts
+    private final Map<String, SecretKey> derivedKeys = Collections.synchronizedMap(
+            new LinkedHashMap<String, SecretKey>(MAX_DERIVED_KEYS, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+                    return size() > MAX_DERIVED_KEYS;
+                }
+            });
+    private final ThreadLocal<Cipher> cipher = new ThreadLocal<Cipher>();
+
+    public Crypt2Encryptor(String password) {
+        if (password == null) {
+            throw new IllegalArgumentException("password cannot be null");
+        }
+        this.password = password.toCharArray();
+    }
+
+    /**
+     * Generate random salt suitable for {@link #encrypt(String, byte[], int)}.
+     *
+     * @return
+     */
+    public static byte[] generateSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Salt used for all values encrypted with the password, unless another one is given. It is derived from the
+     * password, so values encrypted by separate runs of the vault tool share the derived key, while values of
+     * different passwords do not share a salt.
+     *
+     * @return 16 bytes
+     * @throws GeneralSecurityException
+     */
+    public byte[] getDefaultSalt() throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(DEFAULT_SALT_LABEL.getBytes(UTF8));
+        byte[] encoded = new String(password).getBytes(UTF8);
+        try {
+            return Arrays.copyOf(digest.digest(encoded), SALT_LENGTH);
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    /**
+     * Encrypt value. Values encrypted with the same salt and iteration count share the derived key.
+     *
+     * @param value
+     * @param salt       1 - 255 bytes
+     * @param iterations PBKDF2 iteration count, at most {@link #MAX_ITERATIONS}
+     * @return encrypted value without the CRYPT2:: prefix
+     * @throws GeneralSecurityException
+     */
+    public String encrypt(String value, byte[] salt, int iterations) throws GeneralSecurityException {
+        if (salt == null || salt.length == 0 || salt.length > 255) {
+            throw new IllegalArgumentException("salt has to be 1 - 255 bytes long");
+        }
+        if (iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("iterations has to be 1 - " + MAX_ITERATIONS + ", but is " + iterations);
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+
+        Cipher c = getCipher();
+        c.init(Cipher.ENCRYPT_MODE, getKey(salt, iterations), new GCMParameterSpec(TAG_LENGTH, nonce));
+        byte[] plain = value.getBytes(UTF8);
+        byte[] encrypted;
+        try {
+            encrypted = c.doFinal(plain);
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(1 + 4 + 1 + salt.length + NONCE_LENGTH + encrypted.length);
+        out.put(VERSION).putInt(iterations).put((byte) salt.length).put(salt).put(nonce).put(encrypted);
+        return Base64.getEncoder().encodeToString(out.array());
+    }
+
+    /**
+     * Decrypt value produced by {@link #encrypt(String, byte[], int)}.
+     *
+     * @param encryptedValue encrypted value without the CRYPT2:: prefix
+     * @return
+     * @throws GeneralSecurityException if the value is malformed or cannot be decrypted with the password
+     */
+    public String decrypt(String encryptedValue) throws GeneralSecurityException {
+        ByteBuffer in;
+        try {
+            in = ByteBuffer.wrap(Base64.getDecoder().decode(encryptedValue));
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Malformed CRYPT2 value", e);
+        }
+        if (in.remaining() < 1 + 4 + 1 || in.get() != VERSION) {
+            throw new GeneralSecurityException("Unsupported CRYPT2 value version");
+        }
+        int iterations = in.getInt();
+        int saltLength = in.get() & 0xff;
+        if (iterations < 1 || iterations > MAX_ITERATIONS || saltLength == 0 || in.remaining() < saltLength + NONCE_LENGTH) {
+            throw new GeneralSecurityException("Malformed CRYPT2 value");
+        }
+        byte[] salt = new byte[saltLength];
+        in.get(salt);
+        byte[] nonce = new byte[NONCE_LENGTH];
+        in.get(nonce);
+
+        Cipher c = getCipher();
+        c.init(Cipher.DECRYPT_MODE, getKey(salt, iterations), new GCMParameterSpec(TAG_LENGTH, nonce));
+        byte[] plain = c.doFinal(in.array(), in.position(), in.remaining());
+        try {
+            return new String(plain, UTF8);
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    private SecretKey getKey(byte[] salt, int iterations) throws GeneralSecurityException {
+        String id = Base64.getEncoder().encodeToString(salt) + ":" + iterations;
+        SecretKey key = derivedKeys.get(id);
+        if (key == null) {
+            PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, KEY_SIZE);
+            try {
+                byte[] encoded = SecretKeyFactory.getInstance(KEY_ALGORITHM).generateSecret(spec).getEncoded();
+                key = new SecretKeySpec(encoded, "AES");
+                Arrays.fill(encoded, (byte) 0);
+            } finally {
+                spec.clearPassword();
+            }
+            // concurrent first lookups may derive the same key twice, which is harmless
+            derivedKeys.put(id, key);
+        }
+        return key;
+    }
+
+    private Cipher getCipher() throws GeneralSecurityException {
+        Cipher c = cipher.get();
+        if (c == null) {
+            c = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.set(c);
+        }
+        return c;
+    }
+}
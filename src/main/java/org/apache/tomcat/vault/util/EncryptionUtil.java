@@ -26,12 +26,18 @@ import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 
 /**
  * Encryption/Decryption utility
+ * <p>
+ * When constructed with a key, the instance works as a reusable engine: the key spec is resolved once
+ * and every thread keeps its own initialized {@link Cipher} instances, so {@link #encrypt(byte[])} and
+ * {@link #decrypt(byte[])} do not pay for provider lookup and cipher initialization on each call.
  *
  * @author Anil.Saldhana@redhat.com
  * @since Aug 12, 2011
@@ -40,9 +46,30 @@ public class EncryptionUtil {
     private String encryptionAlgorithm;
     private int keySize;
 
+    private final SecretKeySpec engineKeySpec;
+    private final ThreadLocal<Cipher> encryptCipher = new ThreadLocal<Cipher>();
+    private final ThreadLocal<Cipher> decryptCipher = new ThreadLocal<Cipher>();
+
     public EncryptionUtil(String encryptionAlgorithm, int keySize) {
         this.encryptionAlgorithm = encryptionAlgorithm;
         this.keySize = keySize;
+        this.engineKeySpec = null;
+    }
+
+    /**
+     * Create encryption engine bound to given key.
+     *
+     * @param encryptionAlgorithm
+     * @param keySize
+     * @param key
+     */
+    public EncryptionUtil(String encryptionAlgorithm, int keySize, SecretKey key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        this.encryptionAlgorithm = encryptionAlgorithm;
+        this.keySize = keySize;
+        this.engineKeySpec = new SecretKeySpec(key.getEncoded(), encryptionAlgorithm);
     }
 
     public SecretKey generateKey() throws NoSuchAlgorithmException {
@@ -128,4 +155,100 @@ public class EncryptionUtil {
         return original;
     }
 
-}
\ No newline at end of file
+    /**
+     * Encrypt data using the key this engine is bound to.
+     *
+     * @param data
+     * @return
+     * @throws GeneralSecurityException
+     */
+    public byte[] encrypt(byte[] data) throws GeneralSecurityException {
+        return encrypt(data, 0, data.length);
+    }
+
+    /**
+     * Encrypt part of the data array using the key this engine is bound to.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return
+     * @throws GeneralSecurityException
+     */
+    public byte[] encrypt(byte[] data, int offset, int length) throws GeneralSecurityException {
+        return doFinal(encryptCipher, Cipher.ENCRYPT_MODE, data, offset, length);
+    }
+
+    /**
+     * Decrypt data using the key this engine is bound to.
+     *
+     * @param encryptedData
+     * @return
+     * @throws GeneralSecurityException
+     */
+    public byte[] decrypt(byte[] encryptedData) throws GeneralSecurityException {
+        return doFinal(decryptCipher, Cipher.DECRYPT_MODE, encryptedData, 0, encryptedData.length);
+    }
+
+    /**
+     * Decrypt data using the key this engine is bound to, writing the plain data into given buffer instead of
+     * a newly allocated array.
+     *
+     * @param encryptedData
+     * @param output buffer with at least {@link #getDecryptOutputSize(int)} bytes remaining
+     * @return number of bytes written
+     * @throws GeneralSecurityException
+     */
+    public int decrypt(byte[] encryptedData, ByteBuffer output) throws GeneralSecurityException {
+        Cipher cipher = getCipher(decryptCipher, Cipher.DECRYPT_MODE);
+        try {
+            return cipher.doFinal(ByteBuffer.wrap(encryptedData), output);
+        } catch (GeneralSecurityException e) {
+            decryptCipher.remove();
+            throw e;
+        } catch (RuntimeException e) {
+            decryptCipher.remove();
+            throw e;
+        }
+    }
+
+    /**
+     * Get buffer size needed by {@link #decrypt(byte[], ByteBuffer)} for encrypted data of given length.
+     *
+     * @param length
+     * @return
+     * @throws GeneralSecurityException
+     */
+    public int getDecryptOutputSize(int length) throws GeneralSecurityException {
+        return getCipher(decryptCipher, Cipher.DECRYPT_MODE).getOutputSize(length);
+    }
+
+    private byte[] doFinal(ThreadLocal<Cipher> cipherHolder, int mode, byte[] data, int offset, int length)
+            throws GeneralSecurityException {
+        Cipher cipher = getCipher(cipherHolder, mode);
+        try {
+            // doFinal resets the cipher to its initialized state, so it is ready for the next call
+            return cipher.doFinal(data, offset, length);
+        } catch (GeneralSecurityException e) {
+            cipherHolder.remove();
+            throw e;
+        } catch (RuntimeException e) {
+            cipherHolder.remove();
+            throw e;
+        }
+    }
+
+    private Cipher getCipher(ThreadLocal<Cipher> cipherHolder, int mode) throws GeneralSecurityException {
+        if (engineKeySpec == null) {
+            throw new IllegalStateException("EncryptionUtil is not bound to a key");
+        }
+        Cipher cipher = cipherHolder.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(encryptionAlgorithm);
+            cipher.init(mode, engineKeySpec);
+            cipherHolder.set(cipher);
+        }
+        return cipher;
+    }
+
+}
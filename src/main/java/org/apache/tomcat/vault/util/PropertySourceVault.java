@@ -26,13 +26,15 @@ import org.apache.catalina.Globals;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.IntrospectionUtils.PropertySource;
-import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
 import org.apache.tomcat.vault.security.vault.SecurityVault;
 import org.apache.tomcat.vault.security.vault.SecurityVaultException;
 import org.apache.tomcat.vault.security.vault.SecurityVaultFactory;
-import org.jasypt.util.text.BasicTextEncryptor;
+import org.jasypt.encryption.StringEncryptor;
+import org.jasypt.encryption.pbe.PooledPBEStringEncryptor;
 
 import java.io.File;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -40,15 +42,27 @@ import java.util.Properties;
 public class PropertySourceVault implements PropertySource {
     private static final Log log = LogFactory.getLog(PropertySourceVault.class);
 
-    private static final String VAULT_PREFIX = "VAULT::";
-    private static final String CRYPT_PREFIX = "CRYPT::";
     private static final String PROPERTY_FILE_RELATIVE_PATH = "/conf/vault.properties";
     private static final String ENCRYPTION_PASSWORD = "ENCRYPTION_PASSWORD";
+    private static final String CACHE_MAX_ENTRIES = "CACHE_MAX_ENTRIES";
+    private static final String CACHE_TTL = "CACHE_TTL";
+    private static final String LAZY_INIT = "LAZY_INIT";
+    private static final String CRYPT_POOL_SIZE = "CRYPT_POOL_SIZE";
+    private static final String CACHE_CRYPT = "CACHE_CRYPT";
 
     private SecurityVault vault;
     private PropertyFileManager pfm;
     private Properties properties;
-    private BasicTextEncryptor textEncryptor;
+    private volatile StringEncryptor textEncryptor;
+    private volatile Crypt2Encryptor crypt2Encryptor;
+    private VaultValueCache cache;
+    private boolean cacheCrypt;
+
+    private boolean lazyInit;
+    private final Object vaultInitLock = new Object();
+    private volatile boolean vaultInitialized;
+    private final Object cryptInitLock = new Object();
+    private volatile boolean cryptInitialized;
 
     public PropertySourceVault() {
         this.vault = null;
@@ -85,6 +99,8 @@ public class PropertySourceVault implements PropertySource {
     public void init() {
         try {
             vault = SecurityVaultFactory.get();
+            vaultInitialized = false;
+            cryptInitialized = false;
 
             // Load vault property file
             properties = pfm.load();
@@ -94,54 +110,166 @@ public class PropertySourceVault implements PropertySource {
                 return;
             }
 
-            Map<String, Object> options = new HashMap<String, Object>();
-            options.put(PicketBoxSecurityVault.KEYSTORE_URL, properties.getProperty("KEYSTORE_URL"));
-            options.put(PicketBoxSecurityVault.KEYSTORE_PASSWORD, properties.getProperty("KEYSTORE_PASSWORD"));
-            options.put(PicketBoxSecurityVault.KEYSTORE_ALIAS, properties.getProperty("KEYSTORE_ALIAS"));
-            options.put(PicketBoxSecurityVault.SALT, properties.getProperty("SALT"));
-            options.put(PicketBoxSecurityVault.ITERATION_COUNT, properties.getProperty("ITERATION_COUNT"));
-            options.put(PicketBoxSecurityVault.ENC_FILE_DIR, properties.getProperty("ENC_FILE_DIR"));
-
-            vault.init(options);
+            int cacheMaxEntries = Integer.parseInt(properties.getProperty(CACHE_MAX_ENTRIES, "0"));
+            if (cacheMaxEntries > 0) {
+                VaultValueCache valueCache = new VaultValueCache(cacheMaxEntries,
+                        Long.parseLong(properties.getProperty(CACHE_TTL, "0")));
+                if (vault.addVaultListener(valueCache)) {
+                    cache = valueCache;
+                    cacheCrypt = Boolean.parseBoolean(properties.getProperty(CACHE_CRYPT, "false"));
+                } else {
+                    log.warn("Vault does not support change notifications, " + CACHE_MAX_ENTRIES + " is ignored");
+                }
+            }
 
-            String passwordValue = properties.getProperty(ENCRYPTION_PASSWORD);
-            String encryptionPassword = null;
-            if (passwordValue != null) {
-                encryptionPassword = getProperty(passwordValue);
+            lazyInit = Boolean.parseBoolean(properties.getProperty(LAZY_INIT, "false"));
+            if (lazyInit) {
+                log.debug("Vault initialization deferred to the first VAULT:: reference");
             } else {
-                encryptionPassword = System.getProperty("org.apache.tomcat.vault.util." + ENCRYPTION_PASSWORD);
-            }
-            if (encryptionPassword != null) {
-                textEncryptor = new BasicTextEncryptor();
-                textEncryptor.setPassword(encryptionPassword);
+                initVault();
+                initCrypt();
             }
         } catch (Exception e) {
             log.error(e.getMessage(), e);
         }
     }
 
+    /**
+     * Initialize the vault once. Concurrent callers wait for the first one to finish.
+     *
+     * @return true if the vault is initialized
+     */
+    private boolean initVault() {
+        if (!vaultInitialized) {
+            synchronized (vaultInitLock) {
+                if (!vaultInitialized) {
+                    try {
+                        // without vault.properties the vault stays uninitialized
+                        if (properties != null) {
+                            // pass all vault.properties entries, the vault ignores options it does not know
+                            Map<String, Object> options = new HashMap<String, Object>();
+                            for (String name : properties.stringPropertyNames()) {
+                                options.put(name, properties.getProperty(name));
+                            }
+
+                            vault.init(options);
+                        }
+                    } catch (Exception e) {
+                        log.error(e.getMessage(), e);
+                    } finally {
+                        vaultInitialized = true;
+                    }
+                }
+            }
+        }
+        return vault.isInitialized();
+    }
+
+    /**
+     * Set up the CRYPT:: decryption once. The encryption password may itself be a VAULT:: reference.
+     */
+    private void initCrypt() {
+        if (!cryptInitialized) {
+            synchronized (cryptInitLock) {
+                if (!cryptInitialized) {
+                    try {
+                        String passwordValue = properties.getProperty(ENCRYPTION_PASSWORD);
+                        String encryptionPassword = null;
+                        if (passwordValue != null) {
+                            encryptionPassword = getProperty(passwordValue);
+                        } else {
+                            encryptionPassword = System.getProperty("org.apache.tomcat.vault.util." + ENCRYPTION_PASSWORD);
+                        }
+                        if (encryptionPassword != null) {
+                            // same settings as jasypt BasicTextEncryptor used by VaultTool, but each pooled
+                            // instance has its own cipher so parallel deployments do not queue on one lock
+                            PooledPBEStringEncryptor encryptor = new PooledPBEStringEncryptor();
+                            encryptor.setAlgorithm("PBEWithMD5AndDES");
+                            encryptor.setPassword(encryptionPassword);
+                            encryptor.setPoolSize(Integer.parseInt(properties.getProperty(CRYPT_POOL_SIZE,
+                                    String.valueOf(Runtime.getRuntime().availableProcessors()))));
+                            textEncryptor = encryptor;
+                            crypt2Encryptor = new Crypt2Encryptor(encryptionPassword);
+                        }
+                    } catch (Exception e) {
+                        log.error(e.getMessage(), e);
+                    } finally {
+                        cryptInitialized = true;
+                    }
+                }
+            }
+        }
+    }
+
     @Override
     public String getProperty(String arg0) {
         String result = null;
 
+        boolean cryptReference = VaultReference.isCryptReference(arg0) || VaultReference.isCrypt2Reference(arg0);
+        if (!cryptReference && !VaultReference.isVaultReference(arg0)) {
+            // left to other property sources
+            return null;
+        }
+        // Initialized on the first reference with LAZY_INIT, already done otherwise.
         // If the vault failed to init, then return without change
-        if (!vault.isInitialized()) {
+        if (!initVault()) {
             return arg0;
         }
+        if (cryptReference) {
+            initCrypt();
+        }
 
-        if (arg0.startsWith(VAULT_PREFIX)) {
-            String vaultdata[] = arg0.split("::");
-            if (vaultdata.length == 3) {
-                if (vault.isInitialized()) {
-                    try {
-                        result = new String(vault.retrieve(vaultdata[1], vaultdata[2], null));
-                    } catch (SecurityVaultException e) {
-                        log.error(e.getMessage(), e);
+        if (VaultReference.isVaultReference(arg0)) {
+            if (cache != null) {
+                result = cache.get(arg0);
+                if (result != null) {
+                    return result;
+                }
+            }
+            VaultReference reference = VaultReference.parse(arg0);
+            // a whole vault block cannot be resolved to a single property value
+            if (reference != null && !reference.isBlockReference()) {
+                String vaultBlock = reference.getVaultBlock();
+                String attributeName = reference.getAttributeName();
+                try {
+                    long stamp = cache != null ? cache.stamp() : 0;
+                    char[] value = vault.retrieve(vaultBlock, attributeName, null, reference.getVersion());
+                    result = new String(value);
+                    if (cache != null) {
+                        cache.put(stamp, arg0, vaultBlock, attributeName, value);
+                    } else {
+                        Arrays.fill(value, '\0');
                     }
+                } catch (SecurityVaultException e) {
+                    log.error(e.getMessage(), e);
+                }
+            }
+        } else if (textEncryptor != null && VaultReference.isCryptReference(arg0)) {
+            if (cacheCrypt) {
+                result = cache.get(arg0);
+                if (result != null) {
+                    return result;
+                }
+            }
+            result = textEncryptor.decrypt(arg0.substring(VaultReference.CRYPT_PREFIX.length()));
+            if (cacheCrypt) {
+                cache.put(cache.stamp(), arg0, null, null, result.toCharArray());
+            }
+        } else if (crypt2Encryptor != null && VaultReference.isCrypt2Reference(arg0)) {
+            if (cacheCrypt) {
+                result = cache.get(arg0);
+                if (result != null) {
+                    return result;
+                }
+            }
+            try {
+                result = crypt2Encryptor.decrypt(arg0.substring(VaultReference.CRYPT2_PREFIX.length()));
+                if (cacheCrypt) {
+                    cache.put(cache.stamp(), arg0, null, null, result.toCharArray());
                 }
+            } catch (GeneralSecurityException e) {
+                log.error(e.getMessage(), e);
             }
-        } else if (arg0.startsWith(CRYPT_PREFIX) && textEncryptor != null) {
-            result = textEncryptor.decrypt(arg0.substring(CRYPT_PREFIX.length()));
         }
         return result;
     }
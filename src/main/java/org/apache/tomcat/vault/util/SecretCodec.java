@@ -0,0 +1,203 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Converts secrets between char[] and bytes without creating intermediate Strings.
+ * <p>
+ * Every thread keeps its own encoder, decoder and scratch buffers. A scratch byte buffer handed out by
+ * {@link #encode(char[])} or {@link #byteBuffer(int)} stays owned by the calling thread until it is passed
+ * to {@link #release(ByteBuffer)}, which zeroes it. Malformed and unmappable input is replaced, the same
+ * way {@link String#String(byte[], Charset)} and {@link String#getBytes(Charset)} do.
+ */
+public class SecretCodec {
+
+    private final Charset charset;
+    private final ThreadLocal<CharsetEncoder> encoder = new ThreadLocal<CharsetEncoder>();
+    private final ThreadLocal<CharsetDecoder> decoder = new ThreadLocal<CharsetDecoder>();
+    private final ThreadLocal<ByteBuffer> bytes = new ThreadLocal<ByteBuffer>();
+    private final ThreadLocal<CharBuffer> chars = new ThreadLocal<CharBuffer>();
+
+    public SecretCodec(Charset charset) {
+        if (charset == null) {
+            throw new IllegalArgumentException("charset cannot be null");
+        }
+        this.charset = charset;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Encode value into the scratch buffer of the current thread.
+     *
+     * @param value
+     * @return buffer positioned at the encoded bytes, has to be passed to {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer encode(char[] value) {
+        CharsetEncoder enc = getEncoder();
+        ByteBuffer out = byteBuffer((int) Math.ceil(value.length * (double) enc.maxBytesPerChar()));
+        CharBuffer in = CharBuffer.wrap(value);
+        try {
+            enc.reset();
+            check(enc.encode(in, out, true));
+            check(enc.flush(out));
+        } catch (RuntimeException e) {
+            release(out);
+            throw e;
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Get the cleared scratch byte buffer of the current thread.
+     *
+     * @param capacity minimal capacity
+     * @return buffer backed by an array, has to be passed to {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer byteBuffer(int capacity) {
+        ByteBuffer buffer = bytes.get();
+        if (buffer == null || buffer.capacity() < capacity) {
+            if (buffer != null) {
+                wipe(buffer.array(), buffer.capacity());
+            }
+            buffer = ByteBuffer.allocate(Math.max(capacity, 64));
+            bytes.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Decode bytes into given buffer. Either the whole value is decoded or nothing is written.
+     *
+     * @param in
+     * @param out
+     * @return false if there is not enough room left in out
+     */
+    public boolean decode(ByteBuffer in, CharBuffer out) {
+        CharsetDecoder dec = getDecoder();
+        int start = out.position();
+        dec.reset();
+        CoderResult result = dec.decode(in, out, true);
+        if (!result.isOverflow()) {
+            result = dec.flush(out);
+        }
+        if (result.isOverflow()) {
+            // do not leave a partial secret behind
+            for (int i = start; i < out.position(); i++) {
+                out.put(i, '\0');
+            }
+            out.position(start);
+            return false;
+        }
+        check(result);
+        return true;
+    }
+
+    /**
+     * Decode bytes into a new array of exactly the decoded length.
+     *
+     * @param in
+     * @return
+     */
+    public char[] decode(ByteBuffer in) {
+        CharsetDecoder dec = getDecoder();
+        int capacity = (int) Math.ceil(in.remaining() * (double) dec.maxCharsPerByte()) + 1;
+        CharBuffer scratch = chars.get();
+        if (scratch == null || scratch.capacity() < capacity) {
+            if (scratch != null) {
+                Arrays.fill(scratch.array(), '\0');
+            }
+            scratch = CharBuffer.allocate(Math.max(capacity, 64));
+            chars.set(scratch);
+        }
+        scratch.clear();
+        try {
+            if (!decode(in, scratch)) {
+                throw new IllegalStateException("Decoded value exceeds " + capacity + " characters");
+            }
+            return Arrays.copyOf(scratch.array(), scratch.position());
+        } finally {
+            Arrays.fill(scratch.array(), 0, scratch.position(), '\0');
+        }
+    }
+
+    /**
+     * Zero the used part of a scratch buffer obtained from this codec.
+     *
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer) {
+        wipe(buffer.array(), Math.max(buffer.position(), buffer.limit()));
+        buffer.clear();
+    }
+
+    private static void wipe(byte[] array, int length) {
+        Arrays.fill(array, 0, length, (byte) 0);
+    }
+
+    private static void check(CoderResult result) {
+        if (result.isError() || result.isOverflow()) {
+            try {
+                result.throwException();
+            } catch (CharacterCodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private CharsetEncoder getEncoder() {
+        CharsetEncoder enc = encoder.get();
+        if (enc == null) {
+            enc = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            encoder.set(enc);
+        }
+        return enc;
+    }
+
+    private CharsetDecoder getDecoder() {
+        CharsetDecoder dec = decoder.get();
+        if (dec == null) {
+            dec = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            decoder.set(dec);
+        }
+        return dec;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.util;
+
+import org.apache.tomcat.vault.security.vault.SecurityVault;
+
+/**
+ * Parsed vault reference of the form VAULT::vaultBlock::attributeName, optionally followed by a version, i.e.
+ * "::@2" or "::@latest", and by "::".
+ * <p>
+ * The reference is scanned in place: only offsets of the vault block and attribute name are kept, the
+ * names themselves are not extracted until they are asked for.
+ */
+public final class VaultReference {
+
+    public static final String VAULT_PREFIX = "VAULT::";
+    public static final String CRYPT_PREFIX = "CRYPT::";
+    public static final String CRYPT2_PREFIX = "CRYPT2::";
+    /**
+     * Attribute name referring to all attributes of a vault block, i.e. VAULT::vaultBlock::*
+     */
+    public static final String ALL_ATTRIBUTES = "*";
+    /**
+     * Version referring to the current value, i.e. VAULT::vaultBlock::attributeName::@latest
+     */
+    public static final String LATEST = "latest";
+
+    private static final String SEPARATOR = StringUtil.PROPERTY_DEFAULT_SEPARATOR;
+    private static final String VERSION_PREFIX = SEPARATOR + "@";
+
+    private final String reference;
+    private final int blockEnd;
+    private final int attributeStart;
+    private final int attributeEnd;
+    private final int version;
+
+    private VaultReference(String reference, int blockEnd, int attributeStart, int attributeEnd, int version) {
+        this.reference = reference;
+        this.blockEnd = blockEnd;
+        this.attributeStart = attributeStart;
+        this.attributeEnd = attributeEnd;
+        this.version = version;
+    }
+
+    /**
+     * Check whether given string starts with {@link #VAULT_PREFIX}.
+     *
+     * @param str
+     * @return
+     */
+    public static boolean isVaultReference(String str) {
+        return str.length() > VAULT_PREFIX.length() && str.charAt(0) == 'V'
+                && str.regionMatches(0, VAULT_PREFIX, 0, VAULT_PREFIX.length());
+    }
+
+    /**
+     * Check whether given string starts with {@link #CRYPT_PREFIX}.
+     *
+     * @param str
+     * @return
+     */
+    public static boolean isCryptReference(String str) {
+        return str.length() > CRYPT_PREFIX.length() && str.charAt(0) == 'C'
+                && str.regionMatches(0, CRYPT_PREFIX, 0, CRYPT_PREFIX.length());
+    }
+
+    /**
+     * Check whether given string starts with {@link #CRYPT2_PREFIX}.
+     *
+     * @param str
+     * @return
+     */
+    public static boolean isCrypt2Reference(String str) {
+        return str.length() > CRYPT2_PREFIX.length() && str.charAt(0) == 'C'
+                && str.regionMatches(0, CRYPT2_PREFIX, 0, CRYPT2_PREFIX.length());
+    }
+
+    /**
+     * Parse vault reference. Vault block and attribute name have to be non-empty, the version has to be a positive
+     * number or "latest" and the reference may only be terminated by "::" separators.
+     *
+     * @param reference
+     * @return parsed reference or null if the string is not a valid vault reference
+     */
+    public static VaultReference parse(String reference) {
+        if (reference == null || !isVaultReference(reference)) {
+            return null;
+        }
+        int blockStart = VAULT_PREFIX.length();
+        int blockEnd = reference.indexOf(SEPARATOR, blockStart);
+        if (blockEnd <= blockStart) {
+            return null;
+        }
+        int attributeStart = blockEnd + SEPARATOR.length();
+        int attributeEnd = reference.indexOf(SEPARATOR, attributeStart);
+        if (attributeEnd < 0) {
+            attributeEnd = reference.length();
+        }
+        if (attributeEnd == attributeStart) {
+            return null;
+        }
+        int version = SecurityVault.LATEST_VERSION;
+        int end = attributeEnd;
+        if (reference.startsWith(VERSION_PREFIX, attributeEnd)) {
+            int versionStart = attributeEnd + VERSION_PREFIX.length();
+            end = reference.indexOf(SEPARATOR, versionStart);
+            if (end < 0) {
+                end = reference.length();
+            }
+            version = parseVersion(reference, versionStart, end);
+            if (version < 0) {
+                return null;
+            }
+        }
+        if (!onlySeparators(reference, end)) {
+            return null;
+        }
+        return new VaultReference(reference, blockEnd, attributeStart, attributeEnd, version);
+    }
+
+    /**
+     * @return version number, -1 if invalid
+     */
+    private static int parseVersion(String str, int from, int to) {
+        if (to - from == LATEST.length() && str.regionMatches(from, LATEST, 0, LATEST.length())) {
+            return SecurityVault.LATEST_VERSION;
+        }
+        // at most 9 digits, so the number cannot overflow
+        if (to == from || to - from > 9) {
+            return -1;
+        }
+        int version = 0;
+        for (int i = from; i < to; i++) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            version = version * 10 + (c - '0');
+        }
+        return version == 0 ? -1 : version;
+    }
+
+    private static boolean onlySeparators(String str, int from) {
+        if ((str.length() - from) % SEPARATOR.length() != 0) {
+            return false;
+        }
+        for (int i = from; i < str.length(); i++) {
+            if (str.charAt(i) != ':') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getReference() {
+        return reference;
+    }
+
+    public String getVaultBlock() {
+        return reference.substring(VAULT_PREFIX.length(), blockEnd);
+    }
+
+    public String getAttributeName() {
+        return reference.substring(attributeStart, attributeEnd);
+    }
+
+    /**
+     * @return referenced version, {@link SecurityVault#LATEST_VERSION} if there is none or it is "latest"
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Check whether this reference denotes all attributes of the vault block.
+     *
+     * @return
+     */
+    public boolean isBlockReference() {
+        return attributeEnd - attributeStart == 1 && reference.charAt(attributeStart) == '*';
+    }
+
+    @Override
+    public String toString() {
+        return reference;
+    }
+}
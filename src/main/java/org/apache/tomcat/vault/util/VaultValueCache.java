@@ -0,0 +1,177 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.apache.tomcat.vault.util;
+
+import org.apache.tomcat.vault.security.vault.SecurityVaultListener;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of decrypted vault values keyed by the property reference (e.g. VAULT::block::attribute::).
+ * Least recently used entries are evicted once the maximum entry count is reached. Cached values are
+ * wiped when they are evicted, expire or get invalidated.
+ */
+public class VaultValueCache implements SecurityVaultListener {
+
+    private final int maxEntries;
+    private final long timeToLive;
+
+    // guarded by this
+    private final LinkedHashMap<String, CacheEntry> entries;
+    private long invalidations;
+
+    /**
+     * @param maxEntries maximum number of cached values, has to be positive
+     * @param timeToLive time to live of cached values in milliseconds, 0 means no expiration
+     */
+    public VaultValueCache(int maxEntries, long timeToLive) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries has to be positive, but is " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                if (size() > VaultValueCache.this.maxEntries) {
+                    eldest.getValue().wipe();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get cached value for given reference.
+     *
+     * @param reference
+     * @return cached value or null if there is no such (unexpired) entry
+     */
+    public synchronized String get(String reference) {
+        CacheEntry entry = entries.get(reference);
+        if (entry == null) {
+            return null;
+        }
+        if (timeToLive > 0 && System.currentTimeMillis() - entry.created >= timeToLive) {
+            entries.remove(reference);
+            entry.wipe();
+            return null;
+        }
+        return new String(entry.value);
+    }
+
+    /**
+     * Returns stamp to be passed to {@link #put(long, String, String, String, char[])}. Values obtained
+     * before an invalidation are not cached, so concurrent store or remove never leaves a stale entry behind.
+     *
+     * @return
+     */
+    public synchronized long stamp() {
+        return invalidations;
+    }
+
+    /**
+     * Cache a value. The cache takes ownership of the value array and wipes it on eviction.
+     *
+     * @param stamp         value of {@link #stamp()} taken before the value has been retrieved
+     * @param reference
+     * @param vaultBlock    vault block of the value, null if the value does not come from the vault
+     * @param attributeName attribute name of the value, null if the value does not come from the vault
+     * @param value
+     */
+    public synchronized void put(long stamp, String reference, String vaultBlock, String attributeName, char[] value) {
+        if (stamp != invalidations) {
+            Arrays.fill(value, '\0');
+            return;
+        }
+        CacheEntry previous = entries.put(reference, new CacheEntry(vaultBlock, attributeName, value));
+        if (previous != null && previous.value != value) {
+            previous.wipe();
+        }
+    }
+
+    /**
+     * Remove all entries resolved from given vault block and attribute name.
+     *
+     * @param vaultBlock
+     * @param attributeName
+     */
+    public synchronized void invalidate(String vaultBlock, String attributeName) {
+        invalidations++;
+        Iterator<CacheEntry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            CacheEntry entry = it.next();
+            if (vaultBlock.equals(entry.vaultBlock) && attributeName.equals(entry.attributeName)) {
+                it.remove();
+                entry.wipe();
+            }
+        }
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public synchronized void clear() {
+        invalidations++;
+        for (CacheEntry entry : entries.values()) {
+            entry.wipe();
+        }
+        entries.clear();
+    }
+
+    /**
+     * Get number of cached values.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void vaultEntryChanged(String vaultBlock, String attributeName) {
+        invalidate(vaultBlock, attributeName);
+    }
+
+    private static class CacheEntry {
+        final String vaultBlock;
+        final String attributeName;
+        final char[] value;
+        final long created;
+
+        CacheEntry(String vaultBlock, String attributeName, char[] value) {
+            this.vaultBlock = vaultBlock;
+            this.attributeName = attributeName;
+            this.value = value;
+            this.created = System.currentTimeMillis();
+        }
+
+        void wipe() {
+            Arrays.fill(value, '\0');
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package unit.org.apache.tomcat.vault;
+
+import org.apache.tomcat.vault.VaultSession;
+import org.apache.tomcat.vault.security.vault.SecurityVaultException;
+import org.apache.tomcat.vault.security.vault.VaultEntry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import unit.org.apache.tomcat.vault.security.vault.VaultFixture;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class JsonLinesTest {
+
+    private static final String JSON_LINES = "org.apache.tomcat.vault.JsonLines";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private VaultFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new VaultFixture(folder.getRoot());
+    }
+
+    @Test
+    public void testEscapes() throws Exception {
+        VaultEntry entry = parse("{\"block\":\"vb\",\"attribute\":\"a\\\"b\\\\c\\/\",\"value\":\"\\u0041\\n\\t\\u2028\\u00e9x\"}", 1);
+        assertEquals("a\"b\\c/", entry.getAttributeName());
+        assertEquals("A\n\t\u2028\u00e9x", new String(entry.getValue()));
+
+        String line = write(VaultEntry.plain("vb", "a\"b\\c", "q\"\\\n\u0001\u2028\u2029\u00e9".toCharArray()));
+        assertEquals("{\"block\":\"vb\",\"attribute\":\"a\\\"b\\\\c\",\"value\":\"q\\\"\\\\\\u000a\\u0001\\u2028\\u2029\u00e9\"}\n", line);
+        // line separators are escaped, a line never breaks in editors or JavaScript
+        assertEquals(-1, line.indexOf('\u2028'));
+        assertEquals(-1, line.indexOf('\u2029'));
+    }
+
+    @Test
+    public void testDuplicateMember() throws Exception {
+        String line = "{\"block\":\"vb\",\"attribute\":\"a\",\"block\":\"other\",\"value\":\"v\"}";
+        assertError(line, 3, line.lastIndexOf("\"block\"") + 1, "duplicate member \"block\"");
+    }
+
+    @Test
+    public void testErrorPosition() throws Exception {
+        String line = "{\"block\":\"vb\" \"attribute\":\"a\",\"value\":\"v\"}";
+        assertError(line, 7, line.indexOf(" \"attribute") + 2, "',' expected");
+        line = "{\"block\":\"vb\",\"attribute\":\"a\",\"value\":\"v\\x\"}";
+        assertError(line, 1, line.indexOf("\\x") + 1, "invalid escape");
+        line = "{\"block\":\"vb\",\"attribute\":\"a\",\"value\":\"\\u12G4\"}";
+        assertError(line, 1, line.indexOf("\\u") + 1, "invalid unicode escape");
+        line = "{\"block\":\"vb\",\"attribute\":\"a\",\"value\":\"v";
+        assertError(line, 2, line.length() + 1, "unterminated string");
+        line = "{\"block\":\"vb\",\"attribute\":\"a\",\"value\":\"v\"} x";
+        assertError(line, 4, line.length(), "unexpected content after the object");
+        // a missing value is reported for the line only
+        assertError("{\"block\":\"vb\",\"attribute\":\"a\"}", 5, 0, "exactly one of \"value\" and \"encrypted\" expected");
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        VaultEntry plain = VaultEntry.plain("my::block", "db password", " p@ss {\"x\"}: ".toCharArray());
+        VaultEntry parsed = parse(write(plain).trim(), 1);
+        assertEquals(plain.getVaultBlock(), parsed.getVaultBlock());
+        assertEquals(plain.getAttributeName(), parsed.getAttributeName());
+        assertFalse(parsed.isEncrypted());
+        assertArrayEquals(plain.getValue(), parsed.getValue());
+
+        byte[] value = new byte[256];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        VaultEntry encrypted = VaultEntry.encrypted("vb", "token", value);
+        parsed = parse(write(encrypted).trim(), 1);
+        assertTrue(parsed.isEncrypted());
+        assertArrayEquals(value, parsed.getEncryptedValue());
+    }
+
+    @Test
+    public void testImportKeepsEntriesBeforeInvalidLine() throws Exception {
+        VaultSession session = startSession();
+        String input = "{\"block\":\"vb\",\"attribute\":\"user\",\"value\":\"tomcat\"}\n"
+                + "\n"
+                + "{\"block\":\"vb\",\"attribute\":\"password\",\"value\":\"p@ss\"}\n"
+                + "{\"block\":\"vb\",\"attribute\":\"url\",\"value\":\"jdbc\n";
+        try {
+            session.importSecuredAttributes(new StringReader(input));
+            fail("invalid line imported");
+        } catch (SecurityVaultException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith("Stored [2] entries before the failure: Line 4, "));
+            assertTrue(expected.getCause() instanceof IllegalArgumentException);
+            assertTrue(expected.getCause().getMessage().startsWith("Line 4, "));
+        }
+
+        assertTrue(session.checkSecuredAttribute("vb", "user"));
+        assertTrue(session.checkSecuredAttribute("vb", "password"));
+        assertFalse(session.checkSecuredAttribute("vb", "url"));
+        // the stored entries are written, not only kept in memory
+        VaultSession reopened = startSession();
+        assertTrue(reopened.checkSecuredAttribute("vb", "password"));
+    }
+
+    @Test
+    public void testRawExportReimports() throws Exception {
+        VaultSession session = startSession();
+        session.addSecuredAttribute("vb", "user", "tomcat".toCharArray());
+        session.addSecuredAttribute("other", "password", "p@ss".toCharArray());
+
+        StringWriter raw = new StringWriter();
+        assertEquals(2, session.exportSecuredAttributes(raw, true));
+        assertFalse(raw.toString().contains("tomcat"));
+        session.removeSecuredAttribute("vb", "user");
+        session.removeSecuredAttribute("other", "password");
+
+        assertEquals(2, session.importSecuredAttributes(new StringReader(raw.toString())));
+        StringWriter plain = new StringWriter();
+        startSession().exportSecuredAttributes(plain, false);
+        String[] lines = plain.toString().split("\n");
+        Arrays.sort(lines);
+        assertArrayEquals(new String[]{
+                "{\"block\":\"other\",\"attribute\":\"password\",\"value\":\"p@ss\"}",
+                "{\"block\":\"vb\",\"attribute\":\"user\",\"value\":\"tomcat\"}"}, lines);
+    }
+
+    private VaultSession startSession() throws Exception {
+        VaultSession session = new VaultSession(fixture.getKeyStoreFile().getPath(), VaultFixture.PASSWORD,
+                folder.getRoot().getPath() + File.separator, VaultFixture.SALT, VaultFixture.ITERATION_COUNT);
+        session.startVaultSession(VaultFixture.ALIAS);
+        return session;
+    }
+
+    private static void assertError(String line, int lineNumber, int column, String message) throws Exception {
+        try {
+            parse(line, lineNumber);
+            fail("parsed " + line);
+        } catch (IllegalArgumentException e) {
+            assertEquals("Line " + lineNumber + (column > 0 ? ", column " + column : "") + ": " + message, e.getMessage());
+        }
+    }
+
+    private static VaultEntry parse(String line, int lineNumber) throws Exception {
+        Method method = Class.forName(JSON_LINES).getDeclaredMethod("parseEntry", String.class, int.class);
+        method.setAccessible(true);
+        try {
+            return (VaultEntry) method.invoke(null, line, lineNumber);
+        } catch (InvocationTargetException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private static String write(VaultEntry entry) throws Exception {
+        Method method = Class.forName(JSON_LINES).getDeclaredMethod("writeEntry", Writer.class, VaultEntry.class);
+        method.setAccessible(true);
+        StringWriter out = new StringWriter();
+        method.invoke(null, out, entry);
+        return out.toString();
+    }
+}
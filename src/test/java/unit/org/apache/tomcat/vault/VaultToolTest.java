@@ -2,20 +2,39 @@ package unit.org.apache.tomcat.vault;
 
 import org.apache.commons.cli.*;
 import org.apache.tomcat.vault.VaultTool;
+import org.apache.tomcat.vault.VaultSession;
 import org.apache.tomcat.vault.exception.VaultException;
+import org.apache.tomcat.vault.security.vault.SecurityVaultException;
+import org.apache.tomcat.vault.util.Crypt2Encryptor;
+import org.apache.tomcat.vault.util.VaultReference;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
+import unit.org.apache.tomcat.vault.security.vault.VaultFixture;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.PrintStream;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import static org.junit.Assert.*;
 
 @RunWith(MockitoJUnitRunner.class)
 public class VaultToolTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     // Helper method to access private fields using reflection
     private Object getPrivateField(Object instance) throws NoSuchFieldException, IllegalAccessException {
         Field field = instance.getClass().getDeclaredField("cmdLine");
@@ -42,6 +61,32 @@ public class VaultToolTest {
         assertEquals("secure-value", cmdLine.getOptionValue("x"));
     }
 
+    // Test: Repeated vault options are parsed as KEY=VALUE pairs
+    @Test
+    public void testVaultOptions() throws NoSuchFieldException, IllegalAccessException {
+        String[] args = {"-k", "keystore.jks", "-o", "JOURNAL=true", "--vault-option", "JOURNAL_COMPACT_SIZE=4096", "-x", "secure-value"};
+        VaultTool vaultTool = new VaultTool(args);
+
+        CommandLine cmdLine = (CommandLine) getPrivateField(vaultTool);
+
+        assertEquals("true", cmdLine.getOptionProperties("o").getProperty("JOURNAL"));
+        assertEquals("4096", cmdLine.getOptionProperties("o").getProperty("JOURNAL_COMPACT_SIZE"));
+        assertEquals("secure-value", cmdLine.getOptionValue("x"));
+    }
+
+    // Test: Export with raw values is parsed, "-" stands for standard output
+    @Test
+    public void testExportOptions() throws NoSuchFieldException, IllegalAccessException {
+        String[] args = {"-k", "keystore.jks", "--export", "-", "--raw"};
+        VaultTool vaultTool = new VaultTool(args);
+
+        CommandLine cmdLine = (CommandLine) getPrivateField(vaultTool);
+
+        assertEquals("-", cmdLine.getOptionValue("export"));
+        assertTrue(cmdLine.hasOption("raw"));
+        assertFalse(cmdLine.hasOption("import"));
+    }
+
     // Test: Missing required argument throws the correct error
     @Test
     public void testMissingArgument() {
@@ -78,6 +123,88 @@ public class VaultToolTest {
         }
     }
 
+    // Test: CRYPT2 values of separate invocations share the salt and thus the derived key
+    @Test
+    public void testCrypt2ValuesShareDerivedKey() throws Exception {
+        List<String> encrypted = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            encrypted.add(encrypt2("--encrypt2", "--crypt2-iterations", "1000", "MyEncryptionPassword", "MyPassword" + i));
+        }
+
+        Crypt2Encryptor encryptor = new Crypt2Encryptor("MyEncryptionPassword");
+        for (int i = 0; i < encrypted.size(); i++) {
+            assertEquals("MyPassword" + i, encryptor.decrypt(encrypted.get(i)));
+        }
+        assertEquals(1, derivedKeyCount(encryptor));
+
+        // the salt masking the keystore password is not used, a CRYPT2 salt of its own is
+        Crypt2Encryptor other = new Crypt2Encryptor("MyEncryptionPassword");
+        other.decrypt(encrypt2("--encrypt2", "--crypt2-iterations", "1000", "-s", "1234abcd", "MyEncryptionPassword", "MyPassword"));
+        other.decrypt(encrypted.get(0));
+        assertEquals(1, derivedKeyCount(other));
+        other.decrypt(encrypt2("--encrypt2", "--crypt2-iterations", "1000", "--crypt2-salt", "1234abcd", "MyEncryptionPassword", "MyPassword"));
+        assertEquals(2, derivedKeyCount(other));
+    }
+
+    /**
+     * @return encrypted value without the CRYPT2:: prefix printed by the vault tool
+     */
+    private static String encrypt2(String... args) throws Exception {
+        VaultTool vaultTool = new VaultTool(args);
+        Method execute = VaultTool.class.getDeclaredMethod("execute");
+        execute.setAccessible(true);
+        PrintStream out = System.out;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(output, true, "UTF-8"));
+        try {
+            assertEquals(0, execute.invoke(vaultTool));
+        } finally {
+            System.setOut(out);
+        }
+        String printed = output.toString("UTF-8").trim();
+        String prefix = "Encrypted value: " + VaultReference.CRYPT2_PREFIX;
+        assertTrue(printed, printed.startsWith(prefix));
+        return printed.substring(prefix.length());
+    }
+
+    private static int derivedKeyCount(Crypt2Encryptor encryptor) throws Exception {
+        Field derivedKeys = Crypt2Encryptor.class.getDeclaredField("derivedKeys");
+        derivedKeys.setAccessible(true);
+        return ((Map<?, ?>) derivedKeys.get(encryptor)).size();
+    }
+
+    // Test: An import stopped by an invalid line keeps the lines before it and tells how many were stored
+    @Test
+    public void testImportWithInvalidLine() throws Exception {
+        VaultFixture fixture = new VaultFixture(folder.getRoot());
+        File input = folder.newFile("attributes.jsonl");
+        Files.write(input.toPath(), Arrays.asList(
+                "{\"block\":\"vb\",\"attribute\":\"user\",\"value\":\"tomcat\"}",
+                "{\"block\":\"vb\",\"attribute\":\"password\",\"value\":\"p@ss\"}",
+                "{\"block\":\"vb\",\"attribute\":\"url\" \"value\":\"jdbc\"}",
+                "{\"block\":\"vb\",\"attribute\":\"driver\",\"value\":\"h2\"}"), StandardCharsets.UTF_8);
+
+        VaultTool vaultTool = new VaultTool(new String[]{"--keystore", fixture.getKeyStoreFile().getPath(),
+                "--keystore-password", VaultFixture.PASSWORD, "--alias", VaultFixture.ALIAS,
+                "--enc-dir", folder.getRoot().getPath() + File.separator, "--salt", VaultFixture.SALT,
+                "--iteration", String.valueOf(VaultFixture.ITERATION_COUNT), "--import", input.getPath()});
+        Method execute = VaultTool.class.getDeclaredMethod("execute");
+        execute.setAccessible(true);
+        try {
+            execute.invoke(vaultTool);
+            fail("invalid line imported");
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof SecurityVaultException);
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().startsWith("Stored [2] entries before the failure: Line 3, "));
+            assertEquals(0, e.getCause().getCause().getSuppressed().length);
+        }
+
+        VaultSession session = new VaultSession(fixture.getKeyStoreFile().getPath(), VaultFixture.PASSWORD,
+                folder.getRoot().getPath() + File.separator, VaultFixture.SALT, VaultFixture.ITERATION_COUNT);
+        session.startVaultSession(VaultFixture.ALIAS);
+        assertEquals("[password, user]", session.listSecuredAttributes("vb").toString());
+    }
+
     // Test: Help option works without errors
     @Test
     public void testHelpOption() throws NoSuchFieldException, IllegalAccessException, VaultException {
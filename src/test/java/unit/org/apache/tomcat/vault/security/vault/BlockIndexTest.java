@@ -0,0 +1,115 @@
+package unit.org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Vault blocks containing the separator, as split by the block index and the stored layouts.
+ */
+public class BlockIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private VaultFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new VaultFixture(folder.getRoot());
+    }
+
+    @Test
+    public void testSplitBlock() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open();
+        store(vault);
+        assertSplit(vault);
+
+        // "a::b" and "c" is the same entry as "a" and "b::c"
+        vault.store("a", "b::c", "changed".toCharArray(), null);
+        assertEquals("changed", new String(vault.retrieve("a::b", "c", null)));
+        assertTrue(vault.remove("a::b", "c", null));
+        assertFalse(vault.exists("a", "b::c"));
+        assertFalse(vault.retrieveBlock("a::b").containsKey("c"));
+        assertFalse(vault.retrieveBlock("a").containsKey("b::c"));
+    }
+
+    @Test
+    public void testSplitBlockEagerDecrypt() throws Exception {
+        store(fixture.open());
+        assertSplit(fixture.open(PicketBoxSecurityVault.EAGER_DECRYPT, "true"));
+    }
+
+    @Test
+    public void testSplitBlockStoredLayouts() throws Exception {
+        for (String codec : new String[]{"binary", "mapped", "sharded", "compressed"}) {
+            store(fixture.open(PicketBoxSecurityVault.VAULT_CODEC, codec));
+            // read back from the file, mapped and sharded data are read on demand
+            PicketBoxSecurityVault vault = fixture.open(PicketBoxSecurityVault.VAULT_CODEC, codec);
+            assertSplit(vault);
+
+            // changes on top of the stored data
+            vault.store("a::b", "g", "7".toCharArray(), null);
+            vault.remove("a", "b::d", null);
+            Map<String, String> block = values(vault.retrieveBlock("a::b"));
+            assertEquals(codec, "7", block.get("g"));
+            assertFalse(codec, block.containsKey("d"));
+            vault.remove("a::b", "g", null);
+        }
+    }
+
+    private static void store(PicketBoxSecurityVault vault) throws SecurityVaultException {
+        vault.store("a::b", "c", "1".toCharArray(), null);
+        vault.store("a", "b::d", "2".toCharArray(), null);
+        vault.store("a", "x", "3".toCharArray(), null);
+        vault.store("a::b::e", "f", "4".toCharArray(), null);
+        vault.store("a::bb", "c", "5".toCharArray(), null);
+        vault.store("other", "c", "6".toCharArray(), null);
+    }
+
+    private static void assertSplit(PicketBoxSecurityVault vault) throws SecurityVaultException {
+        assertEquals("1", new String(vault.retrieve("a::b", "c", null)));
+        assertEquals("1", new String(vault.retrieve("a", "b::c", null)));
+        assertEquals("2", new String(vault.retrieve("a::b", "d", null)));
+        assertEquals("4", new String(vault.retrieve("a::b", "e::f", null)));
+        assertEquals("4", new String(vault.retrieve("a::b::e", "f", null)));
+        assertEquals("5", new String(vault.retrieve("a", "bb::c", null)));
+        assertFalse(vault.exists("a::missing", "c"));
+
+        Map<String, String> expected = new TreeMap<String, String>();
+        expected.put("c", "1");
+        expected.put("d", "2");
+        expected.put("e::f", "4");
+        assertEquals(expected, values(vault.retrieveBlock("a::b")));
+
+        expected.clear();
+        expected.put("f", "4");
+        assertEquals(expected, values(vault.retrieveBlock("a::b::e")));
+
+        expected.clear();
+        expected.put("b::c", "1");
+        expected.put("b::d", "2");
+        expected.put("x", "3");
+        expected.put("b::e::f", "4");
+        expected.put("bb::c", "5");
+        assertEquals(expected, values(vault.retrieveBlock("a")));
+
+        assertTrue(vault.retrieveBlock("a::missing").isEmpty());
+    }
+
+    private static Map<String, String> values(Map<String, char[]> block) {
+        Map<String, String> values = new TreeMap<String, String>();
+        for (Map.Entry<String, char[]> entry : block.entrySet()) {
+            values.put(entry.getKey(), new String(entry.getValue()));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,118 @@
+package unit.org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultException;
+import org.apache.tomcat.vault.security.vault.VaultEntry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompressedVaultDataTest {
+
+    // values of several chunks
+    private static final int ENTRY_COUNT = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private VaultFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new VaultFixture(folder.getRoot());
+    }
+
+    private PicketBoxSecurityVault open() throws SecurityVaultException {
+        return fixture.open(PicketBoxSecurityVault.COMPRESSED, "true");
+    }
+
+    private static String value(int i) {
+        char[] value = new char[100];
+        Arrays.fill(value, (char) ('a' + i % 26));
+        return i + new String(value);
+    }
+
+    private void storeEntries() throws SecurityVaultException {
+        List<VaultEntry> entries = new ArrayList<VaultEntry>();
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            entries.add(VaultEntry.plain("vb" + i % 10, "a" + i, value(i).toCharArray()));
+        }
+        open().storeAll(entries.iterator(), null);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        storeEntries();
+        PicketBoxSecurityVault vault = open();
+        vault.store("split::block", "password", "p@ss".toCharArray(), null);
+
+        DataInputStream in = new DataInputStream(new FileInputStream(fixture.file("VAULT.dat")));
+        try {
+            assertEquals(0x54564c54, in.readInt());
+            assertEquals(5, in.readInt());
+        } finally {
+            in.close();
+        }
+
+        vault = open();
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            assertEquals(value(i), new String(vault.retrieve("vb" + i % 10, "a" + i, null)));
+        }
+        assertEquals("p@ss", new String(vault.retrieve("split::block", "password", null)));
+        assertEquals(1, vault.retrieveBlock("split::block").size());
+        assertEquals(ENTRY_COUNT + 1, vault.keyList().size());
+        assertFalse(fixture.file("VAULT.dat.damaged").exists());
+
+        // read by the codec recognizing the file, written back in the configured layout
+        vault = fixture.open();
+        assertEquals(value(7), new String(vault.retrieve("vb7", "a7", null)));
+    }
+
+    @Test
+    public void testDamagedChunk() throws Exception {
+        storeEntries();
+        // chunks follow the directory, flip a byte of the last one
+        PicketBoxSecurityVaultTest.flipByte(fixture.file("VAULT.dat"), fixture.file("VAULT.dat").length() - 1);
+
+        PicketBoxSecurityVault vault = open();
+        assertTrue(fixture.file("VAULT.dat.damaged").exists());
+        int damaged = 0;
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            try {
+                assertEquals(value(i), new String(vault.retrieve("vb" + i % 10, "a" + i, null)));
+            } catch (SecurityVaultException e) {
+                // reported as damaged, not as missing
+                assertTrue(e.getMessage(), e.getMessage().contains("VAULT.dat.damaged"));
+                assertFalse(vault.exists("vb" + i % 10, "a" + i));
+                damaged++;
+            }
+        }
+        assertTrue(damaged > 0);
+        assertTrue(damaged < ENTRY_COUNT / 2);
+        assertEquals(ENTRY_COUNT - damaged, vault.keyList().size());
+        try {
+            vault.retrieve("vb0", "missing", null);
+            fail("missing attribute retrieved");
+        } catch (SecurityVaultException e) {
+            assertFalse(e.getMessage().contains("VAULT.dat.damaged"));
+        }
+    }
+
+    @Test(expected = SecurityVaultException.class)
+    public void testDamagedDirectory() throws Exception {
+        storeEntries();
+        // within the compressed directory, right after the fixed header
+        PicketBoxSecurityVaultTest.flipByte(fixture.file("VAULT.dat"), 30);
+
+        open();
+    }
+}
@@ -0,0 +1,116 @@
+package unit.org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MappedVaultDataTest {
+
+    private static final int ENTRY_COUNT = 500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private VaultFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new VaultFixture(folder.getRoot());
+    }
+
+    @Test
+    public void testProbeHitsAndMisses() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open(PicketBoxSecurityVault.MEMORY_MAPPED, "true");
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            vault.store("vb" + (i % 7), "a" + i, ("v" + i).toCharArray(), null);
+        }
+        // "Aa" and "BB" have the same hash code, so these attributes share a hash and probe past each other
+        vault.store("vb", "AaAa", "first".toCharArray(), null);
+        vault.store("vb", "BBBB", "second".toCharArray(), null);
+
+        vault = fixture.open(PicketBoxSecurityVault.MEMORY_MAPPED, "true");
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            assertEquals("v" + i, new String(vault.retrieve("vb" + (i % 7), "a" + i, null)));
+        }
+        assertEquals("first", new String(vault.retrieve("vb", "AaAa", null)));
+        assertEquals("second", new String(vault.retrieve("vb", "BBBB", null)));
+
+        assertFalse(vault.exists("vb", "AaBB"));
+        assertFalse(vault.exists("vb", "BBAa"));
+        assertFalse(vault.exists("vb0", "a1"));
+        assertFalse(vault.exists("vb1", "a" + ENTRY_COUNT));
+        assertFalse(vault.exists("missing", "a0"));
+        assertEquals(ENTRY_COUNT + 2, vault.keyList().size());
+    }
+
+    @Test
+    public void testRemovedOverlay() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open(PicketBoxSecurityVault.MEMORY_MAPPED, "true");
+        vault.store("vb", "user", "tomcat".toCharArray(), null);
+        vault.store("vb", "password", "p@ss".toCharArray(), null);
+
+        // journaled changes are kept over the mapped file until the journal is compacted
+        vault = fixture.open(PicketBoxSecurityVault.MEMORY_MAPPED, "true", PicketBoxSecurityVault.JOURNAL, "true");
+        assertTrue(vault.remove("vb", "password", null));
+        vault.store("vb", "user", "admin".toCharArray(), null);
+        assertOverlay(vault);
+
+        vault = fixture.open(PicketBoxSecurityVault.MEMORY_MAPPED, "true", PicketBoxSecurityVault.JOURNAL, "true");
+        assertOverlay(vault);
+
+        vault.store("vb", "password", "n3w".toCharArray(), null);
+        assertEquals("n3w", new String(vault.retrieve("vb", "password", null)));
+        assertEquals(2, vault.retrieveBlock("vb").size());
+    }
+
+    private static void assertOverlay(PicketBoxSecurityVault vault) throws Exception {
+        assertFalse(vault.exists("vb", "password"));
+        try {
+            vault.retrieve("vb", "password", null);
+            fail("removed attribute retrieved");
+        } catch (SecurityVaultException expected) {
+        }
+        assertEquals("admin", new String(vault.retrieve("vb", "user", null)));
+        Map<String, char[]> block = vault.retrieveBlock("vb");
+        assertEquals(1, block.size());
+        assertEquals("admin", new String(block.get("user")));
+        assertFalse(vault.keyList().contains("vb::password"));
+    }
+
+    @Test
+    public void testDamagedRecordFailsAlone() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open(PicketBoxSecurityVault.MEMORY_MAPPED, "true");
+        for (int i = 0; i < 20; i++) {
+            vault.store("vb", "a" + i, ("v" + i).toCharArray(), null);
+        }
+        // flip the last byte of the value in the last record
+        PicketBoxSecurityVaultTest.flipByte(fixture.file("VAULT.dat"), fixture.file("VAULT.dat").length() - 5);
+
+        vault = fixture.open(PicketBoxSecurityVault.MEMORY_MAPPED, "true");
+        int failures = 0;
+        for (int i = 0; i < 20; i++) {
+            try {
+                assertEquals("v" + i, new String(vault.retrieve("vb", "a" + i, null)));
+            } catch (SecurityVaultException e) {
+                failures++;
+            }
+        }
+        assertEquals(1, failures);
+    }
+
+    @Test(expected = SecurityVaultException.class)
+    public void testDamagedHeader() throws Exception {
+        fixture.open(PicketBoxSecurityVault.MEMORY_MAPPED, "true").store("vb", "password", "p@ss".toCharArray(), null);
+        // covered by the header checksum
+        PicketBoxSecurityVaultTest.flipByte(fixture.file("VAULT.dat"), 12);
+
+        fixture.open(PicketBoxSecurityVault.MEMORY_MAPPED, "true");
+    }
+}
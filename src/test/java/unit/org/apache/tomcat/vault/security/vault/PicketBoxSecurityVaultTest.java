@@ -0,0 +1,321 @@
+package unit.org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultException;
+import org.apache.tomcat.vault.security.vault.VaultEntry;
+import org.apache.tomcat.vault.security.vault.VaultRef;
+import org.apache.tomcat.vault.security.vault.VaultRetrievalResult;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PicketBoxSecurityVaultTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private VaultFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new VaultFixture(folder.getRoot());
+    }
+
+    @Test
+    public void testRetrieveAllMissing() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open();
+        vault.store("vb", "user", "tomcat".toCharArray(), null);
+        vault.store("vb", "password", "p@ss".toCharArray(), null);
+
+        List<VaultRef> refs = new ArrayList<VaultRef>();
+        refs.add(new VaultRef("vb", "user"));
+        refs.add(new VaultRef("vb", "password"));
+        refs.add(new VaultRef("vb", "missing"));
+        refs.add(new VaultRef("other", "user"));
+        VaultRetrievalResult result = vault.retrieveAll(refs, null);
+
+        assertEquals("tomcat", new String(result.get(new VaultRef("vb", "user"))));
+        assertEquals("p@ss", new String(result.get(new VaultRef("vb", "password"))));
+        assertEquals(2, result.getMissing().size());
+        assertTrue(result.getMissing().contains(new VaultRef("vb", "missing")));
+        assertTrue(result.getFailures().isEmpty());
+        assertFalse(result.isComplete());
+    }
+
+    @Test
+    public void testRetrieveAllParallel() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open();
+        List<VaultRef> refs = new ArrayList<VaultRef>();
+        for (int i = 0; i < 100; i++) {
+            vault.store("bulk", "a" + i, ("v" + i).toCharArray(), null);
+            refs.add(new VaultRef("bulk", "a" + i));
+        }
+
+        VaultRetrievalResult result = vault.retrieveAll(refs, null);
+
+        assertTrue(result.isComplete());
+        assertEquals(100, result.getValues().size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("v" + i, new String(result.get(new VaultRef("bulk", "a" + i))));
+        }
+    }
+
+    @Test
+    public void testRetrieveAllFailures() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open();
+        List<VaultRef> refs = new ArrayList<VaultRef>();
+        for (int i = 0; i < 40; i++) {
+            vault.store("old", "a" + i, ("v" + i).toCharArray(), null);
+            refs.add(new VaultRef("old", "a" + i));
+        }
+        // values of the old key mostly fail to decrypt with the new one, a few decrypt to garbage
+        fixture.replaceKey();
+        vault = fixture.open();
+        List<VaultRef> undecryptable = new ArrayList<VaultRef>();
+        for (VaultRef ref : refs) {
+            try {
+                vault.retrieve(ref.getVaultBlock(), ref.getAttributeName(), null);
+            } catch (SecurityVaultException e) {
+                undecryptable.add(ref);
+            }
+        }
+        assertFalse(undecryptable.isEmpty());
+
+        vault.store("new", "user", "tomcat".toCharArray(), null);
+        refs.add(new VaultRef("new", "user"));
+        VaultRetrievalResult result = vault.retrieveAll(refs, null);
+
+        assertEquals("tomcat", new String(result.get(new VaultRef("new", "user"))));
+        assertTrue(result.getMissing().isEmpty());
+        assertEquals(undecryptable.size(), result.getFailures().size());
+        for (VaultRef ref : undecryptable) {
+            assertNotNull(result.getFailures().get(ref));
+            assertNull(result.get(ref));
+        }
+        assertEquals(refs.size(), result.getValues().size() + result.getFailures().size());
+    }
+
+    @Test
+    public void testRetrieveAllEagerDecrypt() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open();
+        vault.store("vb", "password", "p@ss".toCharArray(), null);
+        vault = fixture.open(PicketBoxSecurityVault.EAGER_DECRYPT, "true");
+
+        List<VaultRef> refs = new ArrayList<VaultRef>();
+        refs.add(new VaultRef("vb", "password"));
+        refs.add(new VaultRef("vb", "missing"));
+        VaultRetrievalResult result = vault.retrieveAll(refs, null);
+        char[] value = result.get(new VaultRef("vb", "password"));
+        assertEquals("p@ss", new String(value));
+        assertTrue(result.getMissing().contains(new VaultRef("vb", "missing")));
+
+        // the caller owns the returned value
+        value[0] = 'x';
+        assertEquals("p@ss", new String(vault.retrieveAll(refs, null).get(new VaultRef("vb", "password"))));
+    }
+
+    @Test
+    public void testEagerDecryptFailure() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open();
+        for (int i = 0; i < 40; i++) {
+            vault.store("vb", "a" + i, ("v" + i).toCharArray(), null);
+        }
+        fixture.replaceKey();
+
+        // a few values may decrypt to garbage, at least one of 40 does not decrypt
+        try {
+            fixture.open(PicketBoxSecurityVault.EAGER_DECRYPT, "true");
+            fail("undecryptable entry");
+        } catch (SecurityVaultException expected) {
+        }
+        // lookups without EAGER_DECRYPT only fail for the affected entries
+        assertTrue(fixture.open().isInitialized());
+    }
+
+    @Test
+    public void testEagerDecryptStoreAndRemove() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open(PicketBoxSecurityVault.EAGER_DECRYPT, "true");
+        vault.store("vb", "password", "p@ss".toCharArray(), null);
+        vault.store("vb", "user", "tomcat".toCharArray(), null);
+        assertEquals("p@ss", new String(vault.retrieve("vb", "password", null)));
+
+        vault.store("vb", "password", "changed".toCharArray(), null);
+        assertEquals("changed", new String(vault.retrieve("vb", "password", null)));
+        assertEquals(2, vault.retrieveBlock("vb").size());
+
+        assertTrue(vault.remove("vb", "password", null));
+        try {
+            vault.retrieve("vb", "password", null);
+            fail("removed entry");
+        } catch (SecurityVaultException expected) {
+        }
+        assertEquals(1, vault.retrieveBlock("vb").size());
+
+        // the decrypted content matches what was written
+        vault = fixture.open(PicketBoxSecurityVault.EAGER_DECRYPT, "true");
+        assertFalse(vault.exists("vb", "password"));
+        assertEquals("tomcat", new String(vault.retrieve("vb", "user", null)));
+    }
+
+    @Test
+    public void testEagerDecryptReturnsCopies() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open(PicketBoxSecurityVault.EAGER_DECRYPT, "true");
+        vault.store("vb", "password", "p@ss".toCharArray(), null);
+
+        char[] value = vault.retrieve("vb", "password", null);
+        Arrays.fill(value, '\0');
+        assertEquals("p@ss", new String(vault.retrieve("vb", "password", null)));
+
+        vault.retrieveBlock("vb").get("password")[0] = 'x';
+        assertEquals("p@ss", new String(vault.retrieve("vb", "password", null)));
+
+        CharBuffer buffer = CharBuffer.allocate(16);
+        assertEquals(4, vault.retrieveInto("vb", "password", buffer));
+        buffer.flip();
+        assertEquals("p@ss", buffer.toString());
+    }
+
+    @Test
+    public void testDamagedMappedRecord() throws Exception {
+        fixture.open(PicketBoxSecurityVault.MEMORY_MAPPED, "true").store("vb", "password", "p@ss".toCharArray(), null);
+        // the only record ends the file, flip the last byte of its value
+        flipByte(fixture.file("VAULT.dat"), fixture.file("VAULT.dat").length() - 5);
+
+        // records are verified when read, the file still opens
+        assertLookupsFail(fixture.open(PicketBoxSecurityVault.MEMORY_MAPPED, "true"));
+    }
+
+    @Test
+    public void testDamagedShard() throws Exception {
+        fixture.open(PicketBoxSecurityVault.SHARDED, "true").store("vb", "password", "p@ss".toCharArray(), null);
+        File[] shards = fixture.getDir().listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.matches("VAULT\\.dat\\.\\d{3}.*");
+            }
+        });
+        assertTrue(shards.length > 0);
+        for (File shard : shards) {
+            Files.write(shard.toPath(), "not a shard".getBytes("UTF-8"));
+        }
+
+        // shards are read on first use, the manifest still opens
+        assertLookupsFail(fixture.open(PicketBoxSecurityVault.SHARDED, "true"));
+    }
+
+    @Test
+    public void testFailedInitRepairsNothing() throws Exception {
+        List<VaultEntry> entries = new ArrayList<VaultEntry>();
+        for (int i = 0; i < 300; i++) {
+            char[] value = new char[100];
+            Arrays.fill(value, (char) ('a' + i % 26));
+            entries.add(VaultEntry.plain("vb" + i % 10, "a" + i, value));
+        }
+        PicketBoxSecurityVault vault = fixture.open(PicketBoxSecurityVault.COMPRESSED, "true", PicketBoxSecurityVault.JOURNAL, "true");
+        vault.storeAll(entries.iterator(), null);
+        vault.store("vb", "password", "p@ss".toCharArray(), null);
+        // a damaged chunk and a torn journal tail
+        flipByte(fixture.file("VAULT.dat"), fixture.file("VAULT.dat").length() - 1);
+        File journal = fixture.file("VAULT.dat.journal");
+        long journalLength = journal.length();
+        Files.write(journal.toPath(), new byte[]{0, 0, 0, 42, 1}, StandardOpenOption.APPEND);
+
+        // the admin key is not confirmed, the vault files are left as they are
+        try {
+            fixture.open(PicketBoxSecurityVault.KEYSTORE_ALIAS, "missing");
+            fail("initialized without admin key");
+        } catch (SecurityVaultException expected) {
+        }
+        assertEquals(journalLength + 5, journal.length());
+        assertFalse(fixture.file("VAULT.dat.damaged").exists());
+
+        vault = fixture.open();
+        assertEquals(journalLength, journal.length());
+        assertTrue(fixture.file("VAULT.dat.damaged").exists());
+        assertEquals("p@ss", new String(vault.retrieve("vb", "password", null)));
+    }
+
+    private static void assertLookupsFail(PicketBoxSecurityVault vault) throws Exception {
+        try {
+            vault.retrieve("vb", "password", null);
+            fail("retrieve");
+        } catch (SecurityVaultException expected) {
+        }
+        try {
+            vault.retrieveInto("vb", "password", CharBuffer.allocate(16));
+            fail("retrieveInto");
+        } catch (SecurityVaultException expected) {
+        }
+        try {
+            vault.retrieveBlock("vb");
+            fail("retrieveBlock");
+        } catch (SecurityVaultException expected) {
+        }
+        try {
+            vault.exists("vb", "password");
+            fail("exists");
+        } catch (SecurityVaultException expected) {
+        }
+        try {
+            vault.keyList();
+            fail("keyList");
+        } catch (SecurityVaultException expected) {
+        }
+        // reported per reference
+        VaultRetrievalResult result = vault.retrieveAll(Collections.singletonList(new VaultRef("vb", "password")), null);
+        assertNotNull(result.getFailures().get(new VaultRef("vb", "password")));
+    }
+
+    static void flipByte(File file, long position) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0x01);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test(expected = SecurityVaultException.class)
+    public void testRetrieveAllNotInitialized() throws Exception {
+        new PicketBoxSecurityVault().retrieveAll(new ArrayList<VaultRef>(), null);
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open();
+        List<VaultRef> refs = new ArrayList<VaultRef>();
+        for (int i = 0; i < 40; i++) {
+            vault.store("bulk", "a" + i, ("v" + i).toCharArray(), null);
+            refs.add(new VaultRef("bulk", "a" + i));
+        }
+        assertTrue(vault.retrieveAll(refs, null).isComplete());
+
+        vault.close();
+        assertFalse(vault.isInitialized());
+        try {
+            vault.retrieveAll(refs, null);
+            fail("closed vault");
+        } catch (SecurityVaultException expected) {
+        }
+
+        // the vault can be initialized again
+        vault.init(fixture.options());
+        assertTrue(vault.retrieveAll(refs, null).isComplete());
+    }
+}
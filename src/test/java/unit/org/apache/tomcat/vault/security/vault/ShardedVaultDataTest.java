@@ -0,0 +1,194 @@
+package unit.org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ShardedVaultDataTest {
+
+    private static final int BLOCK_COUNT = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private VaultFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new VaultFixture(folder.getRoot());
+    }
+
+    private PicketBoxSecurityVault open(int shardCount) throws SecurityVaultException {
+        return fixture.open(PicketBoxSecurityVault.SHARDED, "true", PicketBoxSecurityVault.SHARD_COUNT, String.valueOf(shardCount));
+    }
+
+    private void storeBlocks(PicketBoxSecurityVault vault) throws SecurityVaultException {
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            vault.store("block" + i, "user", ("user" + i).toCharArray(), null);
+            vault.store("block" + i, "password", ("password" + i).toCharArray(), null);
+        }
+    }
+
+    private static void assertBlocks(PicketBoxSecurityVault vault) throws SecurityVaultException {
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            assertEquals("user" + i, new String(vault.retrieve("block" + i, "user", null)));
+            assertEquals("password" + i, new String(vault.retrieve("block" + i, "password", null)));
+        }
+    }
+
+    private File[] shardFiles() {
+        File[] files = fixture.getDir().listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.matches("VAULT\\.dat\\.\\d{3}.*");
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * @return the shard file holding a vault block
+     */
+    private File shardFileOf(String vaultBlock) throws Exception {
+        for (File file : shardFiles()) {
+            if (containsString(file, vaultBlock)) {
+                return file;
+            }
+        }
+        throw new AssertionError(vaultBlock + " is in no shard");
+    }
+
+    private static boolean containsString(File file, String value) throws Exception {
+        // strings are written length prefixed
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        for (int i = 4; i + encoded.length <= bytes.length; i++) {
+            int length = ((bytes[i - 4] & 0xff) << 24) | ((bytes[i - 3] & 0xff) << 16) | ((bytes[i - 2] & 0xff) << 8) | (bytes[i - 1] & 0xff);
+            if (length == encoded.length && Arrays.equals(encoded, Arrays.copyOfRange(bytes, i, i + encoded.length))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testOnlyNonEmptyShardsWritten() throws Exception {
+        PicketBoxSecurityVault vault = open(64);
+        vault.store("vb", "password", "p@ss".toCharArray(), null);
+        assertEquals(1, shardFiles().length);
+        assertTrue(shardFiles()[0].getName().matches("VAULT\\.dat\\.\\d{3}-\\d+"));
+
+        String previous = shardFiles()[0].getName();
+        vault.store("vb", "user", "tomcat".toCharArray(), null);
+        // a new file for the changed shard, the previous one is deleted
+        assertEquals(1, shardFiles().length);
+        assertFalse(previous.equals(shardFiles()[0].getName()));
+
+        vault.remove("vb", "user", null);
+        vault.remove("vb", "password", null);
+        assertEquals(0, shardFiles().length);
+    }
+
+    @Test
+    public void testShardCountChange() throws Exception {
+        storeBlocks(open(4));
+        assertEquals(4, shardFiles().length);
+
+        PicketBoxSecurityVault vault = open(16);
+        assertBlocks(vault);
+        vault.store("block0", "url", "jdbc".toCharArray(), null);
+
+        // all blocks were written hashed by the new count, files of the old count are deleted
+        File[] files = shardFiles();
+        assertTrue(files.length > 4);
+        assertTrue(files.length <= 16);
+        Set<String> generations = new HashSet<String>();
+        for (File file : files) {
+            generations.add(file.getName().substring(file.getName().indexOf('-')));
+        }
+        assertEquals(1, generations.size());
+        vault = open(16);
+        assertBlocks(vault);
+        assertEquals("jdbc", new String(vault.retrieve("block0", "url", null)));
+
+        vault = open(4);
+        assertBlocks(vault);
+    }
+
+    @Test
+    public void testUncommittedShardIgnored() throws Exception {
+        storeBlocks(open(4));
+        // a shard file written by a write which crashed before the manifest was replaced
+        File orphan = new File(fixture.getDir(), "VAULT.dat.000-99");
+        Files.write(orphan.toPath(), "not a shard".getBytes(StandardCharsets.UTF_8));
+
+        PicketBoxSecurityVault vault = open(4);
+        assertBlocks(vault);
+        vault.store("block0", "url", "jdbc".toCharArray(), null);
+        assertFalse(orphan.exists());
+        assertBlocks(open(4));
+    }
+
+    @Test
+    public void testLazyShardLoad() throws Exception {
+        storeBlocks(open(8));
+        File damaged = shardFileOf("block0");
+        Set<Integer> damagedBlocks = new HashSet<Integer>();
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            if (containsString(damaged, "block" + i)) {
+                damagedBlocks.add(i);
+            }
+        }
+        Files.write(damaged.toPath(), "not a shard".getBytes(StandardCharsets.UTF_8));
+
+        // shards are read on first use, the manifest and the other shards are unaffected
+        PicketBoxSecurityVault vault = open(8);
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            try {
+                assertEquals("user" + i, new String(vault.retrieve("block" + i, "user", null)));
+                assertFalse(damagedBlocks.contains(i));
+            } catch (SecurityVaultException e) {
+                assertTrue(damagedBlocks.contains(i));
+            }
+        }
+        assertTrue(damagedBlocks.size() < BLOCK_COUNT);
+    }
+
+    @Test
+    public void testShardReplacedByAnotherWriter() throws Exception {
+        storeBlocks(open(8));
+        PicketBoxSecurityVault reader = open(8);
+        PicketBoxSecurityVault writer = open(8);
+        File replaced = shardFileOf("block0");
+        writer.store("block0", "url", "jdbc".toCharArray(), null);
+        assertFalse(replaced.exists());
+
+        // the shard the reader's manifest lists is gone, the current one is read
+        assertEquals("user0", new String(reader.retrieve("block0", "user", null)));
+        assertBlocks(reader);
+    }
+
+    @Test
+    public void testSingleFileWriteDeletesShards() throws Exception {
+        storeBlocks(open(8));
+        assertTrue(shardFiles().length > 0);
+
+        PicketBoxSecurityVault vault = fixture.open();
+        vault.store("block0", "url", "jdbc".toCharArray(), null);
+        assertEquals(0, shardFiles().length);
+        assertBlocks(fixture.open());
+    }
+}
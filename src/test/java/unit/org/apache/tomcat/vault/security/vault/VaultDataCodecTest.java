@@ -0,0 +1,275 @@
+package unit.org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultData;
+import org.apache.tomcat.vault.security.vault.StoredVaultData;
+import org.apache.tomcat.vault.security.vault.VaultDataCodec;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class VaultDataCodecTest {
+
+    private static final String VAULT_DATA_CODECS = "org.apache.tomcat.vault.security.vault.VaultDataCodecs";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private VaultFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new VaultFixture(folder.getRoot());
+    }
+
+    /**
+     * Keeps the vault data file in memory and decodes values on lookup through an index of their positions.
+     * Listed in META-INF/services of the test classes.
+     */
+    public static class IndexCodec implements VaultDataCodec {
+        static final String NAME = "test-index";
+        static final int MAGIC = 0x54545354; // "TTST"
+
+        public String getName() {
+            return NAME;
+        }
+
+        public boolean canRead(ByteBuffer header) {
+            return header.remaining() >= 4 && header.getInt(0) == MAGIC;
+        }
+
+        public boolean canWrite() {
+            return true;
+        }
+
+        public SecurityVaultData read(FileChannel channel, Context context) throws IOException {
+            ByteBuffer file = ByteBuffer.allocate((int) channel.size());
+            while (file.hasRemaining() && channel.read(file, file.position()) > 0) {
+                // read the whole file
+            }
+            file.flip();
+            return new SecurityVaultData(new IndexedData(file));
+        }
+
+        public SecurityVaultData write(final SecurityVaultData data, final long generation, Context context) throws IOException {
+            context.writeAtomically(context.getFile(), new Output() {
+                public void writeTo(OutputStream os) throws IOException {
+                    DataOutputStream out = new DataOutputStream(os);
+                    out.writeInt(MAGIC);
+                    out.writeLong(generation);
+                    for (Map.Entry<String, Map<String, byte[]>> block : data.getVaultContent().entrySet()) {
+                        for (Map.Entry<String, byte[]> entry : block.getValue().entrySet()) {
+                            out.writeUTF(block.getKey());
+                            out.writeUTF(entry.getKey());
+                            out.writeInt(entry.getValue().length);
+                            out.write(entry.getValue());
+                        }
+                    }
+                    out.flush();
+                }
+            });
+            FileInputStream fis = new FileInputStream(context.getFile());
+            try {
+                return read(fis.getChannel(), context);
+            } finally {
+                fis.close();
+            }
+        }
+
+        @Override
+        public long readGeneration(FileChannel channel) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(12);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                // read the header
+            }
+            return header.hasRemaining() ? 0 : header.getLong(4);
+        }
+    }
+
+    /**
+     * Tries to take over a built-in codec name. Listed in META-INF/services of the test classes.
+     */
+    public static class BinaryNameCodec implements VaultDataCodec {
+        public String getName() {
+            return "binary";
+        }
+
+        public boolean canRead(ByteBuffer header) {
+            return false;
+        }
+
+        public boolean canWrite() {
+            return true;
+        }
+
+        public SecurityVaultData read(FileChannel channel, Context context) {
+            throw new AssertionError("built-in codec taken over");
+        }
+
+        public SecurityVaultData write(SecurityVaultData data, long generation, Context context) {
+            throw new AssertionError("built-in codec taken over");
+        }
+    }
+
+    /**
+     * Values of the file decoded on lookup.
+     */
+    private static final class IndexedData implements StoredVaultData {
+        private final ByteBuffer file;
+        // vault block to attribute name to position of the value length
+        private final Map<String, Map<String, Integer>> index = new HashMap<String, Map<String, Integer>>();
+
+        IndexedData(ByteBuffer file) throws IOException {
+            this.file = file;
+            ByteBuffer in = file.duplicate();
+            if (in.getInt() != IndexCodec.MAGIC) {
+                throw new IOException("not an index file");
+            }
+            in.getLong();
+            while (in.hasRemaining()) {
+                String vaultBlock = readUTF(in);
+                String attributeName = readUTF(in);
+                Map<String, Integer> attributes = index.get(vaultBlock);
+                if (attributes == null) {
+                    attributes = new HashMap<String, Integer>();
+                    index.put(vaultBlock, attributes);
+                }
+                attributes.put(attributeName, in.position());
+                in.position(in.position() + 4 + in.getInt(in.position()));
+            }
+        }
+
+        public byte[] get(String vaultBlock, String attributeName) {
+            int sep = vaultBlock.indexOf("::");
+            if (sep >= 0) {
+                return get(vaultBlock.substring(0, sep), vaultBlock.substring(sep + 2) + "::" + attributeName);
+            }
+            Map<String, Integer> attributes = index.get(vaultBlock);
+            Integer position = attributes == null ? null : attributes.get(attributeName);
+            return position == null ? null : value(position);
+        }
+
+        public Map<String, byte[]> getBlock(String vaultBlock) {
+            int sep = vaultBlock.indexOf("::");
+            String prefix = sep < 0 ? "" : vaultBlock.substring(sep + 2) + "::";
+            Map<String, byte[]> result = new HashMap<String, byte[]>();
+            for (Map.Entry<String, byte[]> entry : read(sep < 0 ? vaultBlock : vaultBlock.substring(0, sep)).entrySet()) {
+                if (entry.getKey().startsWith(prefix)) {
+                    result.put(entry.getKey().substring(prefix.length()), entry.getValue());
+                }
+            }
+            return result;
+        }
+
+        public Map<String, Map<String, byte[]>> getAll() {
+            Map<String, Map<String, byte[]>> all = new HashMap<String, Map<String, byte[]>>();
+            for (String vaultBlock : index.keySet()) {
+                all.put(vaultBlock, read(vaultBlock));
+            }
+            return all;
+        }
+
+        public Map<String, byte[]> getUnindexedData() {
+            return Collections.emptyMap();
+        }
+
+        private Map<String, byte[]> read(String vaultBlock) {
+            Map<String, byte[]> result = new HashMap<String, byte[]>();
+            Map<String, Integer> attributes = index.get(vaultBlock);
+            if (attributes != null) {
+                for (Map.Entry<String, Integer> entry : attributes.entrySet()) {
+                    result.put(entry.getKey(), value(entry.getValue()));
+                }
+            }
+            return result;
+        }
+
+        private byte[] value(int position) {
+            ByteBuffer in = file.duplicate();
+            in.position(position);
+            byte[] value = new byte[in.getInt()];
+            in.get(value);
+            return value;
+        }
+
+        private static String readUTF(ByteBuffer in) {
+            byte[] bytes = new byte[in.getShort() & 0xffff];
+            in.get(bytes);
+            // the test values are ASCII, where modified UTF-8 and UTF-8 agree
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testDiscovered() throws Exception {
+        List<String> names = codecNames();
+        assertTrue(names.contains(IndexCodec.NAME));
+        // built-in names are listed once
+        assertEquals(names.indexOf("binary"), names.lastIndexOf("binary"));
+    }
+
+    @Test
+    public void testSelectedAndDetected() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open(PicketBoxSecurityVault.VAULT_CODEC, IndexCodec.NAME);
+        vault.store("vb", "user", "tomcat".toCharArray(), null);
+        vault.store("vb", "password", "p@ss".toCharArray(), null);
+        vault.remove("vb", "user", null);
+        assertEquals(IndexCodec.MAGIC, readInt(0));
+        assertFalse(vault.isStale());
+
+        // read by the codec recognizing the file, whatever the configured codec is
+        vault = fixture.open();
+        assertEquals("p@ss", new String(vault.retrieve("vb", "password", null)));
+        assertFalse(vault.exists("vb", "user"));
+        assertEquals(1, vault.keyList().size());
+
+        // converted by the next write
+        vault.store("vb", "url", "jdbc".toCharArray(), null);
+        assertEquals(0x54564c54, readInt(0));
+        assertEquals("p@ss", new String(fixture.open().retrieve("vb", "password", null)));
+    }
+
+    @Test
+    public void testBuiltInNameNotTakenOver() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open(PicketBoxSecurityVault.VAULT_CODEC, "binary");
+        vault.store("vb", "password", "p@ss".toCharArray(), null);
+        assertEquals(0x54564c54, readInt(0));
+        assertEquals(2, readInt(4));
+        assertEquals("p@ss", new String(fixture.open(PicketBoxSecurityVault.VAULT_CODEC, "binary")
+                .retrieve("vb", "password", null)));
+    }
+
+    private int readInt(long position) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(fixture.file("VAULT.dat")));
+        try {
+            in.skipBytes((int) position);
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> codecNames() throws Exception {
+        Method getNames = Class.forName(VAULT_DATA_CODECS).getDeclaredMethod("getNames");
+        getNames.setAccessible(true);
+        return (List<String>) getNames.invoke(null);
+    }
+}
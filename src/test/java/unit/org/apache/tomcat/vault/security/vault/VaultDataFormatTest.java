@@ -0,0 +1,137 @@
+package unit.org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultData;
+import org.apache.tomcat.vault.security.vault.SecurityVaultException;
+import org.apache.tomcat.vault.util.EncryptionUtil;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * The binary vault data file layout (version 2) and the conversion of Java serialized files (version 1).
+ */
+public class VaultDataFormatTest {
+
+    private static final int MAGIC = 0x54564C54; // "TVLT"
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private VaultFixture fixture;
+    private File vaultFile;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new VaultFixture(folder.getRoot());
+        vaultFile = fixture.file("VAULT.dat");
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open();
+        vault.store("vb", "password", "p@ss".toCharArray(), null);
+        vault.store("vb", "punctuation", "with spaces, :: and \"quotes\"".toCharArray(), null);
+        vault.store("other", "user", "tomcat".toCharArray(), null);
+        assertHeader(2);
+
+        vault = fixture.open();
+        assertEquals("p@ss", new String(vault.retrieve("vb", "password", null)));
+        assertEquals("with spaces, :: and \"quotes\"", new String(vault.retrieve("vb", "punctuation", null)));
+        assertEquals("tomcat", new String(vault.retrieve("other", "user", null)));
+        assertEquals(3, vault.keyList().size());
+    }
+
+    @Test
+    public void testChecksumMismatch() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open();
+        vault.store("vb", "password", "p@ss".toCharArray(), null);
+
+        RandomAccessFile raf = new RandomAccessFile(vaultFile, "rw");
+        try {
+            long position = raf.length() / 2;
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0x01);
+        } finally {
+            raf.close();
+        }
+
+        assertRejected();
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open();
+        vault.store("vb", "password", "p@ss".toCharArray(), null);
+        vault.store("vb", "user", "tomcat".toCharArray(), null);
+
+        RandomAccessFile raf = new RandomAccessFile(vaultFile, "rw");
+        try {
+            raf.setLength(raf.length() - 6);
+        } finally {
+            raf.close();
+        }
+
+        assertRejected();
+    }
+
+    @Test
+    public void testVersion1Upgrade() throws Exception {
+        // values are encrypted in the platform charset, as written by older releases
+        EncryptionUtil encryption = new EncryptionUtil("AES", 128, fixture.getAdminKey());
+        SecurityVaultData data = new SecurityVaultData();
+        data.addVaultData(null, "vb", "password", encryption.encrypt("p@ss".getBytes(Charset.defaultCharset())));
+        data.addVaultData(null, "vb", "user", encryption.encrypt("tomcat".getBytes(Charset.defaultCharset())));
+        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(vaultFile));
+        try {
+            oos.writeObject(data);
+        } finally {
+            oos.close();
+        }
+
+        PicketBoxSecurityVault vault = fixture.open();
+        assertEquals("p@ss", new String(vault.retrieve("vb", "password", null)));
+        assertEquals("tomcat", new String(vault.retrieve("vb", "user", null)));
+        // reading does not convert the file
+        assertEquals((short) 0xACED, new DataInputStream(new FileInputStream(vaultFile)).readShort());
+
+        vault.store("vb", "added", "new".toCharArray(), null);
+        assertHeader(2);
+
+        vault = fixture.open();
+        assertEquals("p@ss", new String(vault.retrieve("vb", "password", null)));
+        assertEquals("tomcat", new String(vault.retrieve("vb", "user", null)));
+        assertEquals("new", new String(vault.retrieve("vb", "added", null)));
+    }
+
+    private void assertHeader(int version) throws Exception {
+        DataInputStream in = new DataInputStream(new FileInputStream(vaultFile));
+        try {
+            assertEquals(MAGIC, in.readInt());
+            assertEquals(version, in.readInt());
+        } finally {
+            in.close();
+        }
+    }
+
+    private void assertRejected() {
+        try {
+            fixture.open();
+            fail("damaged vault data file");
+        } catch (SecurityVaultException expected) {
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package unit.org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.GeneralSecurityException;
+
+import static org.junit.Assert.*;
+
+public class VaultFastStartTest {
+
+    private static final String VAULT_FAST_START = "org.apache.tomcat.vault.security.vault.VaultFastStart";
+
+    // magic, version and the stamp of 7 longs
+    private static final int ITERATIONS_OFFSET = 8 + 7 * 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private VaultFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new VaultFixture(folder.getRoot());
+        fixture.open().store("vb", "password", "p@ss".toCharArray(), null);
+    }
+
+    private PicketBoxSecurityVault open() throws SecurityVaultException {
+        return fixture.open(PicketBoxSecurityVault.FAST_START, "true");
+    }
+
+    private File fastStartFile() {
+        return fixture.file("VAULT.dat.faststart");
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        PicketBoxSecurityVault vault = open();
+        assertTrue(keyStoreLoaded(vault));
+        assertTrue(fastStartFile().exists());
+
+        vault = open();
+        assertFalse(keyStoreLoaded(vault));
+        assertEquals("p@ss", new String(vault.retrieve("vb", "password", null)));
+        // changes are written the regular way
+        vault.store("vb", "user", "tomcat".toCharArray(), null);
+        assertEquals("tomcat", new String(fixture.open().retrieve("vb", "user", null)));
+    }
+
+    @Test
+    public void testStaleStamp() throws Exception {
+        open();
+        fixture.open().store("vb", "user", "tomcat".toCharArray(), null);
+
+        // the vault data file changed since the state was kept
+        PicketBoxSecurityVault vault = open();
+        assertTrue(keyStoreLoaded(vault));
+        assertEquals("tomcat", new String(vault.retrieve("vb", "user", null)));
+
+        // written again for the current vault data file
+        vault = open();
+        assertFalse(keyStoreLoaded(vault));
+        assertEquals("tomcat", new String(vault.retrieve("vb", "user", null)));
+    }
+
+    @Test
+    public void testWrongPassword() throws Exception {
+        open();
+        assertNotNull(read(VaultFixture.PASSWORD.toCharArray()));
+        try {
+            read("wrong".toCharArray());
+            fail("decrypted with a wrong password");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    @Test
+    public void testUnreadableFileFallsBack() throws Exception {
+        open();
+        PicketBoxSecurityVaultTest.flipByte(fastStartFile(), fastStartFile().length() - 1);
+
+        PicketBoxSecurityVault vault = open();
+        assertTrue(keyStoreLoaded(vault));
+        assertEquals("p@ss", new String(vault.retrieve("vb", "password", null)));
+        assertFalse(keyStoreLoaded(open()));
+    }
+
+    @Test(timeout = 10000)
+    public void testIterationCountRejected() throws Exception {
+        open();
+        RandomAccessFile file = new RandomAccessFile(fastStartFile(), "rw");
+        try {
+            file.seek(ITERATIONS_OFFSET);
+            file.writeInt(Integer.MAX_VALUE);
+        } finally {
+            file.close();
+        }
+
+        // rejected before a key is derived with it
+        PicketBoxSecurityVault vault = open();
+        assertTrue(keyStoreLoaded(vault));
+        assertEquals("p@ss", new String(vault.retrieve("vb", "password", null)));
+    }
+
+    private Object read(char[] password) throws Exception {
+        Constructor<?> constructor = Class.forName(VAULT_FAST_START).getDeclaredConstructor(File.class, File.class, File.class, File.class);
+        constructor.setAccessible(true);
+        Object fastStart = constructor.newInstance(fastStartFile(), fixture.getKeyStoreFile(), fixture.file("VAULT.dat"),
+                fixture.file("VAULT.dat.journal"));
+        Method read = fastStart.getClass().getDeclaredMethod("read", char[].class, String.class, String.class);
+        read.setAccessible(true);
+        try {
+            return read.invoke(fastStart, password, fixture.getKeyStoreFile().getPath(), VaultFixture.ALIAS);
+        } catch (InvocationTargetException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    /**
+     * @return whether the vault was initialized by loading the key store instead of the fast start file
+     */
+    private static boolean keyStoreLoaded(PicketBoxSecurityVault vault) throws Exception {
+        Field keystore = PicketBoxSecurityVault.class.getDeclaredField("keystore");
+        keystore.setAccessible(true);
+        return keystore.get(vault) != null;
+    }
+}
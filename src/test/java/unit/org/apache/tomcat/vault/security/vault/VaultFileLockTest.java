@@ -0,0 +1,126 @@
+package unit.org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class VaultFileLockTest {
+
+    private static final String VAULT_FILE_LOCK = "org.apache.tomcat.vault.security.vault.VaultFileLock";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private VaultFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new VaultFixture(folder.getRoot());
+    }
+
+    @Test
+    public void testInstancesShareFileLock() throws Exception {
+        File file = new File(folder.getRoot(), "VAULT.dat.lock");
+        Object first = newLock(file);
+        Object second = newLock(file);
+
+        invoke(first, "lock");
+        invoke(second, "lock");
+        // released in the other order than taken
+        invoke(first, "unlock");
+        invoke(second, "unlock");
+
+        // the file lock is no longer held by this JVM
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.tryLock();
+            assertNotNull(lock);
+            lock.release();
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void testStaleWriterMerges() throws Exception {
+        PicketBoxSecurityVault first = fixture.open();
+        PicketBoxSecurityVault second = fixture.open();
+        assertFalse(first.isStale());
+
+        second.store("vb", "user", "tomcat".toCharArray(), null);
+        assertTrue(first.isStale());
+        assertFalse(second.isStale());
+
+        // the stale writer reads the files again before writing its change
+        first.store("vb", "password", "p@ss".toCharArray(), null);
+        assertFalse(first.isStale());
+        assertTrue(second.isStale());
+        assertEquals("tomcat", new String(first.retrieve("vb", "user", null)));
+
+        PicketBoxSecurityVault reopened = fixture.open();
+        assertEquals("tomcat", new String(reopened.retrieve("vb", "user", null)));
+        assertEquals("p@ss", new String(reopened.retrieve("vb", "password", null)));
+    }
+
+    @Test
+    public void testConcurrentVaultsLoseNothing() throws Exception {
+        final PicketBoxSecurityVault[] vaults = {fixture.open(), fixture.open(PicketBoxSecurityVault.JOURNAL, "true")};
+        final CountDownLatch start = new CountDownLatch(1);
+        final Exception[] errors = new Exception[vaults.length];
+        Thread[] writers = new Thread[vaults.length];
+        for (int i = 0; i < vaults.length; i++) {
+            final int writer = i;
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < 25; j++) {
+                            vaults[writer].store("vb" + writer, "a" + j, ("v" + j).toCharArray(), null);
+                        }
+                    } catch (Exception e) {
+                        errors[writer] = e;
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        start.countDown();
+        for (int i = 0; i < writers.length; i++) {
+            writers[i].join();
+            assertNull(errors[i]);
+        }
+
+        PicketBoxSecurityVault reopened = fixture.open();
+        for (int i = 0; i < vaults.length; i++) {
+            for (int j = 0; j < 25; j++) {
+                assertEquals("v" + j, new String(reopened.retrieve("vb" + i, "a" + j, null)));
+            }
+        }
+        assertEquals(50, reopened.keyList().size());
+    }
+
+    private static Object newLock(File file) throws Exception {
+        Constructor<?> constructor = Class.forName(VAULT_FILE_LOCK).getDeclaredConstructor(File.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(file);
+    }
+
+    private static void invoke(Object lock, String name) throws Exception {
+        Method method = lock.getClass().getDeclaredMethod(name);
+        method.setAccessible(true);
+        method.invoke(lock);
+    }
+}
@@ -0,0 +1,124 @@
+package unit.org.apache.tomcat.vault.security.vault;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class VaultFilesTest {
+
+    private static final String VAULT_FILES = "org.apache.tomcat.vault.security.vault.VaultFiles";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplace() throws Exception {
+        File target = folder.newFile("VAULT.dat");
+        Files.write(target.toPath(), "old".getBytes("UTF-8"));
+
+        writeAtomically(target, "new".getBytes("UTF-8"), null);
+
+        assertEquals("new", new String(Files.readAllBytes(target.toPath()), "UTF-8"));
+        assertArrayEquals(new String[] {"VAULT.dat"}, folder.getRoot().list());
+    }
+
+    @Test
+    public void testFailedWriteKeepsTarget() throws Exception {
+        File target = folder.newFile("VAULT.dat");
+        Files.write(target.toPath(), "old".getBytes("UTF-8"));
+
+        try {
+            writeAtomically(target, "partial".getBytes("UTF-8"), new IOException("disk full"));
+            fail("write did not fail");
+        } catch (IOException expected) {
+            assertEquals("disk full", expected.getMessage());
+        }
+
+        assertEquals("old", new String(Files.readAllBytes(target.toPath()), "UTF-8"));
+        assertArrayEquals(new String[] {"VAULT.dat"}, folder.getRoot().list());
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final File target = new File(folder.getRoot(), "vault.keystore");
+        final byte[][] contents = new byte[8][];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = new byte[64 * 1024];
+            Arrays.fill(contents[i], (byte) i);
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final Exception[] errors = new Exception[contents.length];
+        Thread[] writers = new Thread[contents.length];
+        for (int i = 0; i < writers.length; i++) {
+            final int writer = i;
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < 10; j++) {
+                            writeAtomically(target, contents[writer], null);
+                        }
+                    } catch (Exception e) {
+                        errors[writer] = e;
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        start.countDown();
+        for (int i = 0; i < writers.length; i++) {
+            writers[i].join();
+            assertNull(errors[i]);
+        }
+
+        // the last rename wins, never a mix of two writers
+        byte[] written = Files.readAllBytes(target.toPath());
+        boolean found = false;
+        for (byte[] content : contents) {
+            found |= Arrays.equals(content, written);
+        }
+        assertTrue(found);
+        assertArrayEquals(new String[] {"vault.keystore"}, folder.getRoot().list());
+    }
+
+    /**
+     * Replace the target, writing the bytes in two halves and throwing the error, if any, in between.
+     */
+    private static void writeAtomically(File target, final byte[] bytes, final Exception error) throws Exception {
+        Class<?> vaultFiles = Class.forName(VAULT_FILES);
+        Class<?> contentType = Class.forName(VAULT_FILES + "$Content");
+        Object content = Proxy.newProxyInstance(contentType.getClassLoader(), new Class<?>[] {contentType},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        OutputStream os = (OutputStream) args[0];
+                        os.write(bytes, 0, bytes.length / 2);
+                        if (error != null) {
+                            throw error;
+                        }
+                        os.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+                        return null;
+                    }
+                });
+        Method method = vaultFiles.getDeclaredMethod("writeAtomically", File.class, contentType);
+        method.setAccessible(true);
+        try {
+            method.invoke(null, target, content);
+        } catch (InvocationTargetException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package unit.org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.vault.security.plugins.PBEUtils;
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultException;
+import org.apache.tomcat.vault.util.KeyStoreUtil;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.PBEParameterSpec;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A key store with an AES admin key and the options of a vault kept in a directory.
+ */
+public class VaultFixture {
+
+    public static final String ALIAS = "vault";
+    public static final String PASSWORD = "secret123";
+    public static final String SALT = "12345678";
+    public static final int ITERATION_COUNT = 44;
+
+    private final File dir;
+    private final File keyStoreFile;
+    private final String maskedPassword;
+    private SecretKey adminKey;
+
+    public VaultFixture(File dir) throws Exception {
+        this.dir = dir;
+        this.keyStoreFile = new File(dir, "vault.keystore");
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBEwithMD5andDES");
+        SecretKey maskKey = factory.generateSecret(new PBEKeySpec("somearbitrarycrazystringthatdoesnotmatter".toCharArray()));
+        maskedPassword = PicketBoxSecurityVault.PASS_MASK_PREFIX + PBEUtils.encode64(PASSWORD.getBytes(StandardCharsets.UTF_8),
+                "PBEwithMD5andDES", maskKey, new PBEParameterSpec(SALT.getBytes(StandardCharsets.UTF_8), ITERATION_COUNT));
+        replaceKey();
+    }
+
+    /**
+     * Store a new admin key under the alias, values encrypted with the previous key cannot be decrypted anymore.
+     */
+    public void replaceKey() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        adminKey = generator.generateKey();
+        KeyStore keyStore = KeyStoreUtil.createKeyStore("JCEKS", PASSWORD.toCharArray());
+        keyStore.setEntry(ALIAS, new KeyStore.SecretKeyEntry(adminKey), new KeyStore.PasswordProtection(PASSWORD.toCharArray()));
+        try (OutputStream os = new FileOutputStream(keyStoreFile)) {
+            keyStore.store(os, PASSWORD.toCharArray());
+        }
+    }
+
+    public SecretKey getAdminKey() {
+        return adminKey;
+    }
+
+    public File getKeyStoreFile() {
+        return keyStoreFile;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public File file(String name) {
+        return new File(dir, name);
+    }
+
+    /**
+     * @param extra further options as name and value pairs
+     * @return options of a vault in the directory
+     */
+    public Map<String, Object> options(String... extra) {
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put(PicketBoxSecurityVault.KEYSTORE_URL, keyStoreFile.getPath());
+        options.put(PicketBoxSecurityVault.KEYSTORE_PASSWORD, maskedPassword);
+        options.put(PicketBoxSecurityVault.KEYSTORE_ALIAS, ALIAS);
+        options.put(PicketBoxSecurityVault.SALT, SALT);
+        options.put(PicketBoxSecurityVault.ITERATION_COUNT, String.valueOf(ITERATION_COUNT));
+        options.put(PicketBoxSecurityVault.ENC_FILE_DIR, dir.getPath() + File.separator);
+        for (int i = 0; i + 1 < extra.length; i += 2) {
+            options.put(extra[i], extra[i + 1]);
+        }
+        return options;
+    }
+
+    /**
+     * @param extra further options as name and value pairs
+     * @return an initialized vault
+     */
+    public PicketBoxSecurityVault open(String... extra) throws SecurityVaultException {
+        PicketBoxSecurityVault vault = new PicketBoxSecurityVault();
+        vault.init(options(extra));
+        return vault;
+    }
+
+    /**
+     * Write the options into vault.properties, as read by the property source.
+     *
+     * @param extra further options as name and value pairs
+     * @return the written file
+     */
+    public File writeProperties(String... extra) throws Exception {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Object> option : options(extra).entrySet()) {
+            properties.setProperty(option.getKey(), (String) option.getValue());
+        }
+        File file = new File(dir, "vault.properties");
+        try (OutputStream os = new FileOutputStream(file)) {
+            properties.store(os, null);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,156 @@
+package unit.org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class VaultHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private VaultFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new VaultFixture(folder.getRoot());
+    }
+
+    private PicketBoxSecurityVault open(String... extra) throws SecurityVaultException {
+        String[] options = new String[extra.length + 2];
+        options[0] = PicketBoxSecurityVault.HISTORY_SIZE;
+        options[1] = "2";
+        System.arraycopy(extra, 0, options, 2, extra.length);
+        return fixture.open(options);
+    }
+
+    @Test
+    public void testRetentionTrimming() throws Exception {
+        PicketBoxSecurityVault vault = open();
+        for (int i = 1; i <= 5; i++) {
+            vault.store("vb", "password", ("v" + i).toCharArray(), null);
+        }
+
+        vault = open();
+        assertEquals("v5", retrieve(vault, PicketBoxSecurityVault.LATEST_VERSION));
+        assertEquals("v5", retrieve(vault, 5));
+        assertEquals("v4", retrieve(vault, 4));
+        assertEquals("v3", retrieve(vault, 3));
+        // two versions are kept besides the current one
+        assertNotRetrieved(vault, 2);
+        assertNotRetrieved(vault, 1);
+    }
+
+    @Test
+    public void testRotationBackToPreviousValue() throws Exception {
+        PicketBoxSecurityVault vault = open(PicketBoxSecurityVault.JOURNAL, "true");
+        vault.store("vb", "password", "a".toCharArray(), null);
+        vault.store("vb", "password", "b".toCharArray(), null);
+        vault.store("vb", "password", "a".toCharArray(), null);
+
+        vault = open();
+        // the current value is the newest version with its value, not the first one
+        assertEquals("a", retrieve(vault, 3));
+        assertEquals("b", retrieve(vault, 2));
+        assertEquals("a", retrieve(vault, 1));
+        assertNotRetrieved(vault, 4);
+    }
+
+    @Test
+    public void testValuesWrittenWithoutHistory() throws Exception {
+        fixture.open().store("vb", "password", "a".toCharArray(), null);
+        fixture.open().store("vb", "password", "b".toCharArray(), null);
+        // the attribute is recorded once it changes, its value until then is version 1
+        open().store("vb", "password", "c".toCharArray(), null);
+        assertEquals("b", retrieve(open(), 1));
+        assertEquals("c", retrieve(open(), 2));
+
+        // a value stored without recording it counts as the next version
+        fixture.open().store("vb", "password", "d".toCharArray(), null);
+        assertEquals("d", retrieve(open(), 3));
+        open().store("vb", "password", "e".toCharArray(), null);
+
+        PicketBoxSecurityVault vault = open();
+        assertEquals("c", retrieve(vault, 2));
+        assertEquals("d", retrieve(vault, 3));
+        assertEquals("e", retrieve(vault, 4));
+        assertNotRetrieved(vault, 1);
+    }
+
+    @Test
+    public void testOneHistoryWritePerCommit() throws Exception {
+        final int stores = 8;
+        final PicketBoxSecurityVault vault = open(PicketBoxSecurityVault.GROUP_COMMIT_WINDOW, "200");
+        for (int i = 0; i < stores; i++) {
+            vault.store("vb", "a" + i, "old".toCharArray(), null);
+        }
+        long generation = historyGeneration();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final Exception[] errors = new Exception[stores];
+        Thread[] writers = new Thread[stores];
+        for (int i = 0; i < stores; i++) {
+            final int writer = i;
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        vault.store("vb", "a" + writer, "new".toCharArray(), null);
+                    } catch (Exception e) {
+                        errors[writer] = e;
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        start.countDown();
+        for (int i = 0; i < stores; i++) {
+            writers[i].join();
+            assertNull(errors[i]);
+        }
+
+        // stores joining a commit are recorded with one write of the history file
+        assertTrue(historyGeneration() - generation < stores);
+        PicketBoxSecurityVault reopened = open();
+        for (int i = 0; i < stores; i++) {
+            assertEquals("old", new String(reopened.retrieve("vb", "a" + i, null, 1)));
+            assertEquals("new", new String(reopened.retrieve("vb", "a" + i, null, 2)));
+        }
+    }
+
+    private long historyGeneration() throws Exception {
+        if (!fixture.file("VAULT.dat.history").exists()) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(fixture.file("VAULT.dat.history")));
+        try {
+            in.readInt();
+            in.readInt();
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String retrieve(PicketBoxSecurityVault vault, int version) throws SecurityVaultException {
+        return new String(vault.retrieve("vb", "password", null, version));
+    }
+
+    private static void assertNotRetrieved(PicketBoxSecurityVault vault, int version) {
+        try {
+            vault.retrieve("vb", "password", null, version);
+            fail("version " + version + " retrieved");
+        } catch (SecurityVaultException expected) {
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package unit.org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class VaultJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private VaultFixture fixture;
+    private File vaultFile;
+    private File journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new VaultFixture(folder.getRoot());
+        vaultFile = fixture.file("VAULT.dat");
+        journalFile = fixture.file("VAULT.dat.journal");
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open(PicketBoxSecurityVault.JOURNAL, "true");
+        byte[] written = Files.readAllBytes(vaultFile.toPath());
+        vault.store("vb", "password", "p@ss".toCharArray(), null);
+        vault.store("vb", "user", "tomcat".toCharArray(), null);
+        vault.store("vb", "password", "changed".toCharArray(), null);
+        vault.remove("vb", "user", null);
+
+        // changes are only appended to the journal
+        assertArrayEquals(written, Files.readAllBytes(vaultFile.toPath()));
+        assertTrue(journalFile.length() > 0);
+
+        for (String journal : new String[]{"true", "false"}) {
+            // the journal is replayed with and without JOURNAL
+            vault = fixture.open(PicketBoxSecurityVault.JOURNAL, journal);
+            assertEquals("changed", new String(vault.retrieve("vb", "password", null)));
+            assertFalse(vault.exists("vb", "user"));
+        }
+    }
+
+    @Test
+    public void testTornTail() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open(PicketBoxSecurityVault.JOURNAL, "true");
+        vault.store("vb", "password", "p@ss".toCharArray(), null);
+        vault.store("vb", "user", "tomcat".toCharArray(), null);
+        long intactLength = journalFile.length();
+
+        // a record cut short by a crash: its length, then only part of the payload
+        OutputStream os = new FileOutputStream(journalFile, true);
+        try {
+            os.write(new byte[]{0, 0, 0, 40, 1, 0, 0, 0, 2, 'v'});
+        } finally {
+            os.close();
+        }
+
+        vault = fixture.open(PicketBoxSecurityVault.JOURNAL, "true");
+        assertEquals("p@ss", new String(vault.retrieve("vb", "password", null)));
+        assertEquals("tomcat", new String(vault.retrieve("vb", "user", null)));
+        // the damaged tail is cut off, so later records are not appended behind it
+        assertEquals(intactLength, journalFile.length());
+
+        vault.store("vb", "added", "new".toCharArray(), null);
+        vault = fixture.open(PicketBoxSecurityVault.JOURNAL, "true");
+        assertEquals("new", new String(vault.retrieve("vb", "added", null)));
+        assertEquals("tomcat", new String(vault.retrieve("vb", "user", null)));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open(PicketBoxSecurityVault.JOURNAL, "true",
+                PicketBoxSecurityVault.JOURNAL_COMPACT_SIZE, "512");
+        long written = vaultFile.length();
+        vault.store("vb", "a0", "v0".toCharArray(), null);
+        assertEquals(written, vaultFile.length());
+
+        for (int i = 1; i < 50; i++) {
+            vault.store("vb", "a" + i, ("v" + i).toCharArray(), null);
+            // the journal is folded into VAULT.dat once it reaches the compact size
+            assertTrue(journalFile.length() < 512 + 128);
+        }
+        assertTrue(vaultFile.length() > written);
+
+        vault = fixture.open(PicketBoxSecurityVault.JOURNAL, "true");
+        for (int i = 0; i < 50; i++) {
+            assertEquals("v" + i, new String(vault.retrieve("vb", "a" + i, null)));
+        }
+    }
+
+    @Test
+    public void testNotJournal() throws Exception {
+        fixture.open().store("vb", "password", "p@ss".toCharArray(), null);
+        OutputStream os = new FileOutputStream(journalFile);
+        try {
+            os.write("not a vault journal".getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        try {
+            fixture.open(PicketBoxSecurityVault.JOURNAL, "true");
+            fail("not a journal");
+        } catch (SecurityVaultException expected) {
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package unit.org.apache.tomcat.vault.security.vault;
+
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultListener;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class VaultReloadTest {
+
+    private static final long TIMEOUT = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private VaultFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new VaultFixture(folder.getRoot());
+    }
+
+    /**
+     * Records changed entries as vault block and attribute name.
+     */
+    private static class RecordingListener implements SecurityVaultListener {
+        private final Set<String> changed = Collections.synchronizedSet(new HashSet<String>());
+
+        public void vaultEntryChanged(String vaultBlock, String attributeName) {
+            changed.add(vaultBlock + "::" + attributeName);
+        }
+
+        Set<String> awaitChanges(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (changed.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            synchronized (changed) {
+                return new HashSet<String>(changed);
+            }
+        }
+    }
+
+    private PicketBoxSecurityVault openWatched() throws Exception {
+        return fixture.open(PicketBoxSecurityVault.HOT_RELOAD, "true", PicketBoxSecurityVault.HOT_RELOAD_INTERVAL, "50");
+    }
+
+    @Test
+    public void testWatcherReloads() throws Exception {
+        fixture.open().store("vb", "user", "tomcat".toCharArray(), null);
+        PicketBoxSecurityVault watched = openWatched();
+        RecordingListener listener = new RecordingListener();
+        watched.addVaultListener(listener);
+        try {
+            fixture.open().store("vb", "password", "p@ss".toCharArray(), null);
+
+            assertEquals(Collections.singleton("vb::password"), listener.awaitChanges(1));
+            assertEquals("p@ss", new String(watched.retrieve("vb", "password", null)));
+            assertEquals("tomcat", new String(watched.retrieve("vb", "user", null)));
+        } finally {
+            watched.close();
+        }
+    }
+
+    @Test
+    public void testSelectiveInvalidation() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open();
+        for (int i = 0; i < 20; i++) {
+            vault.store("vb", "a" + i, ("v" + i).toCharArray(), null);
+        }
+        PicketBoxSecurityVault watched = openWatched();
+        RecordingListener listener = new RecordingListener();
+        watched.addVaultListener(listener);
+        try {
+            PicketBoxSecurityVault other = fixture.open(PicketBoxSecurityVault.JOURNAL, "true");
+            other.store("vb", "a3", "changed".toCharArray(), null);
+            other.remove("vb", "a7", null);
+            // unchanged value written again
+            other.store("vb", "a5", "v5".toCharArray(), null);
+
+            listener.awaitChanges(2);
+            // further reloads must not report unchanged entries
+            Thread.sleep(200);
+            assertEquals(new HashSet<String>(Arrays.asList("vb::a3", "vb::a7")), listener.awaitChanges(2));
+            assertEquals("changed", new String(watched.retrieve("vb", "a3", null)));
+            assertFalse(watched.exists("vb", "a7"));
+        } finally {
+            watched.close();
+        }
+    }
+
+    @Test
+    public void testReloadDeferredWhileCommitPending() throws Exception {
+        PicketBoxSecurityVault vault = fixture.open();
+        fixture.open().store("vb", "password", "p@ss".toCharArray(), null);
+
+        Object commitLock = field(vault, "commitLock").get(vault);
+        Field committing = field(vault, "committing");
+        synchronized (commitLock) {
+            committing.setBoolean(vault, true);
+        }
+        assertFalse(reload(vault));
+        assertFalse(vault.exists("vb", "password"));
+        synchronized (commitLock) {
+            committing.setBoolean(vault, false);
+        }
+
+        // a mutation not committed yet
+        AtomicLong mutationCount = (AtomicLong) field(vault, "mutationCount").get(vault);
+        mutationCount.incrementAndGet();
+        assertFalse(reload(vault));
+        assertFalse(vault.exists("vb", "password"));
+        Field committedCount = field(vault, "committedCount");
+        synchronized (commitLock) {
+            committedCount.setLong(vault, mutationCount.get());
+        }
+
+        assertTrue(reload(vault));
+        assertEquals("p@ss", new String(vault.retrieve("vb", "password", null)));
+    }
+
+    @Test
+    public void testReloadReadsOnlyChangedShards() throws Exception {
+        PicketBoxSecurityVault writer = fixture.open(PicketBoxSecurityVault.SHARDED, "true", PicketBoxSecurityVault.SHARD_COUNT, "8");
+        for (int i = 0; i < 40; i++) {
+            writer.store("block" + i, "user", ("user" + i).toCharArray(), null);
+        }
+        PicketBoxSecurityVault vault = fixture.open(PicketBoxSecurityVault.SHARDED, "true", PicketBoxSecurityVault.SHARD_COUNT, "8");
+        RecordingListener listener = new RecordingListener();
+        vault.addVaultListener(listener);
+        assertEquals("user0", new String(vault.retrieve("block0", "user", null)));
+
+        File[] before = shardFiles();
+        fixture.open(PicketBoxSecurityVault.SHARDED, "true", PicketBoxSecurityVault.SHARD_COUNT, "8")
+                .store("block0", "url", "jdbc".toCharArray(), null);
+        // shards which did not change cannot be read anymore, comparing all entries would fail
+        for (File shard : before) {
+            shard.delete();
+        }
+        assertEquals(1, shardFiles().length);
+
+        assertTrue(reload(vault));
+        assertEquals(Collections.singleton("block0::url"), listener.awaitChanges(1));
+        assertEquals("jdbc", new String(vault.retrieve("block0", "url", null)));
+    }
+
+    private File[] shardFiles() {
+        return fixture.getDir().listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.matches("VAULT\\.dat\\.\\d{3}.*");
+            }
+        });
+    }
+
+    private static boolean reload(PicketBoxSecurityVault vault) throws Exception {
+        Method reload = PicketBoxSecurityVault.class.getDeclaredMethod("reloadVaultContent");
+        reload.setAccessible(true);
+        return (Boolean) reload.invoke(vault);
+    }
+
+    private static Field field(PicketBoxSecurityVault vault, String name) throws Exception {
+        Field field = PicketBoxSecurityVault.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+}
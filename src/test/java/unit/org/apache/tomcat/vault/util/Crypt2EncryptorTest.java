@@ -0,0 +1,86 @@
+package unit.org.apache.tomcat.vault.util;
+
+import org.apache.tomcat.vault.util.Crypt2Encryptor;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class Crypt2EncryptorTest {
+
+    private static final byte[] SALT = "1234abcd".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testEncryptDecrypt() throws Exception {
+        Crypt2Encryptor encryptor = new Crypt2Encryptor("MyEncryptionPassword");
+        String first = encryptor.encrypt("MyPassword", SALT, 1000);
+        String second = encryptor.encrypt("MyPassword", SALT, 1000);
+
+        // fresh nonce per value
+        assertNotEquals(first, second);
+        assertEquals("MyPassword", encryptor.decrypt(first));
+        assertEquals("MyPassword", new Crypt2Encryptor("MyEncryptionPassword").decrypt(second));
+    }
+
+    @Test
+    public void testRandomSalt() throws Exception {
+        Crypt2Encryptor encryptor = new Crypt2Encryptor("MyEncryptionPassword");
+        String encrypted = encryptor.encrypt("\u017elu\u0165ou\u010dk\u00fd k\u016f\u0148", Crypt2Encryptor.generateSalt(), 1000);
+
+        assertEquals("\u017elu\u0165ou\u010dk\u00fd k\u016f\u0148", new Crypt2Encryptor("MyEncryptionPassword").decrypt(encrypted));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void testWrongPassword() throws Exception {
+        String encrypted = new Crypt2Encryptor("MyEncryptionPassword").encrypt("MyPassword", SALT, 1000);
+        new Crypt2Encryptor("OtherPassword").decrypt(encrypted);
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void testMalformedValue() throws Exception {
+        new Crypt2Encryptor("MyEncryptionPassword").decrypt("a33AiwJkF4dMx9Uq9oxElYT6LdjXLJxf");
+    }
+
+    @Test
+    public void testIterationsBounded() throws Exception {
+        Crypt2Encryptor encryptor = new Crypt2Encryptor("MyEncryptionPassword");
+        byte[] value = Base64.getDecoder().decode(encryptor.encrypt("MyPassword", SALT, 1000));
+        // version | iterations | ...
+        ByteBuffer.wrap(value).putInt(1, Integer.MAX_VALUE);
+
+        long start = System.nanoTime();
+        try {
+            encryptor.decrypt(Base64.getEncoder().encodeToString(value));
+            fail("iterations over the maximum");
+        } catch (GeneralSecurityException expected) {
+        }
+        // rejected before any key derivation
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+        try {
+            encryptor.encrypt("MyPassword", SALT, Crypt2Encryptor.MAX_ITERATIONS + 1);
+            fail("iterations over the maximum");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testDerivedKeysBounded() throws Exception {
+        Crypt2Encryptor encryptor = new Crypt2Encryptor("MyEncryptionPassword");
+        for (int i = 0; i < 40; i++) {
+            String encrypted = encryptor.encrypt("MyPassword" + i, Crypt2Encryptor.generateSalt(), 1000);
+            assertEquals("MyPassword" + i, encryptor.decrypt(encrypted));
+        }
+
+        Field derivedKeys = Crypt2Encryptor.class.getDeclaredField("derivedKeys");
+        derivedKeys.setAccessible(true);
+        assertTrue(((Map<?, ?>) derivedKeys.get(encryptor)).size() <= 16);
+    }
+}
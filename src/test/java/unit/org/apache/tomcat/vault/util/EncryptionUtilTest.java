@@ -122,4 +122,33 @@ public class EncryptionUtilTest {
         assertArrayEquals(emptyData, decryptedData); 
     }
 
+    @Test
+    public void testBoundEngineEncryptDecrypt() throws Exception {
+        byte[] originalBytes = "Engine Test Data".getBytes();
+        SecretKey key = KeyGenerator.getInstance(encryptionAlgorithm).generateKey();
+        EncryptionUtil engine = new EncryptionUtil(encryptionAlgorithm, keySize, key);
+
+        byte[] encryptedData = engine.encrypt(originalBytes);
+
+        assertArrayEquals(encryptionUtil.encrypt(originalBytes, key), encryptedData);
+        assertArrayEquals(originalBytes, engine.decrypt(encryptedData));
+        assertArrayEquals(originalBytes, engine.decrypt(engine.encrypt(originalBytes)));
+    }
+
+    @Test
+    public void testBoundEngineRecoversAfterFailedDecryption() throws Exception {
+        byte[] originalBytes = "Engine Test Data".getBytes();
+        EncryptionUtil engine = new EncryptionUtil(encryptionAlgorithm, keySize,
+                KeyGenerator.getInstance(encryptionAlgorithm).generateKey());
+        byte[] encryptedData = engine.encrypt(originalBytes);
+
+        assertThrows(Exception.class, () -> engine.decrypt(Arrays.copyOf(encryptedData, encryptedData.length - 1)));
+        assertArrayEquals(originalBytes, engine.decrypt(encryptedData));
+    }
+
+    @Test
+    public void testUnboundEngine() {
+        assertThrows(IllegalStateException.class, () -> encryptionUtil.encrypt("data".getBytes()));
+    }
+
 }
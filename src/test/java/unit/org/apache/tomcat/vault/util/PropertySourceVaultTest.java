@@ -0,0 +1,176 @@
+package unit.org.apache.tomcat.vault.util;
+
+import org.apache.tomcat.vault.VaultTool;
+import org.apache.tomcat.vault.security.vault.PicketBoxSecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVault;
+import org.apache.tomcat.vault.security.vault.SecurityVaultFactory;
+import org.apache.tomcat.vault.util.PropertySourceVault;
+import org.jasypt.util.text.BasicTextEncryptor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import unit.org.apache.tomcat.vault.security.vault.VaultFixture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class PropertySourceVaultTest {
+
+    private static final String VAULT_PROPERTIES = "org.apache.tomcat.vault.util.VAULT_PROPERTIES";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private VaultFixture fixture;
+    private SecurityVault vault;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new VaultFixture(folder.getRoot());
+        // the property source shares the vault of the factory
+        vault = SecurityVaultFactory.get();
+        vault.close();
+        PicketBoxSecurityVault writer = fixture.open();
+        writer.store("vb", "password", "p@ss".toCharArray(), null);
+        writer.store("vb", "crypt", "cryptpw".toCharArray(), null);
+        writer.close();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(VAULT_PROPERTIES);
+        vault.close();
+    }
+
+    private PropertySourceVault propertySource(String... extra) throws Exception {
+        System.setProperty(VAULT_PROPERTIES, fixture.writeProperties(extra).getPath());
+        return new PropertySourceVault();
+    }
+
+    private static String crypt(String password, String value) {
+        BasicTextEncryptor encryptor = new BasicTextEncryptor();
+        encryptor.setPassword(password);
+        return "CRYPT::" + encryptor.encrypt(value);
+    }
+
+    @Test
+    public void testEagerInit() throws Exception {
+        PropertySourceVault source = propertySource("ENCRYPTION_PASSWORD", "VAULT::vb::crypt::");
+
+        assertTrue(vault.isInitialized());
+        assertEquals("p@ss", source.getProperty("VAULT::vb::password::"));
+        assertEquals("value", source.getProperty(crypt("cryptpw", "value")));
+        assertNull(source.getProperty("VAULT::vb::missing::"));
+        assertNull(source.getProperty("catalina.base"));
+    }
+
+    @Test
+    public void testLazyInit() throws Exception {
+        PropertySourceVault source = propertySource("LAZY_INIT", "true", "ENCRYPTION_PASSWORD", "VAULT::vb::crypt::");
+
+        assertFalse(vault.isInitialized());
+        assertNull(source.getProperty("catalina.base"));
+        assertFalse(vault.isInitialized());
+
+        // CRYPT:: references initialize the vault as well, the password is read from it
+        assertEquals("value", source.getProperty(crypt("cryptpw", "value")));
+        assertTrue(vault.isInitialized());
+        assertEquals("p@ss", source.getProperty("VAULT::vb::password::"));
+        assertNull(source.getProperty("VAULT::vb::missing::"));
+    }
+
+    @Test
+    public void testCryptFromVaultTool() throws Exception {
+        // VaultTool encrypts with a jasypt BasicTextEncryptor, lookups decrypt with a pooled encryptor
+        final List<String> references = new ArrayList<String>();
+        for (int i = 0; i < 16; i++) {
+            references.add(encryptWithVaultTool("cryptpw", "value" + i));
+        }
+        final PropertySourceVault source = propertySource("ENCRYPTION_PASSWORD", "VAULT::vb::crypt::", "CRYPT_POOL_SIZE", "4");
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> lookups = new ArrayList<Future<String>>();
+            for (final String reference : references) {
+                lookups.add(pool.submit(new Callable<String>() {
+                    public String call() {
+                        return source.getProperty(reference);
+                    }
+                }));
+            }
+            for (int i = 0; i < lookups.size(); i++) {
+                assertEquals("value" + i, lookups.get(i).get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static String encryptWithVaultTool(String password, String value) throws Exception {
+        VaultTool tool = new VaultTool(new String[]{"-E", password, value});
+        Method execute = VaultTool.class.getDeclaredMethod("execute");
+        execute.setAccessible(true);
+        PrintStream out = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, "UTF-8"));
+        try {
+            assertEquals(0, execute.invoke(tool));
+        } finally {
+            System.setOut(out);
+        }
+        String output = captured.toString("UTF-8").trim();
+        assertTrue(output, output.startsWith("Encrypted value: CRYPT::"));
+        return output.substring("Encrypted value: ".length());
+    }
+
+    @Test
+    public void testInitFailure() throws Exception {
+        String cryptReference = crypt("cryptpw", "value");
+        for (String lazyInit : new String[]{"false", "true"}) {
+            PropertySourceVault source = propertySource("LAZY_INIT", lazyInit, "ENCRYPTION_PASSWORD", "cryptpw",
+                    PicketBoxSecurityVault.KEYSTORE_URL, fixture.file("missing.keystore").getPath());
+
+            // references are left unchanged and other placeholders left to other sources, in both modes
+            assertEquals(lazyInit, "VAULT::vb::password::", source.getProperty("VAULT::vb::password::"));
+            assertEquals(lazyInit, cryptReference, source.getProperty(cryptReference));
+            assertNull(lazyInit, source.getProperty("catalina.base"));
+            assertFalse(lazyInit, vault.isInitialized());
+        }
+    }
+
+    @Test
+    public void testConcurrentFirstLookup() throws Exception {
+        final PropertySourceVault source = propertySource("LAZY_INIT", "true");
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> lookups = new ArrayList<Future<String>>();
+            for (int i = 0; i < 8; i++) {
+                lookups.add(pool.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        start.await();
+                        return source.getProperty("VAULT::vb::password::");
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<String> lookup : lookups) {
+                assertEquals("p@ss", lookup.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package unit.org.apache.tomcat.vault.util;
+
+import org.apache.tomcat.vault.util.SecretCodec;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class SecretCodecTest {
+
+    private static final String SECRET = "p\u00e4ss\u20ac\u00df";
+
+    private final SecretCodec codec = new SecretCodec(StandardCharsets.UTF_8);
+
+    @Test
+    public void testEncodeMatchesStringEncoding() {
+        ByteBuffer encoded = codec.encode(SECRET.toCharArray());
+        byte[] expected = SECRET.getBytes(StandardCharsets.UTF_8);
+        byte[] actual = new byte[encoded.remaining()];
+        encoded.duplicate().get(actual);
+        assertArrayEquals(expected, actual);
+
+        codec.release(encoded);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(0, encoded.array()[i]);
+        }
+    }
+
+    @Test
+    public void testDecodeIntoBuffer() {
+        CharBuffer out = CharBuffer.allocate(32);
+        out.put('x');
+        assertTrue(codec.decode(ByteBuffer.wrap(SECRET.getBytes(StandardCharsets.UTF_8)), out));
+        out.flip();
+        assertEquals("x" + SECRET, out.toString());
+    }
+
+    @Test
+    public void testDecodeOverflowWritesNothing() {
+        CharBuffer out = CharBuffer.allocate(3);
+        assertFalse(codec.decode(ByteBuffer.wrap(SECRET.getBytes(StandardCharsets.UTF_8)), out));
+        assertEquals(0, out.position());
+        assertArrayEquals(new char[3], out.array());
+    }
+
+    @Test
+    public void testDecodeMalformedInputIsReplaced() {
+        byte[] malformed = {'a', (byte) 0xff, 'b'};
+        assertEquals(new String(malformed, StandardCharsets.UTF_8), new String(codec.decode(ByteBuffer.wrap(malformed))));
+    }
+}
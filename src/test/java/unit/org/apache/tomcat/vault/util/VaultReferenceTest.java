@@ -0,0 +1,86 @@
+package unit.org.apache.tomcat.vault.util;
+
+import org.apache.tomcat.vault.security.vault.SecurityVault;
+import org.apache.tomcat.vault.util.VaultReference;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VaultReferenceTest {
+
+    @Test
+    public void testParseReference() {
+        VaultReference reference = VaultReference.parse("VAULT::my_block::manager_password");
+
+        assertNotNull(reference);
+        assertEquals("my_block", reference.getVaultBlock());
+        assertEquals("manager_password", reference.getAttributeName());
+    }
+
+    @Test
+    public void testParseReferenceWithTrailingSeparator() {
+        VaultReference reference = VaultReference.parse("VAULT::my_block::manager_password::");
+
+        assertNotNull(reference);
+        assertEquals("my_block", reference.getVaultBlock());
+        assertEquals("manager_password", reference.getAttributeName());
+        assertNotNull(VaultReference.parse("VAULT::my_block::manager_password::::"));
+    }
+
+    @Test
+    public void testSingleColonIsPartOfName() {
+        VaultReference reference = VaultReference.parse("VAULT::my:block::pass:");
+
+        assertNotNull(reference);
+        assertEquals("my:block", reference.getVaultBlock());
+        assertEquals("pass:", reference.getAttributeName());
+    }
+
+    @Test
+    public void testBlockReference() {
+        VaultReference reference = VaultReference.parse("VAULT::my_block::*");
+
+        assertNotNull(reference);
+        assertEquals("my_block", reference.getVaultBlock());
+        assertTrue(reference.isBlockReference());
+        assertFalse(VaultReference.parse("VAULT::my_block::*password").isBlockReference());
+    }
+
+    @Test
+    public void testVersionReference() {
+        VaultReference reference = VaultReference.parse("VAULT::my_block::manager_password::@12::");
+
+        assertNotNull(reference);
+        assertEquals("manager_password", reference.getAttributeName());
+        assertEquals(12, reference.getVersion());
+        assertEquals(SecurityVault.LATEST_VERSION, VaultReference.parse("VAULT::my_block::manager_password::@latest").getVersion());
+        assertEquals(SecurityVault.LATEST_VERSION, VaultReference.parse("VAULT::my_block::manager_password").getVersion());
+        assertNull(VaultReference.parse("VAULT::my_block::manager_password::@0"));
+        assertNull(VaultReference.parse("VAULT::my_block::manager_password::@"));
+        assertNull(VaultReference.parse("VAULT::my_block::manager_password::@1x"));
+        assertNull(VaultReference.parse("VAULT::my_block::manager_password::@1234567890"));
+    }
+
+    @Test
+    public void testInvalidReferences() {
+        assertNull(VaultReference.parse("my_block::manager_password"));
+        assertNull(VaultReference.parse("VAULT::"));
+        assertNull(VaultReference.parse("VAULT::my_block"));
+        assertNull(VaultReference.parse("VAULT::my_block::"));
+        assertNull(VaultReference.parse("VAULT::::manager_password"));
+        assertNull(VaultReference.parse("VAULT::my_block::manager_password::extra"));
+        assertNull(VaultReference.parse("VAULT::my_block::manager_password:::"));
+    }
+
+    @Test
+    public void testPrefixes() {
+        assertTrue(VaultReference.isVaultReference("VAULT::my_block::manager_password"));
+        assertFalse(VaultReference.isVaultReference("catalina.base"));
+        assertFalse(VaultReference.isVaultReference("VAULT::"));
+        assertTrue(VaultReference.isCryptReference("CRYPT::a33AiwJkF4dMx9Uq9oxElYT6LdjXLJxf"));
+        assertFalse(VaultReference.isCryptReference("CATALINA_HOME"));
+        assertTrue(VaultReference.isCrypt2Reference("CRYPT2::AQABhqAQ"));
+        assertFalse(VaultReference.isCryptReference("CRYPT2::AQABhqAQ"));
+        assertFalse(VaultReference.isCrypt2Reference("CRYPT::a33AiwJkF4dMx9Uq9oxElYT6LdjXLJxf"));
+    }
+}
@@ -0,0 +1,66 @@
+package unit.org.apache.tomcat.vault.util;
+
+import org.apache.tomcat.vault.util.VaultValueCache;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VaultValueCacheTest {
+
+    @Test
+    public void testGetCachedValue() {
+        VaultValueCache cache = new VaultValueCache(10, 0);
+        cache.put(cache.stamp(), "VAULT::vb::password::", "vb", "password", "secret".toCharArray());
+
+        assertEquals("secret", cache.get("VAULT::vb::password::"));
+        assertNull(cache.get("VAULT::vb::other::"));
+    }
+
+    @Test
+    public void testEvictedValueIsWiped() {
+        VaultValueCache cache = new VaultValueCache(1, 0);
+        char[] first = "first".toCharArray();
+        cache.put(cache.stamp(), "VAULT::vb::first", "vb", "first", first);
+        cache.put(cache.stamp(), "VAULT::vb::second", "vb", "second", "second".toCharArray());
+
+        assertEquals(1, cache.size());
+        assertNull(cache.get("VAULT::vb::first"));
+        assertArrayEquals(new char[5], first);
+    }
+
+    @Test
+    public void testExpiredValue() throws Exception {
+        VaultValueCache cache = new VaultValueCache(10, 1);
+        cache.put(cache.stamp(), "VAULT::vb::password", "vb", "password", "secret".toCharArray());
+        Thread.sleep(5);
+
+        assertNull(cache.get("VAULT::vb::password"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testVaultEntryChangedInvalidatesAllReferences() {
+        VaultValueCache cache = new VaultValueCache(10, 0);
+        cache.put(cache.stamp(), "VAULT::vb::password", "vb", "password", "secret".toCharArray());
+        cache.put(cache.stamp(), "VAULT::vb::password::", "vb", "password", "secret".toCharArray());
+        cache.put(cache.stamp(), "VAULT::vb::user", "vb", "user", "tomcat".toCharArray());
+
+        cache.vaultEntryChanged("vb", "password");
+
+        assertNull(cache.get("VAULT::vb::password"));
+        assertNull(cache.get("VAULT::vb::password::"));
+        assertEquals("tomcat", cache.get("VAULT::vb::user"));
+    }
+
+    @Test
+    public void testValueRetrievedBeforeInvalidationIsNotCached() {
+        VaultValueCache cache = new VaultValueCache(10, 0);
+        long stamp = cache.stamp();
+        char[] stale = "stale".toCharArray();
+        cache.vaultEntryChanged("vb", "password");
+        cache.put(stamp, "VAULT::vb::password", "vb", "password", stale);
+
+        assertNull(cache.get("VAULT::vb::password"));
+        assertArrayEquals(new char[5], stale);
+    }
+}